@@ -32,6 +32,7 @@
 type=$1;
 mode=$2;
 port=$3;
+response=$4;
 
 DIRNAME=`dirname "$0"`
 
@@ -71,13 +72,13 @@ echo ""
 echo ""
 
 if [ "x$type" = "x" ]; then
-	printf "ERROR: you should provide a type of the server to run (xnio3 or nio2)\n";
+	printf "ERROR: you should provide a type of the server to run (xnio3, nio2, nio or bio)\n";
 	printf " --> Example: sh run.sh xnio3 async 8080\n";
 	exit -1;
 fi
 
 if [ "x$mode" = "x" ]; then
-	printf "ERROR: you should provide a running mode of the server (sync or async)\n";
+	printf "ERROR: you should provide a running mode of the server (sync, sync-vt, async or udp)\n";
 	printf " --> Example: sh run.sh xnio3 async 8080\n";
 	exit -1;
 fi
@@ -92,9 +93,13 @@ printf "  Running server application with parameters \n";
 printf "  \tType: $type\n";
 printf "  \tMode: $mode\n";
 printf "  \tPort: $port\n";
+if [ "x$response" = "x" ]; then
+	response="buffer";
+fi
+printf "  \tResponse: $response\n";
 echo "";
 
-java $JAVA_OPTS -jar target/nio2-xnio3-test.jar $type $mode $port
+java $JAVA_OPTS -jar target/nio2-xnio3-test.jar $type $mode $port $response
 
 #eval \"$JAVA\" $JAVA_OPTS \
 #         -jar target/nio2-xnio3-test.jar $type $mode $port
@@ -28,6 +28,8 @@ package org.jboss.server;
 
 import org.jboss.logging.Logger;
 import org.jboss.server.common.Constants;
+import org.jboss.server.common.FileLoader;
+import org.jboss.server.common.ResponseMode;
 
 /**
  * {@code Server}
@@ -57,13 +59,21 @@ public abstract class Server {
 	public static void main(String[] args) throws Exception {
 		System.out.println();
 		if (args.length < 2) {
-			System.err.println("Usage: java " + Server.class.getName() + " type mode [port]\n");
-			System.err.println("  --> type: xnio or nio (Allowed values: \"xnio3\" and \"nio2\")");
+			System.err.println("Usage: java " + Server.class.getName()
+					+ " type mode [port] [response]\n");
+			System.err.println("  --> type: the I/O engine (Allowed values: \"xnio3\", \"nio2\", \"nio\" and \"bio\")");
+			System.err.println("            nio runs selector reactors and only supports the async mode");
+			System.err.println("            bio runs blocking sockets and only supports the sync modes");
 			System.err.print("  --> mode: the channel processing mode, i.e, sync/async (");
-			System.err.println("Allowed values: \"sync\" or \"async\")");
+			System.err.println("Allowed values: \"sync\", \"sync-vt\", \"async\" or \"udp\")");
+			System.err.println("            sync-vt runs each connection on a virtual thread (Java 21)");
+			System.err.println("            udp answers request datagrams, with the nio and xnio3 types");
 			System.err
 					.println("  --> port: the server port number to which the server channel will bind.");
 			System.err.println("            Default value: 8080");
+			System.err.print("  --> response: the way the payload is sent to the clients (");
+			System.err.println("Allowed values: \"buffer\", \"sendfile\" or \"stream\")");
+			System.err.println("            Default value: buffer, sendfile requires a sync mode or nio");
 			System.out.println();
 			System.exit(-1);
 		}
@@ -83,16 +93,36 @@ public abstract class Server {
 			}
 		}
 		
+		ResponseMode responseMode = ResponseMode.BUFFER;
+		if (args.length >= 4) {
+			try {
+				responseMode = ResponseMode.parse(args[3]);
+			} catch (IllegalArgumentException e) {
+				LOG.errorv("Invalid response mode: {0}", args[3]);
+				LOG.infov("Using the default response mode {0}", responseMode);
+			}
+		}
+
+		// Load the payloads before accepting any connection
+		LOG.infov("{0} payloads loaded, default payload: {1}", FileLoader.getCatalog().size(),
+				FileLoader.getPayload().getName());
+
 		switch (args[0]) {
 			case "nio2":
-				org.jboss.server.nio2.MainServer.run(args[1], port);
+				org.jboss.server.nio2.MainServer.run(args[1], port, responseMode);
 				break;
 			case "xnio3":
-				org.jboss.server.xnio3.MainServer.run(args[1], port);
+				org.jboss.server.xnio3.MainServer.run(args[1], port, responseMode);
+				break;
+			case "nio":
+				org.jboss.server.nio.MainServer.run(args[1], port, responseMode);
+				break;
+			case "bio":
+				org.jboss.server.bio.MainServer.run(args[1], port, responseMode);
 				break;
 			default:
 				LOG.errorv("Unknown server type \"{0}\"", args[0]);
-				LOG.error("Allowed values: \"xnio3\" and \"nio2\"");
+				LOG.error("Allowed values: \"xnio3\", \"nio2\", \"nio\" and \"bio\"");
 				break;
 		}
 	}
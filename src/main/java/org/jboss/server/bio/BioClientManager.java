@@ -0,0 +1,149 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.bio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.ClientManager;
+import org.jboss.server.common.Constants;
+
+/**
+ * {@code BioClientManager}
+ * <p>
+ * Stream-based client manager: the requests are read from and the responses
+ * written to the streams of the socket (see {@link SocketStream}), with
+ * plain blocking calls. The deadlines are kept as for the other engines, the
+ * timer closes the socket, which fails the blocked call.
+ * </p>
+ * 
+ * Created on Dec 5, 2012 at 10:07:45 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class BioClientManager extends ClientManager<SocketStream> {
+
+	private static final Logger logger = Logger.getLogger(BioClientManager.class);
+
+	/**
+	 * Create a new instance of {@code BioClientManager}
+	 * 
+	 * @param channel
+	 */
+	public BioClientManager(SocketStream channel) {
+		super(channel);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			if (!this.intialized) {
+				this.init();
+			}
+			// Answer the requests read along with the greeting, if any
+			if (this.readBuffer.position() > 0) {
+				process(channel);
+			}
+			do {
+				readDeadline();
+				int n = channel.read(this.readBuffer);
+				if (n < 0) {
+					break;
+				}
+
+				if (n > 0) {
+					onRead(n);
+					// Answer the complete requests read so far
+					process(channel);
+				}
+			} while (channel.isOpen());
+		} catch (Exception exp) {
+			// Nothing to report when the session was closed by the reaper
+			if (channel.isOpen()) {
+				logger.errorv("ERROR: from client side -> {0}", exp);
+			}
+		} finally {
+			this.close();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.jboss.server.common.ClientManager#write(java.nio.channels.Channel,
+	 * java.nio.ByteBuffer[], int, int, long)
+	 */
+	@Override
+	public void write(SocketStream channel, ByteBuffer[] buffers, int offset, int length,
+			long total) throws Exception {
+		deadline(Constants.DEFAULT_TIMEOUT);
+		channel.write(buffers, offset, length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.jboss.server.common.ClientManager#write(java.nio.channels.Channel,
+	 * java.nio.ByteBuffer)
+	 */
+	@Override
+	protected void write(SocketStream channel, ByteBuffer buffer) throws Exception {
+		deadline(Constants.DEFAULT_TIMEOUT);
+		channel.write(buffer);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.jboss.server.common.ClientManager#transfer(java.nio.channels.Channel,
+	 * java.nio.channels.FileChannel, long, long)
+	 */
+	@Override
+	protected void transfer(SocketStream channel, FileChannel file, long position, long count)
+			throws Exception {
+		// A socket stream has no file descriptor to send the file to, the
+		// JDK reads the region into its own buffers and writes them
+		long end = position + count;
+		while (position < end) {
+			deadline(Constants.DEFAULT_TIMEOUT);
+			long n = file.transferTo(position, end - position, channel);
+			if (n <= 0) {
+				throw new IOException("Unexpected end of file at " + position);
+			}
+			position += n;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.bio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.AbstractServer;
+import org.jboss.server.common.BufferPool;
+import org.jboss.server.common.Constants;
+import org.jboss.server.common.SessionGenerator;
+import org.jboss.server.common.SessionId;
+import org.jboss.server.common.Shard;
+import org.jboss.server.common.ThreadTopology;
+
+/**
+ * {@code BioServer}
+ * <p>
+ * Classic thread-per-connection server built on {@link ServerSocket} and
+ * {@link Socket}: the server thread accepts the connections and each one is
+ * served by a {@link BioClientManager} with blocking stream calls, on the
+ * shared pool in sync mode or on its own virtual thread in sync-vt mode. It
+ * is the baseline the other engines are measured against.
+ * </p>
+ * 
+ * Created on Dec 5, 2012 at 11:14:38 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class BioServer extends AbstractServer {
+
+	private static final Logger logger = Logger.getLogger(BioServer.class);
+
+	/**
+	 * Create a new instance of {@code BioServer}
+	 * 
+	 * @param port
+	 */
+	public BioServer(int port) {
+		super(port);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		logger.infov("Starting Blocking I/O Sever on port {0} ...", port);
+		logger.infov("Thread topology: {0}", ThreadTopology.describe());
+		try (ServerSocket listener = new ServerSocket()) {
+			listener.bind(new InetSocketAddress(port));
+			Shard shard = Shard.create("bio-0");
+			logger.info("Blocking I/O Sever started ...");
+			for (;;) {
+				Socket socket;
+				try {
+					socket = listener.accept();
+				} catch (IOException e) {
+					// e.g. too many open files, keep accepting
+					logger.errorv("Accept failed: {0}", e);
+					continue;
+				}
+				shard.onAccept();
+				processSocket(socket, shard);
+			}
+		} catch (Throwable th) {
+			th.printStackTrace();
+		}
+	}
+
+	/**
+	 * Hand the newly accepted socket over to a client manager. The session
+	 * initialization blocks, so it is done by the thread of the client
+	 * manager rather than by the accepting thread.
+	 * 
+	 * @param socket
+	 * @param shard
+	 */
+	private void processSocket(final Socket socket, final Shard shard) {
+		final BioClientManager manager;
+		try {
+			socket.setSendBufferSize(Constants.DEFAULT_SO_SNDBUF);
+			manager = new BioClientManager(new SocketStream(socket));
+		} catch (IOException e) {
+			logger.warnv("Session initialization failed: {0}", e);
+			try {
+				socket.close();
+			} catch (IOException exp) {
+				// NOPE
+			}
+			return;
+		}
+		manager.setResponseMode(responseMode);
+		// Generated here so that the per-thread generators are not created
+		// again for each virtual thread
+		final SessionId sessionId = generateSessionId();
+		managerExecutor.execute(new Runnable() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.lang.Runnable#run()
+			 */
+			@Override
+			public void run() {
+				if (startSession(manager, sessionId, shard)) {
+					manager.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Read the client greeting and answer with the session ID, the bytes
+	 * which follow the greeting are kept in the read buffer handed to the
+	 * client manager
+	 * 
+	 * @param manager
+	 * @param sessionId
+	 * @param shard
+	 * @return {@code true} if the session is initialized
+	 */
+	private boolean startSession(BioClientManager manager, SessionId sessionId, Shard shard) {
+		SocketStream channel = manager.getChannel();
+		ByteBuffer readBuffer = BufferPool.getReadBufferPool().acquire();
+		try {
+			// The client must greet in time
+			manager.getTimeout().arm(Constants.HANDSHAKE_TIMEOUT, Constants.DEFAULT_TIME_UNIT);
+			int end = 0;
+			for (;;) {
+				if (channel.read(readBuffer) < 0) {
+					throw new EOFException("Closed before the greeting");
+				}
+				int limit = readBuffer.position();
+				while (end < limit && readBuffer.get(end) != '\n') {
+					end++;
+				}
+				if (end < limit) {
+					break;
+				}
+				if (!readBuffer.hasRemaining()) {
+					// Overlong greeting, only its end of line matters
+					readBuffer.clear();
+					end = 0;
+				}
+			}
+			// Keep what follows the greeting
+			readBuffer.flip();
+			readBuffer.position(end + 1);
+			readBuffer.compact();
+			ByteBuffer handshake = BufferPool.getReadBufferPool().acquire();
+			try {
+				SessionGenerator.putHandshake(handshake, sessionId);
+				handshake.flip();
+				channel.write(handshake);
+			} finally {
+				BufferPool.getReadBufferPool().release(handshake);
+			}
+		} catch (IOException e) {
+			logger.warnv("Session initialization failed: {0}", e);
+			manager.getTimeout().disarm();
+			BufferPool.getReadBufferPool().release(readBuffer);
+			try {
+				channel.close();
+			} catch (IOException exp) {
+				// NOPE
+			}
+			return false;
+		}
+		manager.setSession(openSession(sessionId, channel, shard));
+		// The read buffer is reused by the client manager
+		manager.setReadBuffer(readBuffer);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.jboss.server.common.AbstractServer#getEngine()
+	 */
+	@Override
+	public String getEngine() {
+		return this.virtualThreads ? "bio-sync-vt" : "bio-sync";
+	}
+}
@@ -0,0 +1,72 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.bio;
+
+import org.jboss.server.common.ResponseMode;
+import org.jboss.server.nio.UnixDomainListener;
+
+/**
+ * {@code MainServer}
+ * 
+ * Created on Dec 5, 2012 at 11:52:03 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class MainServer {
+
+	/**
+	 * Runs the blocking I/O server
+	 * 
+	 * @param mode
+	 *            the server mode, sync/sync-vt
+	 * @param port
+	 *            the server port number
+	 * @param responseMode
+	 *            the way the payload is pushed to the clients
+	 * @throws Exception
+	 */
+	public static void run(String mode, int port, ResponseMode responseMode) throws Exception {
+		BioServer target = new BioServer(port);
+		switch (mode) {
+			case "sync":
+				break;
+			case "sync-vt":
+				target.useVirtualThreads();
+				break;
+
+			default:
+				throw new Exception("Invalid mode: " + mode
+						+ ", the blocking I/O server only runs sync or sync-vt");
+		}
+		target.setResponseMode(responseMode);
+		// Serve the co-located clients on a Unix domain socket as well, if asked
+		UnixDomainListener.start(target);
+
+		Thread thread = new Thread(target);
+		thread.start();
+		thread.join();
+	}
+}
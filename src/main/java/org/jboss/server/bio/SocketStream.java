@@ -0,0 +1,188 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.bio;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * {@code SocketStream}
+ * <p>
+ * Blocking {@link ByteChannel} view of the streams of a {@link Socket}, so
+ * that the connections of the {@code bio} engine fit in the
+ * {@link org.jboss.server.common.ClientManager} structure and can be the
+ * target of {@code FileChannel.transferTo}. The buffers backed by an array
+ * are read and written in place; the direct ones, i.e. the shared payloads
+ * and the pooled read buffers, go through a scratch array of the
+ * connection since the socket streams only take arrays.
+ * </p>
+ * 
+ * Created on Dec 5, 2012 at 9:31:12 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class SocketStream implements ByteChannel, GatheringByteChannel {
+
+	/**
+	 * The size of the scratch array
+	 */
+	public static final int SCRATCH_SIZE = 8 * 1024;
+
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final byte scratch[] = new byte[SCRATCH_SIZE];
+
+	/**
+	 * Create a new instance of {@code SocketStream}
+	 * 
+	 * @param socket
+	 *            a connected socket
+	 * @throws IOException
+	 */
+	public SocketStream(Socket socket) throws IOException {
+		this.socket = socket;
+		this.in = socket.getInputStream();
+		this.out = socket.getOutputStream();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!dst.hasRemaining()) {
+			return 0;
+		}
+		int n;
+		if (dst.hasArray()) {
+			n = this.in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if (n > 0) {
+				dst.position(dst.position() + n);
+			}
+		} else {
+			n = this.in.read(this.scratch, 0, Math.min(dst.remaining(), this.scratch.length));
+			if (n > 0) {
+				dst.put(this.scratch, 0, n);
+			}
+		}
+		return n;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+	 */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int total = src.remaining();
+		if (src.hasArray()) {
+			this.out.write(src.array(), src.arrayOffset() + src.position(), total);
+			src.position(src.limit());
+			return total;
+		}
+		while (src.hasRemaining()) {
+			int n = Math.min(src.remaining(), this.scratch.length);
+			src.get(this.scratch, 0, n);
+			this.out.write(this.scratch, 0, n);
+		}
+		return total;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[],
+	 * int, int)
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long total = 0;
+		int filled = 0;
+		for (int i = offset; i < offset + length; i++) {
+			ByteBuffer src = srcs[i];
+			total += src.remaining();
+			while (src.hasRemaining()) {
+				if (filled == this.scratch.length) {
+					this.out.write(this.scratch, 0, filled);
+					filled = 0;
+				}
+				int n = Math.min(src.remaining(), this.scratch.length - filled);
+				src.get(this.scratch, filled, n);
+				filled += n;
+			}
+		}
+		if (filled > 0) {
+			this.out.write(this.scratch, 0, filled);
+		}
+		return total;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.GatheringByteChannel#write(java.nio.ByteBuffer[])
+	 */
+	@Override
+	public long write(ByteBuffer[] srcs) throws IOException {
+		return write(srcs, 0, srcs.length);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.Channel#isOpen()
+	 */
+	@Override
+	public boolean isOpen() {
+		return !this.socket.isClosed();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.Channel#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		this.socket.close();
+	}
+
+	/**
+	 * @return the socket
+	 */
+	public Socket getSocket() {
+		return this.socket;
+	}
+}
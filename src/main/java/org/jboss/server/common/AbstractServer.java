@@ -25,7 +25,7 @@
  */
 package org.jboss.server.common;
 
-import java.util.UUID;
+import java.io.Closeable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -43,7 +43,15 @@ public abstract class AbstractServer implements Runnable {
 	 */
 	protected int port;
 	protected boolean async = false;
-	protected ExecutorService executor = Executors.newFixedThreadPool(512);
+	protected ResponseMode responseMode = ResponseMode.BUFFER;
+	protected ExecutorService executor = Executors.newFixedThreadPool(ThreadTopology
+			.getPoolSize());
+	/**
+	 * Runs the client managers of the sync engines, the executor unless the
+	 * managers run on virtual threads
+	 */
+	protected ExecutorService managerExecutor = executor;
+	protected boolean virtualThreads = false;
 
 	/**
 	 * Create a new instance of {@code Server}
@@ -56,8 +64,69 @@ public abstract class AbstractServer implements Runnable {
 	 * Generate a random and unique session Id
 	 * 
 	 * @return a random and unique session Id
+	 * @see SessionGenerator
+	 */
+	public static SessionId generateSessionId() {
+		return SessionGenerator.getInstance().generate();
+	}
+
+	/**
+	 * Register a new session for the channel in the {@link SessionRegistry}
+	 * 
+	 * @param sessionId
+	 *            the session ID
+	 * @param channel
+	 *            the channel of the connection
+	 * @param shard
+	 *            the shard which accepted the connection
+	 * @return the new session
+	 */
+	protected Session openSession(SessionId sessionId, Closeable channel, Shard shard) {
+		return SessionRegistry.getInstance().register(sessionId, getEngine(), channel, shard);
+	}
+
+	/**
+	 * Run each client manager on its own virtual thread instead of the fixed
+	 * thread pool. The blocking calls of the managers must park the virtual
+	 * thread rather than block its carrier.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             if the runtime does not support virtual threads
+	 * @see VirtualThreads
+	 */
+	public void useVirtualThreads() {
+		this.managerExecutor = VirtualThreads.newExecutor();
+		this.virtualThreads = true;
+	}
+
+	/**
+	 * @return {@code true} if the client managers run on virtual threads
+	 */
+	public boolean isVirtualThreads() {
+		return this.virtualThreads;
+	}
+
+	/**
+	 * @return the name of the engine, e.g. <tt>nio2-async</tt>
+	 */
+	public abstract String getEngine();
+
+	/**
+	 * Getter for responseMode
+	 * 
+	 * @return the responseMode
+	 */
+	public ResponseMode getResponseMode() {
+		return this.responseMode;
+	}
+
+	/**
+	 * Setter for the responseMode
+	 * 
+	 * @param responseMode
+	 *            the responseMode to set
 	 */
-	public static String generateSessionId() {
-		return UUID.randomUUID().toString();
+	public void setResponseMode(ResponseMode responseMode) {
+		this.responseMode = responseMode;
 	}
 }
@@ -0,0 +1,400 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+/**
+ * {@code BufferPool}
+ * <p>
+ * Pool of small direct buffers of the same size, such as the per-connection
+ * read buffers. The buffers are carved out of large direct slabs, so a new
+ * connection does not allocate any direct memory once the pool is warm, and
+ * the slabs are never freed, so the buffers do not cost any reference
+ * processing when connections are closed.
+ * </p>
+ * <p>
+ * Each thread keeps a small cache of free buffers: {@link #acquire()} and
+ * {@link #release(ByteBuffer)} only touch the shared free list, under a
+ * lock, to refill or drain half of the cache at once. The pool keeps track
+ * of the caches, and the buffers cached by the threads which terminated are
+ * given back to the free list before a new slab is carved, rather than
+ * being stranded and then reported as leaks. Virtual threads have no cache:
+ * there is one per connection, so the pool would track as many caches.
+ * </p>
+ * <p>
+ * A buffer that is dropped without being released is detected once it is
+ * garbage collected: its area of the slab is then logged and given back to
+ * the pool as a new buffer, so leaks do not exhaust the slabs.
+ * </p>
+ * 
+ * Created on Nov 14, 2012 at 2:18:06 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class BufferPool {
+
+	private static final Logger logger = Logger.getLogger(BufferPool.class);
+	/**
+	 * The size of the read buffers
+	 */
+	public static final int READ_BUFFER_SIZE = 512;
+	/**
+	 * The size of the slabs the buffers are carved from
+	 */
+	public static final int SLAB_SIZE = 256 * 1024;
+	/**
+	 * The maximum number of free buffers cached by each thread
+	 */
+	public static final int THREAD_CACHE_SIZE = 64;
+
+	private static final BufferPool READ_BUFFERS = new BufferPool(READ_BUFFER_SIZE);
+	private static final BufferPool STREAM_CHUNKS = new BufferPool(Constants.STREAM_CHUNK_SIZE);
+
+	private final int bufferSize;
+	private final int slabSize;
+	private final ThreadLocal<Stack> caches;
+	private final Stack free;
+	// The caches of the platform threads, guarded by the free list lock
+	private final ArrayList<Stack> threadCaches = new ArrayList<>();
+	// The tracking references must stay reachable to be enqueued
+	private final Set<Slot> slots = Collections.newSetFromMap(new ConcurrentHashMap<Slot, Boolean>());
+	private final ReferenceQueue<ByteBuffer> leaked = new ReferenceQueue<>();
+	private final AtomicLong slabs = new AtomicLong();
+	private final AtomicLong leaks = new AtomicLong();
+
+	/**
+	 * {@code Slot}
+	 * <p>
+	 * Tracks the buffer carved out of an area of a slab. The reference is
+	 * enqueued if the buffer is garbage collected, i.e. if it was dropped
+	 * without being released.
+	 * </p>
+	 */
+	private static final class Slot extends WeakReference<ByteBuffer> {
+
+		private final ByteBuffer slab;
+		private final int offset;
+
+		/**
+		 * Create a new instance of {@code Slot}
+		 * 
+		 * @param buffer
+		 * @param slab
+		 * @param offset
+		 * @param queue
+		 */
+		Slot(ByteBuffer buffer, ByteBuffer slab, int offset, ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			this.slab = slab;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * {@code Stack}
+	 * <p>
+	 * Array based stack of free buffers
+	 * </p>
+	 */
+	private static final class Stack {
+
+		private ByteBuffer buffers[];
+		private int size;
+		// The thread owning the cache, null for the shared free list
+		private final WeakReference<Thread> owner;
+
+		/**
+		 * Create a new instance of {@code Stack}
+		 * 
+		 * @param capacity
+		 * @param owner
+		 *            the thread owning the cache, or {@code null}
+		 */
+		Stack(int capacity, Thread owner) {
+			this.buffers = new ByteBuffer[capacity];
+			this.owner = owner == null ? null : new WeakReference<>(owner);
+		}
+
+		/**
+		 * @return {@code true} if the thread owning the cache terminated
+		 */
+		boolean isOrphan() {
+			Thread thread = this.owner.get();
+			return thread == null || !thread.isAlive();
+		}
+
+		/**
+		 * @param buffer
+		 */
+		void push(ByteBuffer buffer) {
+			if (this.size == this.buffers.length) {
+				this.buffers = Arrays.copyOf(this.buffers, 2 * this.size);
+			}
+			this.buffers[this.size++] = buffer;
+		}
+
+		/**
+		 * @return the last buffer pushed or {@code null} if empty
+		 */
+		ByteBuffer pop() {
+			if (this.size == 0) {
+				return null;
+			}
+			ByteBuffer buffer = this.buffers[--this.size];
+			this.buffers[this.size] = null;
+			return buffer;
+		}
+	}
+
+	/**
+	 * Create a new instance of {@code BufferPool}
+	 * 
+	 * @param bufferSize
+	 *            the size of the buffers
+	 */
+	public BufferPool(int bufferSize) {
+		this(bufferSize, SLAB_SIZE);
+	}
+
+	/**
+	 * Create a new instance of {@code BufferPool}
+	 * 
+	 * @param bufferSize
+	 *            the size of the buffers
+	 * @param slabSize
+	 *            the size of the slabs, rounded down to a multiple of the
+	 *            buffer size
+	 */
+	public BufferPool(int bufferSize, int slabSize) {
+		if (bufferSize <= 0 || slabSize < bufferSize) {
+			throw new IllegalArgumentException("Invalid sizes: buffer " + bufferSize + ", slab "
+					+ slabSize);
+		}
+		this.bufferSize = bufferSize;
+		this.slabSize = slabSize - slabSize % bufferSize;
+		this.free = new Stack(this.slabSize / bufferSize, null);
+		this.caches = new ThreadLocal<Stack>() {
+			@Override
+			protected Stack initialValue() {
+				Stack cache = new Stack(THREAD_CACHE_SIZE, Thread.currentThread());
+				synchronized (free) {
+					threadCaches.add(cache);
+				}
+				return cache;
+			}
+		};
+	}
+
+	/**
+	 * @return the pool of the connection read buffers
+	 */
+	public static BufferPool getReadBufferPool() {
+		return READ_BUFFERS;
+	}
+
+	/**
+	 * @return the pool of the chunk buffers used to stream the files
+	 */
+	public static BufferPool getStreamChunkPool() {
+		return STREAM_CHUNKS;
+	}
+
+	/**
+	 * Take a buffer from the pool
+	 * 
+	 * @return a cleared buffer
+	 */
+	public ByteBuffer acquire() {
+		reclaimLeaks();
+		if (VirtualThreads.isVirtual(Thread.currentThread())) {
+			ByteBuffer buffer;
+			synchronized (this.free) {
+				if (this.free.size == 0) {
+					fill();
+				}
+				buffer = this.free.pop();
+			}
+			buffer.clear();
+			return buffer;
+		}
+		Stack cache = this.caches.get();
+		ByteBuffer buffer = cache.pop();
+		if (buffer == null) {
+			refill(cache);
+			buffer = cache.pop();
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back to the pool. The buffer must not be used anymore by
+	 * the caller.
+	 * 
+	 * @param buffer
+	 *            a buffer acquired from this pool, {@code null} is ignored
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		if (buffer.capacity() != this.bufferSize || !buffer.isDirect()) {
+			throw new IllegalArgumentException("Not a buffer of the pool: " + buffer);
+		}
+		if (VirtualThreads.isVirtual(Thread.currentThread())) {
+			synchronized (this.free) {
+				this.free.push(buffer);
+			}
+			return;
+		}
+		Stack cache = this.caches.get();
+		if (cache.size == THREAD_CACHE_SIZE) {
+			// Give half of the cache back to the other threads
+			synchronized (this.free) {
+				for (int i = 0; i < THREAD_CACHE_SIZE / 2; i++) {
+					this.free.push(cache.pop());
+				}
+			}
+		}
+		cache.push(buffer);
+	}
+
+	/**
+	 * Refill half of the thread cache from the shared free list, carving a
+	 * new slab if it is empty
+	 * 
+	 * @param cache
+	 */
+	private void refill(Stack cache) {
+		synchronized (this.free) {
+			if (this.free.size == 0) {
+				fill();
+			}
+			for (int i = 0; i < THREAD_CACHE_SIZE / 2 && this.free.size > 0; i++) {
+				cache.push(this.free.pop());
+			}
+		}
+	}
+
+	/**
+	 * Fill the empty free list with the buffers cached by the threads which
+	 * terminated, or with a new slab if there are none. Must be called while
+	 * holding the lock of the free list.
+	 */
+	private void fill() {
+		for (int i = this.threadCaches.size() - 1; i >= 0; i--) {
+			Stack cache = this.threadCaches.get(i);
+			if (cache.isOrphan()) {
+				// The thread is gone, nothing else touches its cache
+				ByteBuffer buffer;
+				while ((buffer = cache.pop()) != null) {
+					this.free.push(buffer);
+				}
+				this.threadCaches.remove(i);
+			}
+		}
+		if (this.free.size == 0) {
+			carve();
+		}
+	}
+
+	/**
+	 * Allocate a new slab and put all its buffers in the free list. Must be
+	 * called while holding the lock of the free list.
+	 */
+	private void carve() {
+		ByteBuffer slab = ByteBuffer.allocateDirect(this.slabSize);
+		for (int offset = 0; offset < this.slabSize; offset += this.bufferSize) {
+			this.free.push(slice(slab, offset));
+		}
+		long n = this.slabs.incrementAndGet();
+		logger.debugf("Buffer pool (%d bytes buffers): %d slabs of %d bytes", this.bufferSize, n,
+				this.slabSize);
+	}
+
+	/**
+	 * Create the buffer of an area of the slab and track it
+	 * 
+	 * @param slab
+	 * @param offset
+	 * @return the buffer
+	 */
+	private ByteBuffer slice(ByteBuffer slab, int offset) {
+		ByteBuffer view = slab.duplicate();
+		view.limit(offset + this.bufferSize).position(offset);
+		ByteBuffer buffer = view.slice();
+		this.slots.add(new Slot(buffer, slab, offset, this.leaked));
+		return buffer;
+	}
+
+	/**
+	 * Give the areas of the leaked buffers back to the pool
+	 */
+	private void reclaimLeaks() {
+		Slot slot;
+		while ((slot = (Slot) this.leaked.poll()) != null) {
+			this.slots.remove(slot);
+			long n = this.leaks.incrementAndGet();
+			logger.warnf("A %d bytes buffer was not released to the pool (%d leaks so far)",
+					this.bufferSize, n);
+			synchronized (this.free) {
+				this.free.push(slice(slot.slab, slot.offset));
+			}
+		}
+	}
+
+	/**
+	 * @return the size of the buffers
+	 */
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	/**
+	 * @return the number of slabs allocated so far
+	 */
+	public long getSlabCount() {
+		return this.slabs.get();
+	}
+
+	/**
+	 * @return the number of leaked buffers detected so far
+	 */
+	public long getLeakCount() {
+		return this.leaks.get();
+	}
+}
@@ -29,6 +29,11 @@ package org.jboss.server.common;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.HashedWheelTimer.Timeout;
 
 /**
  * {@code ClientManager}
@@ -39,67 +44,236 @@ import java.nio.channels.Channel;
  */
 public abstract class ClientManager<T extends Channel> implements Runnable {
 
-	protected String sessionId;
-	protected long fileLength;
+	private static final Logger LOG = Logger.getLogger(ClientManager.class);
+
+	protected SessionId sessionId;
+	protected Session session;
+	protected final Pipeline pipeline = new Pipeline();
 	protected ByteBuffer readBuffer;
-	protected ByteBuffer writeBuffers[];
+	protected ByteBuffer trailer;
+	protected ByteBuffer chunk;
 	protected T channel;
 	protected boolean intialized;
+	protected ResponseMode responseMode = ResponseMode.BUFFER;
+	protected final Timeout timeout;
+	private long bytesWritten;
+	private long writeTime;
 
 	/**
 	 * Create a new instance of {@code ClientManager}
 	 */
 	public ClientManager(T channel) {
 		this.channel = channel;
+		this.timeout = HashedWheelTimer.getInstance().newTimeout(channel);
 	}
 
 	/**
-	 * Initialize the client manager
+	 * Initialize the client manager. The read buffer is taken from the pool
+	 * unless one was handed over by the server.
+	 * 
+	 * @throws IOException
 	 */
-	public void init() {
-		this.readBuffer = ByteBuffer.allocateDirect(512);
-		this.writeBuffers = FileLoader.cloneData();
-		this.fileLength = FileLoader.getFileLength();
+	public void init() throws IOException {
+		if (this.readBuffer == null) {
+			this.readBuffer = BufferPool.getReadBufferPool().acquire();
+		}
+		this.trailer = Payload.trailer();
 		this.intialized = true;
 	}
 
 	/**
-	 * Close the channel
+	 * Answer all the complete requests held in the read buffer, batch by
+	 * batch (see {@link Pipeline}). The read buffer is flipped on entry and
+	 * compacted on exit, ready for the next read.
+	 * 
+	 * @param channel
+	 * @throws Exception
+	 */
+	protected void process(T channel) throws Exception {
+		this.readBuffer.flip();
+		while (this.pipeline.parse(this.readBuffer, this.responseMode) > 0) {
+			writeResponse(channel);
+		}
+		this.readBuffer.compact();
+	}
+
+	/**
+	 * Record the bytes read from the client in the session, if any
+	 * 
+	 * @param n
+	 *            the number of bytes read
+	 */
+	protected void onRead(int n) {
+		if (this.session != null) {
+			this.session.onRead(n);
+		}
+	}
+
+	/**
+	 * Arm the deadline of the next read or write operation, the channel is
+	 * closed if the operation does not complete in time
+	 * 
+	 * @param delay
+	 *            the deadline, in {@link Constants#DEFAULT_TIME_UNIT}
+	 */
+	protected void deadline(long delay) {
+		this.timeout.arm(delay, Constants.DEFAULT_TIME_UNIT);
+	}
+
+	/**
+	 * Arm the deadline of the next read, see
+	 * {@link SessionRegistry#armReadDeadline(Timeout, ByteBuffer)}
+	 */
+	protected void readDeadline() {
+		SessionRegistry.getInstance().armReadDeadline(this.timeout, this.readBuffer);
+	}
+
+	/**
+	 * Close the channel and remove the session from the registry
 	 */
 	public void close() {
+		this.timeout.disarm();
 		try {
 			this.channel.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		if (this.session != null) {
+			SessionRegistry.getInstance().remove(this.session);
+		}
+		this.pipeline.reset();
+		if (this.readBuffer != null) {
+			BufferPool.getReadBufferPool().release(this.readBuffer);
+			this.readBuffer = null;
+		}
+		if (this.chunk != null) {
+			BufferPool.getStreamChunkPool().release(this.chunk);
+			this.chunk = null;
+		}
+		if (this.bytesWritten > 0 && LOG.isDebugEnabled()) {
+			long millis = TimeUnit.NANOSECONDS.toMillis(this.writeTime);
+			long rate = this.writeTime > 0 ? this.bytesWritten * 1000000000L / this.writeTime : 0;
+			LOG.debugf("[%s] %s mode: %d bytes written in %d ms (%d bytes/s)", this.sessionId,
+					this.responseMode, this.bytesWritten, millis, rate);
+		}
 	}
 
 	/**
-	 * Flip all the write byte buffers
+	 * Write the responses of the current batch: the responses held in memory
+	 * with a single gathering write, then the response sent from the file,
+	 * if any.
 	 * 
-	 * @param buffers
+	 * @param channel
+	 * @throws Exception
 	 */
-	protected static void flipAll(ByteBuffer[] buffers) {
-		for (ByteBuffer bb : buffers) {
-			bb.flip();
+	protected void writeResponse(T channel) throws Exception {
+		long start = System.nanoTime();
+		long written = this.bytesWritten;
+		try {
+			if (pipeline.getBufferCount() > 0) {
+				// Write the headers and the views on the shared payloads
+				write(channel, pipeline.getBuffers(), 0, pipeline.getBufferCount(),
+						pipeline.getLength());
+				this.bytesWritten += pipeline.getLength();
+			}
+			Response response = pipeline.getFileResponse();
+			if (response != null) {
+				FileChannel file = response.getPayload().getFile();
+				writeHeader(channel, response);
+				if (this.responseMode == ResponseMode.SENDFILE) {
+					// Send the file straight from disk then mark the end of
+					// the response
+					transfer(channel, file, response.getFilePosition(), response.getFileCount());
+					trailer.rewind();
+					write(channel, trailer);
+				} else {
+					// Stream the file by chunks, the files too large to be
+					// held in memory are always streamed
+					stream(channel, file, response.getFilePosition(), response.getFileCount());
+				}
+				this.bytesWritten += response.getLength();
+			}
+		} catch (Exception exp) {
+			exp.printStackTrace();
+		} finally {
+			this.writeTime += System.nanoTime() - start;
+			if (this.session != null) {
+				this.session.onWrite(this.bytesWritten - written);
+			}
 		}
 	}
 
 	/**
+	 * Write the header of the response, if any
 	 * 
 	 * @param channel
+	 * @param response
 	 * @throws Exception
-	 *             void
 	 */
-	protected void writeResponse(T channel) throws Exception {
-		try {
-			// Write the file content to the channel
-			write(channel, writeBuffers, fileLength);
-		} catch (Exception exp) {
-			exp.printStackTrace();
+	private void writeHeader(T channel, Response response) throws Exception {
+		ByteBuffer header = response.getHeader();
+		if (header.hasRemaining()) {
+			write(channel, header);
 		}
 	}
 
+	/**
+	 * Stream the file to the channel through the chunk buffer of the
+	 * connection, then mark the end of the response. The file is read with
+	 * positional reads so that the connections streaming the same file do not
+	 * interfere.
+	 * 
+	 * @param channel
+	 *            the target channel
+	 * @param file
+	 *            the source file
+	 * @param position
+	 *            the position of the first byte to send
+	 * @param count
+	 *            the number of bytes to send
+	 * @throws Exception
+	 */
+	protected void stream(T channel, FileChannel file, long position, long count)
+			throws Exception {
+		if (this.chunk == null) {
+			this.chunk = BufferPool.getStreamChunkPool().acquire();
+		}
+		long end = position + count;
+		while (position < end) {
+			this.chunk.clear();
+			if (end - position < this.chunk.capacity()) {
+				this.chunk.limit((int) (end - position));
+			}
+			int n = file.read(this.chunk, position);
+			if (n < 0) {
+				throw new IOException("Unexpected end of file at " + position);
+			}
+			this.chunk.flip();
+			write(channel, this.chunk);
+			position += n;
+		}
+		this.trailer.rewind();
+		write(channel, this.trailer);
+	}
+
+	/**
+	 * Transfer a region of the file to the channel. Implementations must
+	 * handle partial transfers and return only once the whole region is
+	 * written.
+	 * 
+	 * @param channel
+	 *            the target channel
+	 * @param file
+	 *            the source file
+	 * @param position
+	 *            the position in the file at which the transfer starts
+	 * @param count
+	 *            the number of bytes to transfer
+	 * @throws Exception
+	 */
+	protected abstract void transfer(T channel, FileChannel file, long position, long count)
+			throws Exception;
+
 	/**
 	 * 
 	 * @param channel
@@ -113,18 +287,37 @@ public abstract class ClientManager<T extends Channel> implements Runnable {
 	 * 
 	 * @param channel
 	 * @param buffers
+	 * @param offset
+	 *            the index of the first buffer to write
+	 * @param length
+	 *            the number of buffers to write
 	 * @param total
+	 *            the number of bytes to write
 	 * @throws Exception
 	 */
-	public abstract void write(final T channel, final ByteBuffer[] buffers, long total)
-			throws Exception;
+	public abstract void write(final T channel, final ByteBuffer[] buffers, int offset,
+			int length, long total) throws Exception;
+
+	/**
+	 * Hand over the read buffer, e.g. the one used for the session
+	 * initialization, to the client manager. The buffer must come from the
+	 * read buffer pool and be ready for the next read, the bytes it already
+	 * holds are taken as the beginning of the requests. It is released when
+	 * the client manager is closed.
+	 * 
+	 * @param readBuffer
+	 *            the read buffer to use
+	 */
+	public void setReadBuffer(ByteBuffer readBuffer) {
+		this.readBuffer = readBuffer;
+	}
 
 	/**
 	 * Getter for sessionId
 	 * 
 	 * @return the sessionId
 	 */
-	public String getSessionId() {
+	public SessionId getSessionId() {
 		return this.sessionId;
 	}
 
@@ -134,8 +327,65 @@ public abstract class ClientManager<T extends Channel> implements Runnable {
 	 * @param sessionId
 	 *            the sessionId to set
 	 */
-	public void setSessionId(String sessionId) {
+	public void setSessionId(SessionId sessionId) {
 		this.sessionId = sessionId;
 	}
 
+	/**
+	 * Getter for channel
+	 * 
+	 * @return the channel of the connection
+	 */
+	public T getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * Getter for timeout
+	 * 
+	 * @return the timeout of the connection
+	 */
+	public Timeout getTimeout() {
+		return this.timeout;
+	}
+
+	/**
+	 * Getter for session
+	 * 
+	 * @return the session
+	 */
+	public Session getSession() {
+		return this.session;
+	}
+
+	/**
+	 * Setter for the session, also sets the session ID
+	 * 
+	 * @param session
+	 *            the session to set
+	 */
+	public void setSession(Session session) {
+		this.session = session;
+		this.sessionId = session.getId();
+	}
+
+	/**
+	 * Getter for responseMode
+	 * 
+	 * @return the responseMode
+	 */
+	public ResponseMode getResponseMode() {
+		return this.responseMode;
+	}
+
+	/**
+	 * Setter for the responseMode
+	 * 
+	 * @param responseMode
+	 *            the responseMode to set
+	 */
+	public void setResponseMode(ResponseMode responseMode) {
+		this.responseMode = responseMode;
+	}
+
 }
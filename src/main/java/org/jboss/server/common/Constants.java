@@ -0,0 +1,81 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code Constants}
+ * 
+ * Created on Oct 27, 2012 at 5:02:13 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class Constants {
+
+	/**
+	 * The end of line marker
+	 */
+	public static final String CRLF = "\r\n";
+	/**
+	 * The default server port
+	 */
+	public static final int DEFAULT_SERVER_PORT = 8080;
+	/**
+	 * The default size of the write buffers
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+	/**
+	 * The size of the chunk buffer used to stream a file
+	 */
+	public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+	/**
+	 * The default size of the socket send buffer
+	 */
+	public static final int DEFAULT_SO_SNDBUF = 8 * 1024;
+	/**
+	 * The default timeout for read/write operations in flight. A connection
+	 * waiting for its next request is bounded by the idle timeout of the
+	 * sessions instead (see {@link SessionRegistry})
+	 */
+	public static final long DEFAULT_TIMEOUT = 20;
+	/**
+	 * The default time unit for read/write operations
+	 */
+	public static final TimeUnit DEFAULT_TIME_UNIT = TimeUnit.SECONDS;
+	/**
+	 * The timeout for the session initialization, in
+	 * {@link #DEFAULT_TIME_UNIT}
+	 */
+	public static final long HANDSHAKE_TIMEOUT = 10;
+
+	/**
+	 * Create a new instance of {@code Constants}
+	 */
+	private Constants() {
+		super();
+	}
+}
@@ -0,0 +1,118 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@code ContentEncoding}
+ * <p>
+ * The encodings a client may accept for its responses
+ * </p>
+ * 
+ * Created on Nov 8, 2012 at 3:17:05 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public enum ContentEncoding {
+
+	/**
+	 * The raw content
+	 */
+	IDENTITY("identity"),
+	/**
+	 * The content compressed with gzip
+	 */
+	GZIP("gzip"),
+	/**
+	 * The content compressed with deflate (zlib format)
+	 */
+	DEFLATE("deflate");
+
+	private static final ContentEncoding VALUES[] = values();
+
+	private final String value;
+	private final byte bytes[];
+
+	/**
+	 * Create a new instance of {@code ContentEncoding}
+	 * 
+	 * @param value
+	 */
+	private ContentEncoding(String value) {
+		this.value = value;
+		this.bytes = value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @return the bit of the encoding in a mask of accepted encodings
+	 */
+	public int mask() {
+		return 1 << ordinal();
+	}
+
+	/**
+	 * Find the encoding named by {@code buffer[from, to)}, ignoring case
+	 * 
+	 * @param buffer
+	 * @param from
+	 * @param to
+	 * @return the encoding or {@code null} if the bytes do not name an
+	 *         encoding
+	 */
+	public static ContentEncoding parse(ByteBuffer buffer, int from, int to) {
+		for (ContentEncoding encoding : VALUES) {
+			if (encoding.bytes.length == to - from && encoding.matches(buffer, from)) {
+				return encoding;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return {@code true} if the bytes starting at {@code from} are the name
+	 *         of the encoding, ignoring case
+	 */
+	private boolean matches(ByteBuffer buffer, int from) {
+		for (int i = 0; i < this.bytes.length; i++) {
+			if ((buffer.get(from + i) | 0x20) != this.bytes[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Enum#toString()
+	 */
+	@Override
+	public String toString() {
+		return this.value;
+	}
+}
@@ -0,0 +1,310 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@code DatagramReply}
+ * <p>
+ * Splits the responses to a request datagram into datagrams, for the UDP
+ * mode of the engines. A request datagram holds one or more request lines,
+ * as on a connection but without any handshake. Each batch of responses
+ * (see {@link Pipeline}) is sent as a reply: a header datagram
+ * </p>
+ * 
+ * <pre>
+ * Datagrams: &lt;count&gt;\r\nContent-Length: &lt;length&gt;\r\n\r\n
+ * </pre>
+ * <p>
+ * followed by <tt>count</tt> datagrams, in sequence, whose concatenation is
+ * the <tt>length</tt> bytes a connection would receive for the batch. The
+ * datagrams are at most {@link #getDatagramSize()} bytes.
+ * </p>
+ * <p>
+ * The datagrams are the views of the batch on the shared payloads, narrowed
+ * to the datagram size, so the payloads are sent without being copied. Since
+ * neither the unconnected datagram channels nor XNIO can gather a header and
+ * a view into a datagram without copying, the datagrams carry no sequence
+ * number: the client concatenates them in the order they arrive and detects
+ * a loss with the count and the length of the header. Only the responses
+ * sent from the file, i.e. the files too large to be held in memory or the
+ * stream mode, are read by chunks into a buffer of the reply.
+ * </p>
+ * <p>
+ * A reply is used by one thread at a time:
+ * </p>
+ * 
+ * <pre>
+ * reply.receive(datagram);
+ * while (reply.prepare(mode)) {
+ * 	ByteBuffer d;
+ * 	while ((d = reply.next()) != null) {
+ * 		send(d, client); // the whole datagram
+ * 	}
+ * }
+ * </pre>
+ * 
+ * Created on Dec 10, 2012 at 10:41:18 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class DatagramReply {
+
+	/**
+	 * The system property giving the maximum size of the datagrams
+	 */
+	public static final String DATAGRAM_SIZE_PROPERTY = "org.jboss.server.udp.datagram";
+	/**
+	 * The default maximum size of the datagrams, an Ethernet frame without
+	 * the IP and UDP headers
+	 */
+	public static final int DEFAULT_DATAGRAM_SIZE = 1472;
+	private static final int HEADER_SIZE = 64;
+
+	private final int datagramSize;
+	private final Pipeline pipeline = new Pipeline();
+	private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+	private final ByteBuffer trailer = Payload.trailer();
+	private ByteBuffer request;
+	private ByteBuffer buffers[];
+	private int offset;
+	private int count;
+	private FileChannel file;
+	private long position;
+	private long end;
+	private ByteBuffer chunk;
+	/**
+	 * The buffer of the last datagram and its limit before it was narrowed
+	 */
+	private ByteBuffer current;
+	private int limit;
+	private int stage;
+
+	/**
+	 * Create a new instance of {@code DatagramReply} with the datagram size
+	 * given by {@link #DATAGRAM_SIZE_PROPERTY}
+	 */
+	public DatagramReply() {
+		this(Integer.getInteger(DATAGRAM_SIZE_PROPERTY, DEFAULT_DATAGRAM_SIZE));
+	}
+
+	/**
+	 * Create a new instance of {@code DatagramReply}
+	 * 
+	 * @param datagramSize
+	 *            the maximum size of the datagrams
+	 */
+	public DatagramReply(int datagramSize) {
+		if (datagramSize < HEADER_SIZE) {
+			throw new IllegalArgumentException("Datagrams too small: " + datagramSize);
+		}
+		this.datagramSize = datagramSize;
+	}
+
+	/**
+	 * Take a request datagram. A last request line without end of line is
+	 * taken as complete, an overlong one is truncated.
+	 * 
+	 * @param datagram
+	 *            the request datagram, flipped, kept until the last reply is
+	 *            prepared
+	 */
+	public void receive(ByteBuffer datagram) {
+		this.pipeline.reset();
+		int last = datagram.limit() - 1;
+		if (last >= datagram.position() && datagram.get(last) != '\n') {
+			if (datagram.limit() < datagram.capacity()) {
+				datagram.limit(last + 2);
+				last++;
+			}
+			datagram.put(last, (byte) '\n');
+		}
+		this.request = datagram;
+	}
+
+	/**
+	 * Prepare the reply to the next batch of the request datagram
+	 * 
+	 * @param mode
+	 *            the way the payloads are sent
+	 * @return {@code true} if there is a reply to send, {@code false} once
+	 *         all the requests of the datagram are answered
+	 * @throws IOException
+	 *             if a payload is not resident and cannot be loaded
+	 */
+	public boolean prepare(ResponseMode mode) throws IOException {
+		if (this.request == null || this.pipeline.parse(this.request, mode) == 0) {
+			this.request = null;
+			return false;
+		}
+		this.buffers = this.pipeline.getBuffers();
+		this.offset = 0;
+		this.count = this.pipeline.getBufferCount();
+		long length = 0;
+		long datagrams = 0;
+		for (int i = 0; i < this.count; i++) {
+			length += this.buffers[i].remaining();
+			datagrams += datagrams(this.buffers[i].remaining());
+		}
+		this.file = null;
+		Response response = this.pipeline.getFileResponse();
+		if (response != null) {
+			this.file = response.getPayload().getFile();
+			this.position = response.getFilePosition();
+			this.end = this.position + response.getFileCount();
+			length += response.getHeader().remaining() + response.getFileCount() + 2;
+			datagrams += datagrams(response.getHeader().remaining())
+					+ datagrams(response.getFileCount()) + 1;
+		}
+		this.header.clear();
+		this.header.put(("Datagrams: " + datagrams + "\r\nContent-Length: " + length + "\r\n\r\n")
+				.getBytes(StandardCharsets.US_ASCII));
+		this.header.flip();
+		this.current = null;
+		this.stage = 0;
+		return true;
+	}
+
+	/**
+	 * @return the next datagram of the reply, to be sent whole before the
+	 *         next call, or {@code null} once the reply is sent
+	 * @throws IOException
+	 *             if the file of a response cannot be read
+	 */
+	public ByteBuffer next() throws IOException {
+		if (this.current != null) {
+			// Widen the view sent back to its limit
+			this.current.limit(this.limit);
+			this.current = null;
+		}
+		switch (this.stage) {
+			case 0:
+				this.stage = 1;
+				return this.header;
+			case 1:
+				while (this.offset < this.count) {
+					ByteBuffer buffer = this.buffers[this.offset];
+					if (buffer.hasRemaining()) {
+						return narrow(buffer);
+					}
+					this.offset++;
+				}
+				if (this.file == null) {
+					break;
+				}
+				this.stage = 2;
+				return nextFileDatagram();
+			case 2:
+				return nextFileDatagram();
+			default:
+				break;
+		}
+		this.buffers = null;
+		this.file = null;
+		this.stage = 4;
+		return null;
+	}
+
+	/**
+	 * @return the next datagram of the file response: its range header, its
+	 *         content, then the trailer
+	 * @throws IOException
+	 *             if the file cannot be read
+	 */
+	private ByteBuffer nextFileDatagram() throws IOException {
+		ByteBuffer fileHeader = this.pipeline.getFileResponse().getHeader();
+		if (fileHeader.hasRemaining()) {
+			return narrow(fileHeader);
+		}
+		if (this.position < this.end) {
+			return read();
+		}
+		this.stage = 3;
+		this.trailer.rewind();
+		return this.trailer;
+	}
+
+	/**
+	 * Narrow the buffer to the next datagram, its limit is restored by the
+	 * next call of {@link #next()}
+	 * 
+	 * @param buffer
+	 * @return the buffer
+	 */
+	private ByteBuffer narrow(ByteBuffer buffer) {
+		this.current = buffer;
+		this.limit = buffer.limit();
+		if (buffer.remaining() > this.datagramSize) {
+			buffer.limit(buffer.position() + this.datagramSize);
+		}
+		return buffer;
+	}
+
+	/**
+	 * Read the next datagram of the file
+	 * 
+	 * @return the chunk buffer
+	 * @throws IOException
+	 */
+	private ByteBuffer read() throws IOException {
+		if (this.chunk == null) {
+			this.chunk = ByteBuffer.allocateDirect(this.datagramSize);
+		}
+		this.chunk.clear();
+		if (this.end - this.position < this.chunk.capacity()) {
+			this.chunk.limit((int) (this.end - this.position));
+		}
+		while (this.chunk.hasRemaining()) {
+			int n = this.file.read(this.chunk, this.position);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of file at " + this.position);
+			}
+			this.position += n;
+		}
+		this.chunk.flip();
+		return this.chunk;
+	}
+
+	/**
+	 * @param length
+	 * @return the number of datagrams needed to send {@code length} bytes
+	 */
+	private long datagrams(long length) {
+		return (length + this.datagramSize - 1) / this.datagramSize;
+	}
+
+	/**
+	 * @return the maximum size of the datagrams
+	 */
+	public int getDatagramSize() {
+		return this.datagramSize;
+	}
+}
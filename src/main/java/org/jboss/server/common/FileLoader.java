@@ -27,14 +27,24 @@ package org.jboss.server.common;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.jboss.logging.Logger;
 
 /**
  * {@code FileLoader}
+ * <p>
+ * Loads the payload catalog once, from the directory given by the
+ * {@value #DATA_DIR_PROPERTY} system property (default {@code data}), and
+ * exposes it to all the connections. The content of the files is kept in a
+ * {@link PayloadCache} bounded by the {@value #CACHE_SIZE_PROPERTY} system
+ * property (in bytes, default 256 MB) and, unless
+ * {@value #WATCH_PROPERTY} is {@code false}, reloaded when the files change.
+ * </p>
+ * <p>
+ * The payloads are immutable, so the connections get views on the shared
+ * content (see {@link Payload#duplicate()}) instead of private copies and no
+ * lock is needed to hand them out.
+ * </p>
  * 
  * Created on Oct 26, 2012 at 2:39:38 PM
  * 
@@ -42,9 +52,24 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public final class FileLoader {
 
-	private static long fileLength;
-	private static ByteBuffer data[];
-	private static AtomicBoolean intialized = new AtomicBoolean();
+	/**
+	 * The system property giving the directory of the payload files
+	 */
+	public static final String DATA_DIR_PROPERTY = "org.jboss.server.data.dir";
+	/**
+	 * The system property giving the name of the file served by default
+	 */
+	public static final String DEFAULT_FILE_PROPERTY = "org.jboss.server.data.default";
+	/**
+	 * The system property giving the payload cache capacity, in bytes
+	 */
+	public static final String CACHE_SIZE_PROPERTY = "org.jboss.server.cache.size";
+	/**
+	 * The system property enabling the reload of the changed files
+	 */
+	public static final String WATCH_PROPERTY = "org.jboss.server.cache.watch";
+
+	private static final Logger logger = Logger.getLogger(FileLoader.class);
 
 	/**
 	 * Create a new instance of {@code FileLoader}
@@ -54,65 +79,50 @@ public final class FileLoader {
 	}
 
 	/**
-	 * 
-	 * @return
+	 * {@code Holder}
+	 * <p>
+	 * Lazy holder of the shared catalog, the class loader guarantees that the
+	 * catalog is created exactly once and safely published to all threads.
+	 * </p>
 	 */
-	public static ByteBuffer[] cloneData() {
-		if (data == null) {
-			try {
-				init();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-		}
-		ByteBuffer[] buffers = new ByteBuffer[data.length];
-		synchronized (data) {
-			for (int i = 0; i < data.length; i++) {
-				buffers[i] = ByteBuffer.allocateDirect(data[i].capacity());
-				data[i].flip();
-				buffers[i].put(data[i]);
-			}
-		}
+	private static final class Holder {
+		private static final PayloadCatalog CATALOG = load();
+	}
 
-		return buffers;
+	/**
+	 * @return the shared payload catalog
+	 */
+	public static PayloadCatalog getCatalog() {
+		return Holder.CATALOG;
 	}
 
 	/**
-	 * 
+	 * @return the payload served by default
 	 * @throws IOException
+	 *             if the payload is not resident and cannot be loaded
 	 */
-	private static synchronized void init() throws IOException {
-		if(intialized.getAndSet(true)) {
-			return;
-		}
-				
-		File file = new File("data" + File.separatorChar + "file.txt");
-		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
-			FileChannel fileChannel = raf.getChannel();
-			fileLength = fileChannel.size() + Constants.CRLF.length();
-			double tmp = (double) fileLength / Constants.DEFAULT_BUFFER_SIZE;
-			int length = (int) Math.ceil(tmp);
-			data = new ByteBuffer[length];
-
-			for (int i = 0; i < data.length - 1; i++) {
-				data[i] = ByteBuffer.allocateDirect(Constants.DEFAULT_BUFFER_SIZE);
-			}
-
-			int size = (int) (fileLength % Constants.DEFAULT_BUFFER_SIZE);
-			data[data.length - 1] = ByteBuffer.allocateDirect(size);
-			// Read the whole file in one pass
-			fileChannel.read(data);
-		}
-		// Put the <i>CRLF</i> chars at the end of the last byte buffer to mark
-		// the end of data
-		data[data.length - 1].put(Constants.CRLF.getBytes());
+	public static Payload getPayload() throws IOException {
+		return Holder.CATALOG.getDefaultPayload();
 	}
 
 	/**
-	 * @return the fileLength
+	 * Create the catalog of the data directory
+	 * 
+	 * @return the loaded catalog
 	 */
-	public static long getFileLength() {
-		return fileLength;
+	private static PayloadCatalog load() {
+		File dir = new File(System.getProperty(DATA_DIR_PROPERTY, "data"));
+		long capacity = Long.getLong(CACHE_SIZE_PROPERTY, 256L * 1024 * 1024);
+		try {
+			PayloadCatalog catalog = PayloadCatalog.load(dir,
+					System.getProperty(DEFAULT_FILE_PROPERTY, "file.txt"), new PayloadCache(capacity));
+			if (Boolean.parseBoolean(System.getProperty(WATCH_PROPERTY, "true"))) {
+				PayloadWatcher.start(catalog);
+			}
+			logger.infov("Payload catalog of {0} loaded: {1}", dir, catalog.getCache());
+			return catalog;
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to load the payloads from " + dir, e);
+		}
 	}
-
 }
@@ -0,0 +1,478 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+import org.jboss.logging.Logger;
+
+/**
+ * {@code HashedWheelTimer}
+ * <p>
+ * Shared timer of the connection deadlines (handshake, read and write). The
+ * time is cut into ticks of {@value #TICK_PROPERTY} milliseconds (default
+ * 100) and the timeouts are hashed by tick into the {@value #WHEEL_SIZE}
+ * buckets of the wheel; a single thread walks the wheel, one bucket per tick.
+ * </p>
+ * <p>
+ * Each connection owns a single {@link Timeout}, created once and re-armed
+ * before each I/O operation. Re-arming a timeout already in the wheel with a
+ * later deadline only moves its deadline: the timeout is moved to the right
+ * bucket when the timer reaches its current one, and dropped there if it
+ * was disarmed in the meantime. An earlier deadline moves the timeout to
+ * its bucket right away, so that it does not expire up to a turn of the
+ * wheel late. Arming, disarming and expiring are thus O(1) and do not
+ * create any object, whatever the number of connections, where a scheduled
+ * executor would queue a new task in its heap for each operation.
+ * </p>
+ * <p>
+ * The deadlines are checked with the precision of a tick, and expired tasks
+ * run on the timer thread: they must be short, e.g. close a channel.
+ * </p>
+ * 
+ * Created on Nov 20, 2012 at 9:12:37 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class HashedWheelTimer {
+
+	/**
+	 * The system property giving the duration of a tick, in milliseconds
+	 */
+	public static final String TICK_PROPERTY = "org.jboss.server.timer.tick";
+	/**
+	 * The number of buckets of the wheel
+	 */
+	public static final int WHEEL_SIZE = 512;
+	private static final Logger logger = Logger.getLogger(HashedWheelTimer.class);
+
+	private final Bucket wheel[] = new Bucket[WHEEL_SIZE];
+	private final long tickNanos;
+	private final long origin;
+	/**
+	 * The last tick processed by the timer thread
+	 */
+	private volatile long tick;
+
+	/**
+	 * {@code Holder}
+	 * <p>
+	 * Lazy holder of the shared timer
+	 * </p>
+	 */
+	private static final class Holder {
+		private static final HashedWheelTimer INSTANCE = create();
+	}
+
+	/**
+	 * {@code Bucket}
+	 * <p>
+	 * The timeouts hashed to a bucket form a doubly linked stack, linked
+	 * through the timeouts themselves so that a timeout can be moved to an
+	 * earlier bucket
+	 * </p>
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		/**
+		 * The last tick for which the bucket was drained
+		 */
+		private long drained;
+	}
+
+	/**
+	 * {@code Timeout}
+	 * <p>
+	 * A reusable deadline running a task when it expires. A timeout is in
+	 * at most one bucket of the wheel at a time.
+	 * </p>
+	 */
+	public static final class Timeout {
+
+		private static final AtomicLongFieldUpdater<Timeout> DEADLINE = AtomicLongFieldUpdater
+				.newUpdater(Timeout.class, "deadline");
+		private static final AtomicIntegerFieldUpdater<Timeout> QUEUED = AtomicIntegerFieldUpdater
+				.newUpdater(Timeout.class, "queued");
+
+		private final HashedWheelTimer timer;
+		private final Runnable task;
+		/**
+		 * The deadline, relative to the origin of the timer, or {@code 0} if
+		 * the timeout is disarmed
+		 */
+		private volatile long deadline;
+		/**
+		 * {@code 1} while the timeout is in a bucket of the wheel
+		 */
+		private volatile int queued;
+		/**
+		 * The bucket holding the timeout, {@code null} while the timer
+		 * processes it. The links and the tick are guarded by the bucket.
+		 */
+		private volatile Bucket bucket;
+		private long tick;
+		private Timeout next;
+		private Timeout prev;
+
+		/**
+		 * Create a new instance of {@code Timeout}
+		 * 
+		 * @param timer
+		 * @param task
+		 */
+		private Timeout(HashedWheelTimer timer, Runnable task) {
+			this.timer = timer;
+			this.task = task;
+		}
+
+		/**
+		 * Arm the timeout, replacing the previous deadline if any. A timeout
+		 * already in the wheel is moved to the bucket of the new deadline if
+		 * it comes earlier, a later deadline is handled when the timer
+		 * reaches the current bucket.
+		 * 
+		 * @param delay
+		 *            the delay after which the task runs
+		 * @param unit
+		 *            the time unit of the delay
+		 */
+		public void arm(long delay, TimeUnit unit) {
+			// Zero means disarmed, the origin is in the past anyway
+			long d = Math.max(1, System.nanoTime() - this.timer.origin + unit.toNanos(delay));
+			this.deadline = d;
+			if (QUEUED.compareAndSet(this, 0, 1)) {
+				this.timer.schedule(this, d);
+			} else if (this.timer.unlink(this, d)) {
+				this.timer.schedule(this, d);
+			}
+		}
+
+		/**
+		 * Disarm the timeout. The task does not run unless it is already
+		 * running.
+		 */
+		public void disarm() {
+			this.deadline = 0;
+		}
+
+		/**
+		 * Disarm the timeout and tell whether the task was prevented from
+		 * running. Unlike {@link #disarm()}, the outcome is exact: once this
+		 * method returned {@code true} the task of the current deadline will
+		 * never run, so the owner of the timeout can safely be reused.
+		 * 
+		 * @return {@code true} if the timeout was armed, {@code false} if it
+		 *         was not armed or if its task already runs or ran
+		 */
+		public boolean cancel() {
+			for (;;) {
+				long d = this.deadline;
+				if (d == 0) {
+					return false;
+				}
+				if (DEADLINE.compareAndSet(this, d, 0)) {
+					return true;
+				}
+			}
+		}
+
+		/**
+		 * @return {@code true} if the timeout is armed
+		 */
+		public boolean isArmed() {
+			return this.deadline != 0;
+		}
+	}
+
+	/**
+	 * Create a new instance of {@code HashedWheelTimer}
+	 * 
+	 * @param tick
+	 *            the duration of a tick
+	 * @param unit
+	 *            the time unit of the tick
+	 */
+	HashedWheelTimer(long tick, TimeUnit unit) {
+		this.tickNanos = Math.max(1, unit.toNanos(tick));
+		this.origin = System.nanoTime();
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			this.wheel[i] = new Bucket();
+		}
+	}
+
+	/**
+	 * Create the shared timer and start its thread
+	 * 
+	 * @return the shared timer
+	 */
+	private static HashedWheelTimer create() {
+		long tick = Long.getLong(TICK_PROPERTY, 100);
+		final HashedWheelTimer timer = new HashedWheelTimer(tick, TimeUnit.MILLISECONDS);
+		Thread thread = new Thread(new Runnable() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.lang.Runnable#run()
+			 */
+			@Override
+			public void run() {
+				timer.loop();
+			}
+		}, "wheel-timer");
+		thread.setDaemon(true);
+		thread.start();
+		return timer;
+	}
+
+	/**
+	 * @return the shared timer
+	 */
+	public static HashedWheelTimer getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Create a new timeout, initially disarmed
+	 * 
+	 * @param task
+	 *            the task to run when the timeout expires
+	 * @return a new timeout
+	 */
+	public Timeout newTimeout(Runnable task) {
+		return new Timeout(this, task);
+	}
+
+	/**
+	 * Create a new timeout closing the channel when it expires
+	 * 
+	 * @param channel
+	 *            the channel of the connection
+	 * @return a new timeout
+	 */
+	public Timeout newTimeout(final Closeable channel) {
+		return newTimeout(new Runnable() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.lang.Runnable#run()
+			 */
+			@Override
+			public void run() {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// NOPE
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param deadline
+	 * @return the first tick still to be processed at which the deadline is
+	 *         due
+	 */
+	private long tickOf(long deadline) {
+		return Math.max(deadline / this.tickNanos, this.tick + 1);
+	}
+
+	/**
+	 * Put the timeout in the bucket of its deadline, or in the first bucket
+	 * still to be processed if the timer already passed it. The deadline is
+	 * read again once the timeout is in the wheel: a deadline shortened while
+	 * the timeout was out of the wheel could not be moved by
+	 * {@link Timeout#arm(long, TimeUnit)}.
+	 * 
+	 * @param timeout
+	 * @param deadline
+	 */
+	private void schedule(Timeout timeout, long deadline) {
+		do {
+			long t = tickOf(deadline);
+			for (;;) {
+				Bucket bucket = this.wheel[(int) (t & (WHEEL_SIZE - 1))];
+				synchronized (bucket) {
+					if (bucket.drained < t) {
+						timeout.prev = null;
+						timeout.next = bucket.head;
+						if (bucket.head != null) {
+							bucket.head.prev = timeout;
+						}
+						bucket.head = timeout;
+						timeout.tick = t;
+						timeout.bucket = bucket;
+						break;
+					}
+				}
+				// The timer drained the bucket meanwhile, try the next one
+				t++;
+			}
+			deadline = timeout.deadline;
+		} while (deadline != 0 && unlink(timeout, deadline));
+	}
+
+	/**
+	 * Take the timeout out of its bucket if the deadline is due at an earlier
+	 * tick
+	 * 
+	 * @param timeout
+	 * @param deadline
+	 *            the new deadline of the timeout
+	 * @return {@code true} if the timeout was taken out of the wheel and must
+	 *         be scheduled again by the caller, {@code false} if it is not in
+	 *         a bucket or already in time
+	 */
+	private boolean unlink(Timeout timeout, long deadline) {
+		for (;;) {
+			Bucket bucket = timeout.bucket;
+			if (bucket == null) {
+				// Processed by the timer, which reads the deadline again
+				return false;
+			}
+			long t = tickOf(deadline);
+			synchronized (bucket) {
+				if (timeout.bucket != bucket) {
+					// Moved meanwhile
+					continue;
+				}
+				if (timeout.tick <= t) {
+					return false;
+				}
+				if (timeout.prev == null) {
+					bucket.head = timeout.next;
+				} else {
+					timeout.prev.next = timeout.next;
+				}
+				if (timeout.next != null) {
+					timeout.next.prev = timeout.prev;
+				}
+				timeout.next = null;
+				timeout.prev = null;
+				timeout.bucket = null;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Process all the ticks elapsed since the last call
+	 * 
+	 * @param now
+	 *            the current time, relative to the origin of the timer
+	 */
+	void advance(long now) {
+		long current = now / this.tickNanos;
+		for (long t = this.tick + 1; t <= current; t++) {
+			Bucket bucket = this.wheel[(int) (t & (WHEEL_SIZE - 1))];
+			Timeout timeout;
+			synchronized (bucket) {
+				timeout = bucket.head;
+				bucket.head = null;
+				bucket.drained = t;
+				// Before the bucket is released, the timeouts moved to the
+				// next ticks then go past this one
+				this.tick = t;
+				for (Timeout tm = timeout; tm != null; tm = tm.next) {
+					tm.bucket = null;
+				}
+			}
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				timeout.next = null;
+				timeout.prev = null;
+				expire(timeout, now);
+				timeout = next;
+			}
+		}
+	}
+
+	/**
+	 * Run the task of the timeout taken out of the wheel if it is due, or
+	 * put it back in the bucket of its current deadline
+	 * 
+	 * @param timeout
+	 * @param now
+	 */
+	private void expire(Timeout timeout, long now) {
+		long deadline = timeout.deadline;
+		if (deadline == 0) {
+			dequeue(timeout);
+		} else if (deadline > now) {
+			schedule(timeout, deadline);
+		} else if (Timeout.DEADLINE.compareAndSet(timeout, deadline, 0)) {
+			dequeue(timeout);
+			try {
+				timeout.task.run();
+			} catch (Throwable th) {
+				logger.error("Timeout task failure", th);
+			}
+		} else {
+			// Re-armed meanwhile
+			schedule(timeout, Math.max(timeout.deadline, now));
+		}
+	}
+
+	/**
+	 * Take the disarmed or expired timeout out of the wheel. A timeout armed
+	 * while it is still marked as queued is not scheduled by
+	 * {@link Timeout#arm(long, TimeUnit)}, so the deadline is read again once
+	 * the mark is cleared and the timeout is scheduled here if it was armed
+	 * meanwhile.
+	 * 
+	 * @param timeout
+	 */
+	private void dequeue(Timeout timeout) {
+		timeout.queued = 0;
+		long deadline = timeout.deadline;
+		if (deadline != 0 && Timeout.QUEUED.compareAndSet(timeout, 0, 1)) {
+			schedule(timeout, deadline);
+		}
+	}
+
+	/**
+	 * The timer thread, processing the wheel tick after tick
+	 */
+	private void loop() {
+		while (!Thread.currentThread().isInterrupted()) {
+			long now = System.nanoTime() - this.origin;
+			long next = (now / this.tickNanos + 1) * this.tickNanos;
+			try {
+				TimeUnit.NANOSECONDS.sleep(next - now);
+				advance(System.nanoTime() - this.origin);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (Throwable th) {
+				logger.error("Timer failure", th);
+			}
+		}
+	}
+}
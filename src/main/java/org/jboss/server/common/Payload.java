@@ -0,0 +1,498 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * {@code Payload}
+ * <p>
+ * An immutable response body shared by all the connections. The content is
+ * held in read-only buffers which are never written nor moved once the
+ * payload is built, each connection gets its own views on them (see
+ * {@link #duplicate()}) carrying their own position and limit. A view costs a
+ * few object headers, the content itself is never copied.
+ * </p>
+ * <p>
+ * The content is the file followed by the {@code CRLF} trailer marking the end
+ * of the response. When the payload was loaded from a file, the file channel
+ * is kept open so that the content can also be streamed straight from disk.
+ * The channel is counted by its users, the cache and the connections sending
+ * the file, and closed by the last one once the cache retired the payload.
+ * </p>
+ * <p>
+ * A payload built by {@link #build(String, ByteBuffer, FileChannel)} also
+ * carries one variant per {@link ContentEncoding}, compressed once when the
+ * payload is built. A variant starts with a header giving its encoding and
+ * the length of its body, e.g.
+ * <tt>Content-Encoding: gzip\r\nContent-Length: 1234\r\n\r\n</tt>, followed
+ * by the encoded body and the trailer. The clients which negotiate an
+ * encoding get a variant (see {@link #negotiate(int)}), the others get the
+ * raw content without any header.
+ * </p>
+ * <p>
+ * Files too large to be held in memory get a streamed payload (see
+ * {@link #stream(String, FileChannel, long)}) which only keeps the file
+ * channel, its content is read from disk by chunks while it is written.
+ * </p>
+ * 
+ * Created on Nov 2, 2012 at 10:14:37 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class Payload {
+
+	private static final ByteBuffer TRAILER = ByteBuffer.wrap(Constants.CRLF.getBytes())
+			.asReadOnlyBuffer();
+
+	private final String name;
+	private final ByteBuffer buffers[];
+	private final long length;
+	private final FileChannel file;
+	private final long fileLength;
+	private final ContentEncoding encoding;
+	private final Payload variants[];
+	private final long memorySize;
+	private final boolean streamed;
+	private volatile boolean retired;
+	// The users of the file channel, the cache holds the first one
+	private final AtomicInteger fileUsers = new AtomicInteger(1);
+
+	/**
+	 * Create a new instance of {@code Payload}
+	 * 
+	 * @param name
+	 *            the payload name
+	 * @param buffers
+	 *            the payload content, each buffer must be positioned at the
+	 *            beginning of its data
+	 */
+	public Payload(String name, ByteBuffer buffers[]) {
+		this(name, buffers, null, 0);
+	}
+
+	/**
+	 * Create a new instance of {@code Payload}
+	 * 
+	 * @param name
+	 *            the payload name
+	 * @param buffers
+	 *            the payload content, each buffer must be positioned at the
+	 *            beginning of its data
+	 * @param file
+	 *            the file from which the content was loaded
+	 * @param fileLength
+	 *            the number of bytes of the file
+	 */
+	public Payload(String name, ByteBuffer buffers[], FileChannel file, long fileLength) {
+		this(name, ContentEncoding.IDENTITY, buffers, file, fileLength, null, fileLength, false);
+	}
+
+	/**
+	 * Create a new instance of {@code Payload}
+	 * 
+	 * @param name
+	 *            the payload name
+	 * @param encoding
+	 *            the encoding of the content
+	 * @param buffers
+	 *            the payload content, each buffer must be positioned at the
+	 *            beginning of its data
+	 * @param file
+	 *            the file from which the content was loaded
+	 * @param fileLength
+	 *            the number of bytes of the file
+	 * @param variants
+	 *            the variants of the payload indexed by encoding, or
+	 *            {@code null}
+	 * @param memorySize
+	 *            the number of bytes of memory held by the payload and its
+	 *            variants
+	 * @param streamed
+	 *            {@code true} if the file content is not held in the buffers
+	 *            but read from the file while being written
+	 */
+	private Payload(String name, ContentEncoding encoding, ByteBuffer buffers[],
+			FileChannel file, long fileLength, Payload variants[], long memorySize,
+			boolean streamed) {
+		this.name = name;
+		this.encoding = encoding;
+		this.file = file;
+		this.fileLength = fileLength;
+		this.variants = variants;
+		this.memorySize = memorySize;
+		this.streamed = streamed;
+		this.buffers = new ByteBuffer[buffers.length];
+		long total = streamed ? fileLength : 0;
+		for (int i = 0; i < buffers.length; i++) {
+			this.buffers[i] = buffers[i].asReadOnlyBuffer();
+			total += this.buffers[i].remaining();
+		}
+		this.length = total;
+	}
+
+	/**
+	 * Create a streamed payload, whose content is read from the file while it
+	 * is written. Its only buffer is the trailer.
+	 * 
+	 * @param name
+	 *            the payload name
+	 * @param file
+	 *            the file holding the content
+	 * @param fileLength
+	 *            the number of bytes of the file
+	 * @return a new streamed payload
+	 */
+	public static Payload stream(String name, FileChannel file, long fileLength) {
+		return new Payload(name, ContentEncoding.IDENTITY, new ByteBuffer[] { trailer() }, file,
+				fileLength, null, 0, true);
+	}
+
+	/**
+	 * Build the payload of a file and its encoded variants. The content is
+	 * split into views of {@link Constants#DEFAULT_BUFFER_SIZE} bytes followed
+	 * by the trailer.
+	 * 
+	 * @param name
+	 *            the payload name
+	 * @param content
+	 *            the file content, between position and limit
+	 * @param file
+	 *            the file from which the content was loaded
+	 * @return a new payload
+	 * @throws IOException
+	 *             if the content cannot be compressed
+	 */
+	public static Payload build(String name, ByteBuffer content, FileChannel file)
+			throws IOException {
+		ByteBuffer body[] = split(content);
+		int length = content.remaining();
+		Payload variants[] = new Payload[ContentEncoding.values().length];
+		long memorySize = length;
+		for (ContentEncoding encoding : ContentEncoding.values()) {
+			ByteBuffer encoded[] = body;
+			if (encoding != ContentEncoding.IDENTITY) {
+				ByteBuffer compressed = compress(content, encoding);
+				memorySize += compressed.remaining();
+				encoded = split(compressed);
+			}
+			variants[encoding.ordinal()] = variant(name, encoding, encoded);
+		}
+		ByteBuffer buffers[] = new ByteBuffer[body.length + 1];
+		System.arraycopy(body, 0, buffers, 0, body.length);
+		// Put the <i>CRLF</i> chars after the file content to mark the end of
+		// data
+		buffers[body.length] = trailer();
+
+		return new Payload(name, ContentEncoding.IDENTITY, buffers, file, length, variants,
+				memorySize, false);
+	}
+
+	/**
+	 * Build the variant of the payload for the encoding: the header, the
+	 * encoded body and the trailer
+	 * 
+	 * @param name
+	 * @param encoding
+	 * @param body
+	 * @return a new variant
+	 */
+	private static Payload variant(String name, ContentEncoding encoding, ByteBuffer body[]) {
+		long length = 0;
+		for (ByteBuffer bb : body) {
+			length += bb.remaining();
+		}
+		String header = "Content-Encoding: " + encoding + Constants.CRLF + "Content-Length: "
+				+ length + Constants.CRLF + Constants.CRLF;
+		ByteBuffer buffers[] = new ByteBuffer[body.length + 2];
+		buffers[0] = ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+		System.arraycopy(body, 0, buffers, 1, body.length);
+		buffers[buffers.length - 1] = trailer();
+
+		return new Payload(name, encoding, buffers, null, length, null, 0, false);
+	}
+
+	/**
+	 * Compress the content once, into a new direct buffer
+	 * 
+	 * @param content
+	 * @param encoding
+	 * @return the compressed content
+	 * @throws IOException
+	 */
+	private static ByteBuffer compress(ByteBuffer content, ContentEncoding encoding)
+			throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(content.remaining() / 4 + 64);
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			OutputStream out = encoding == ContentEncoding.GZIP ? new BestGZIPOutputStream(baos)
+					: new DeflaterOutputStream(baos, deflater, 8192);
+			byte chunk[] = new byte[8192];
+			ByteBuffer src = content.duplicate();
+			while (src.hasRemaining()) {
+				int n = Math.min(chunk.length, src.remaining());
+				src.get(chunk, 0, n);
+				out.write(chunk, 0, n);
+			}
+			out.close();
+		} finally {
+			deflater.end();
+		}
+		byte bytes[] = baos.toByteArray();
+		ByteBuffer compressed = ByteBuffer.allocateDirect(bytes.length);
+		compressed.put(bytes).flip();
+		return compressed;
+	}
+
+	/**
+	 * {@code BestGZIPOutputStream}
+	 * <p>
+	 * GZIP stream using the best compression level, the variants are only
+	 * compressed once
+	 * </p>
+	 */
+	private static class BestGZIPOutputStream extends GZIPOutputStream {
+
+		/**
+		 * Create a new instance of {@code BestGZIPOutputStream}
+		 * 
+		 * @param out
+		 * @throws IOException
+		 */
+		BestGZIPOutputStream(OutputStream out) throws IOException {
+			super(out, 8192);
+			this.def.setLevel(Deflater.BEST_COMPRESSION);
+		}
+	}
+
+	/**
+	 * Split the content into views of {@link Constants#DEFAULT_BUFFER_SIZE}
+	 * bytes
+	 * 
+	 * @param content
+	 *            the content, between position and limit
+	 * @return the views
+	 */
+	private static ByteBuffer[] split(ByteBuffer content) {
+		int length = content.remaining();
+		int count = (length + Constants.DEFAULT_BUFFER_SIZE - 1) / Constants.DEFAULT_BUFFER_SIZE;
+		ByteBuffer views[] = new ByteBuffer[count];
+		for (int i = 0; i < count; i++) {
+			ByteBuffer view = content.duplicate();
+			int from = content.position() + i * Constants.DEFAULT_BUFFER_SIZE;
+			view.limit(Math.min(content.limit(), from + Constants.DEFAULT_BUFFER_SIZE));
+			view.position(from);
+			views[i] = view.slice();
+		}
+		return views;
+	}
+
+	/**
+	 * Select the variant to send to a client accepting the given encodings.
+	 * The smallest of the accepted variants is chosen, the identity encoding
+	 * being always acceptable.
+	 * 
+	 * @param accepted
+	 *            the mask of the accepted encodings (see
+	 *            {@link ContentEncoding#mask()}), {@code 0} if the client did
+	 *            not negotiate any encoding
+	 * @return the variant to send, or the payload itself if the client did not
+	 *         negotiate any encoding or if the payload has no variant
+	 */
+	public Payload negotiate(int accepted) {
+		if (accepted == 0 || this.variants == null) {
+			return this;
+		}
+		Payload selected = this.variants[ContentEncoding.IDENTITY.ordinal()];
+		for (Payload variant : this.variants) {
+			if ((accepted & variant.encoding.mask()) != 0 && variant.length < selected.length) {
+				selected = variant;
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Create a new set of views on the payload content. The returned buffers
+	 * share the content with the payload but have independent positions and
+	 * limits.
+	 * 
+	 * @return a new array of views, positioned at the beginning of the content
+	 */
+	public ByteBuffer[] duplicate() {
+		ByteBuffer views[] = new ByteBuffer[this.buffers.length];
+		for (int i = 0; i < views.length; i++) {
+			views[i] = this.buffers[i].duplicate();
+		}
+		return views;
+	}
+
+	/**
+	 * @return a new view on the {@code CRLF} trailer ending each response
+	 */
+	public static ByteBuffer trailer() {
+		return TRAILER.duplicate();
+	}
+
+	/**
+	 * Rewind all the views so that the whole content can be written again,
+	 * including the views previously narrowed to a range
+	 * 
+	 * @param views
+	 *            the views to rewind
+	 */
+	public static void rewind(ByteBuffer views[]) {
+		for (ByteBuffer bb : views) {
+			// The views span their whole buffer, clearing does not touch the
+			// content
+			bb.clear();
+		}
+	}
+
+	/**
+	 * Mark the payload and its variants as retired: the cache does not serve
+	 * it anymore, after it was evicted, reloaded or invalidated. The views
+	 * kept on a retired payload are dropped so that its content can be
+	 * reclaimed once the responses in flight are written.
+	 */
+	void retire() {
+		this.retired = true;
+		if (this.variants != null) {
+			for (Payload variant : this.variants) {
+				variant.retired = true;
+			}
+		}
+	}
+
+	/**
+	 * @return {@code true} if the cache does not serve the payload anymore
+	 */
+	boolean isRetired() {
+		return this.retired;
+	}
+
+	/**
+	 * Count a new user of the file channel, which must be given back with
+	 * {@link #releaseFile()} once the content is sent
+	 * 
+	 * @return {@code true} if the channel can be used, {@code false} if it
+	 *         was closed since the payload was retired
+	 */
+	boolean acquireFile() {
+		for (;;) {
+			int n = this.fileUsers.get();
+			if (n == 0) {
+				return false;
+			}
+			if (this.fileUsers.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Give back the file channel, the last user closes it
+	 */
+	void releaseFile() {
+		if (this.fileUsers.decrementAndGet() == 0 && this.file != null) {
+			try {
+				this.file.close();
+			} catch (IOException e) {
+				// NOPE
+			}
+		}
+	}
+
+	/**
+	 * @return the payload name
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return the total number of bytes of the payload
+	 */
+	public long getLength() {
+		return this.length;
+	}
+
+	/**
+	 * @return the file from which the content was loaded, or {@code null} if
+	 *         the payload is not backed by a file
+	 */
+	public FileChannel getFile() {
+		return this.file;
+	}
+
+	/**
+	 * @return the number of bytes of the file, i.e., the payload length
+	 *         without the trailer, or the number of bytes of the encoded body
+	 *         for a variant
+	 */
+	public long getFileLength() {
+		return this.fileLength;
+	}
+
+	/**
+	 * @return {@code true} if the content is read from the file while being
+	 *         written, i.e., the only buffer of the payload is the trailer
+	 */
+	public boolean isStreamed() {
+		return this.streamed;
+	}
+
+	/**
+	 * @return the encoding of the content
+	 */
+	public ContentEncoding getEncoding() {
+		return this.encoding;
+	}
+
+	/**
+	 * @return the number of bytes of memory held by the payload and its
+	 *         variants
+	 */
+	public long getMemorySize() {
+		return this.memorySize;
+	}
+
+	/**
+	 * @return the number of buffers holding the payload content
+	 */
+	public int getBufferCount() {
+		return this.buffers.length;
+	}
+}
@@ -0,0 +1,416 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+/**
+ * {@code PayloadCache}
+ * <p>
+ * Keeps the payloads resident within a byte-size budget. When loading a
+ * payload would exceed the budget, the least recently used payloads are
+ * evicted first. Hits only read a volatile field and, at most once per
+ * millisecond, update the access time of the entry, so they never lock.
+ * Misses, evictions and reloads are serialized on the cache.
+ * </p>
+ * <p>
+ * The payloads are loaded into private direct buffers rather than mapped, so
+ * that rewriting a file in place cannot alter the bytes of a response being
+ * written. A reload installs a new {@link Payload} atomically, the
+ * connections writing the previous version keep their views on it until they
+ * are done and the old content is then reclaimed by the GC. The file channel
+ * of a payload retired by the cache is closed as soon as the last connection
+ * sending the file is done, rather than when the payload is reclaimed.
+ * </p>
+ * <p>
+ * The files which do not fit in the budget, or in a single buffer, get a
+ * streamed payload: it only holds the file channel and costs no memory, its
+ * content is read by chunks while it is written.
+ * </p>
+ * 
+ * Created on Nov 7, 2012 at 2:51:16 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class PayloadCache {
+
+	private static final Logger logger = Logger.getLogger(PayloadCache.class);
+
+	private final long capacity;
+	private final List<Entry> resident = new ArrayList<>();
+	private long size;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong reloads = new AtomicLong();
+
+	/**
+	 * Create a new instance of {@code PayloadCache}
+	 * 
+	 * @param capacity
+	 *            the maximum number of bytes kept resident
+	 */
+	public PayloadCache(long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * {@code Entry}
+	 * <p>
+	 * A file known by the cache. The entry stays the same for the life of the
+	 * file, only the payload it holds changes when it is evicted or reloaded.
+	 * </p>
+	 */
+	public static final class Entry {
+
+		private final String name;
+		private final File file;
+		private volatile Payload payload;
+		private volatile long lastAccess;
+		private volatile boolean deleted;
+
+		/**
+		 * Create a new instance of {@code Entry}
+		 * 
+		 * @param file
+		 */
+		public Entry(File file) {
+			this.name = file.getName();
+			this.file = file;
+		}
+
+		/**
+		 * @return the entry name, i.e., the file name
+		 */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * @return the file of the entry
+		 */
+		public File getFile() {
+			return this.file;
+		}
+
+		/**
+		 * @return {@code true} if the payload is currently resident
+		 */
+		public boolean isResident() {
+			return this.payload != null;
+		}
+
+		/**
+		 * @return {@code true} if the file was deleted
+		 */
+		public boolean isDeleted() {
+			return this.deleted;
+		}
+	}
+
+	/**
+	 * Get the payload of the entry, loading it if it is not resident
+	 * 
+	 * @param entry
+	 * @return the current payload of the entry
+	 * @throws IOException
+	 *             if the payload has to be loaded and the file cannot be read
+	 */
+	public Payload get(Entry entry) throws IOException {
+		Payload payload = entry.payload;
+		if (payload != null) {
+			this.hits.incrementAndGet();
+			touch(entry);
+			return payload;
+		}
+
+		this.misses.incrementAndGet();
+		// Only one thread loads a given entry, the others wait for it
+		synchronized (entry) {
+			payload = entry.payload;
+			if (payload == null) {
+				payload = load(entry.file);
+				install(entry, payload, true);
+			}
+		}
+		touch(entry);
+		return payload;
+	}
+
+	/**
+	 * Load the entry only if it fits in the remaining budget, without
+	 * evicting anything. Used to warm the cache at startup. Like a miss, a
+	 * file too large for a single buffer gets a streamed payload.
+	 * 
+	 * @param entry
+	 * @return {@code true} if the entry is resident
+	 * @throws IOException
+	 */
+	public boolean preload(Entry entry) throws IOException {
+		synchronized (this) {
+			if (this.size + entry.file.length() > this.capacity) {
+				return false;
+			}
+		}
+		synchronized (entry) {
+			if (entry.payload == null) {
+				install(entry, load(entry.file), false);
+			}
+		}
+		touch(entry);
+		return entry.payload != null;
+	}
+
+	/**
+	 * Reload the entry after its file changed. The new version is read before
+	 * being swapped in, so that the readers never wait on the file system. An
+	 * entry which is not resident is left alone, it will be read on its next
+	 * miss.
+	 * 
+	 * @param entry
+	 * @throws IOException
+	 */
+	public void reload(Entry entry) throws IOException {
+		synchronized (entry) {
+			entry.deleted = false;
+			if (entry.payload == null) {
+				return;
+			}
+			Payload payload = load(entry.file);
+			synchronized (this) {
+				remove(entry);
+			}
+			install(entry, payload, true);
+			this.reloads.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Drop the payload of the entry, the next request will read the file
+	 * again
+	 * 
+	 * @param entry
+	 * @param deleted
+	 *            {@code true} if the file does not exist anymore
+	 */
+	public void invalidate(Entry entry, boolean deleted) {
+		synchronized (entry) {
+			entry.deleted = deleted;
+			synchronized (this) {
+				remove(entry);
+			}
+		}
+	}
+
+	/**
+	 * Install the payload of the entry, evicting the least recently used
+	 * entries if needed. Must be called with the entry lock held.
+	 * 
+	 * @param entry
+	 * @param payload
+	 * @param evict
+	 *            whether the other entries may be evicted to make room
+	 */
+	private synchronized void install(Entry entry, Payload payload, boolean evict) {
+		long length = payload.getMemorySize();
+		if (length > this.capacity) {
+			// The compressed variants made it too large to be cached, the
+			// payload is only used by the caller. Its file channel is left to
+			// the GC since the caller may still send it.
+			logger.warnv("{0} ({1} bytes) exceeds the cache capacity", entry.name, length);
+			payload.retire();
+			return;
+		}
+		while (this.size + length > this.capacity) {
+			if (!evict) {
+				return;
+			}
+			evictOne();
+		}
+		entry.payload = payload;
+		this.resident.add(entry);
+		this.size += length;
+	}
+
+	/**
+	 * Evict the least recently used resident entry
+	 */
+	private void evictOne() {
+		int victim = 0;
+		for (int i = 1; i < this.resident.size(); i++) {
+			if (this.resident.get(i).lastAccess < this.resident.get(victim).lastAccess) {
+				victim = i;
+			}
+		}
+		Entry entry = this.resident.get(victim);
+		remove(entry);
+		this.evictions.incrementAndGet();
+		logger.debugv("Evicted {0} from the payload cache", entry.name);
+	}
+
+	/**
+	 * Drop the payload of a resident entry. Must be called with the cache
+	 * lock held.
+	 * 
+	 * @param entry
+	 */
+	private void remove(Entry entry) {
+		Payload payload = entry.payload;
+		if (payload != null && this.resident.remove(entry)) {
+			entry.payload = null;
+			this.size -= payload.getMemorySize();
+			payload.retire();
+			payload.releaseFile();
+		}
+	}
+
+	/**
+	 * Update the access time of the entry. The clock has a resolution of
+	 * about a millisecond so hot entries do not keep writing the field.
+	 * 
+	 * @param entry
+	 */
+	private static void touch(Entry entry) {
+		long now = System.nanoTime() >> 20;
+		if (entry.lastAccess != now) {
+			entry.lastAccess = now;
+		}
+	}
+
+	/**
+	 * Load the file, in memory if it fits in the budget, as a streamed payload
+	 * otherwise
+	 * 
+	 * @param file
+	 * @return a new payload
+	 * @throws IOException
+	 */
+	private Payload load(File file) throws IOException {
+		if (file.length() > Math.min(this.capacity, Integer.MAX_VALUE)) {
+			FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel();
+			logger.infov("{0} ({1} bytes) exceeds the cache capacity, it will be streamed",
+					file.getName(), fileChannel.size());
+			return Payload.stream(file.getName(), fileChannel, fileChannel.size());
+		}
+		return read(file);
+	}
+
+	/**
+	 * Read the file into a private direct buffer and build its payload and
+	 * encoded variants
+	 * 
+	 * @param file
+	 * @return a new payload holding a copy of the file
+	 * @throws IOException
+	 *             if the file cannot be read or is too large for a buffer
+	 */
+	static Payload read(File file) throws IOException {
+		// The channel is kept open with the payload so that it can also be
+		// streamed from disk, it is closed once the payload is retired and
+		// not sent anymore
+		FileChannel fileChannel = new RandomAccessFile(file, "r").getChannel();
+		try {
+			long size = fileChannel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(file.getName() + " (" + size
+						+ " bytes) is too large to be read into a buffer");
+			}
+			ByteBuffer content = ByteBuffer.allocateDirect((int) size);
+			while (content.hasRemaining() && fileChannel.read(content, content.position()) >= 0) {
+				// NOPE
+			}
+			content.flip();
+
+			return Payload.build(file.getName(), content, fileChannel);
+		} catch (IOException e) {
+			fileChannel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the maximum number of bytes kept resident
+	 */
+	public long getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * @return the number of bytes currently resident
+	 */
+	public synchronized long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return the number of requests served from a resident payload
+	 */
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return the number of requests which had to load the payload
+	 */
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return the number of payloads evicted to make room for others
+	 */
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	/**
+	 * @return the number of payloads reloaded after their file changed
+	 */
+	public long getReloads() {
+		return this.reloads.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "PayloadCache[size=" + getSize() + ", capacity=" + this.capacity + ", hits="
+				+ getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+				+ ", reloads=" + getReloads() + "]";
+	}
+}
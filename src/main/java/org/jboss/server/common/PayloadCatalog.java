@@ -0,0 +1,502 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.PayloadCache.Entry;
+
+/**
+ * {@code PayloadCatalog}
+ * <p>
+ * The set of payloads served by the server, one per file of the data
+ * directory. The content of the files is held by a {@link PayloadCache},
+ * which keeps them resident within a byte-size budget. The catalog only maps
+ * the names to the cache entries.
+ * </p>
+ * <p>
+ * The entries are found by name straight from the request bytes (see
+ * {@link #resolve(ByteBuffer, Request)}): the names are kept in an open-addressing
+ * table of {@code byte[]} keys, so a lookup is a hash plus one or two byte
+ * comparisons and does not allocate anything. Files created after startup
+ * are added by replacing the whole table, the readers never lock.
+ * </p>
+ * 
+ * Created on Nov 6, 2012 at 11:08:23 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class PayloadCatalog {
+
+	private static final Logger logger = Logger.getLogger(PayloadCatalog.class);
+	private static final byte GET[] = "GET".getBytes(StandardCharsets.US_ASCII);
+	private static final byte RANGE[] = "range=".getBytes(StandardCharsets.US_ASCII);
+
+	private final File dir;
+	private final PayloadCache cache;
+	private final Entry defaultEntry;
+	private volatile Table table;
+
+	/**
+	 * {@code Table}
+	 * <p>
+	 * Immutable open-addressing table of the entries, keyed by name
+	 * </p>
+	 */
+	private static final class Table {
+
+		private final byte keys[][];
+		private final Entry values[];
+		private final int mask;
+		private final int size;
+
+		/**
+		 * Create a new instance of {@code Table}
+		 * 
+		 * @param entries
+		 */
+		Table(Entry entries[]) {
+			// Keep the load factor under 0.5 so that probe sequences stay
+			// short
+			int capacity = Integer.highestOneBit(Math.max(2, entries.length) * 4);
+			this.keys = new byte[capacity][];
+			this.values = new Entry[capacity];
+			this.mask = capacity - 1;
+			for (Entry entry : entries) {
+				byte key[] = entry.getName().getBytes(StandardCharsets.UTF_8);
+				int i = hash(key, 0, key.length) & this.mask;
+				while (this.keys[i] != null) {
+					i = (i + 1) & this.mask;
+				}
+				this.keys[i] = key;
+				this.values[i] = entry;
+			}
+			this.size = entries.length;
+		}
+
+		/**
+		 * @return all the entries of the table
+		 */
+		Entry[] entries() {
+			Entry entries[] = new Entry[this.size];
+			int n = 0;
+			for (Entry entry : this.values) {
+				if (entry != null) {
+					entries[n++] = entry;
+				}
+			}
+			return entries;
+		}
+	}
+
+	/**
+	 * Create a new instance of {@code PayloadCatalog}
+	 * 
+	 * @param dir
+	 *            the data directory
+	 * @param cache
+	 *            the cache holding the content of the files
+	 * @param entries
+	 *            the entries of the catalog
+	 * @param defaultEntry
+	 *            the entry served when the request does not name a known
+	 *            resource
+	 */
+	public PayloadCatalog(File dir, PayloadCache cache, Entry entries[], Entry defaultEntry) {
+		this.dir = dir;
+		this.cache = cache;
+		this.table = new Table(entries);
+		this.defaultEntry = defaultEntry;
+	}
+
+	/**
+	 * Create the catalog of all the regular files of the directory and warm
+	 * the cache with as many of them as the budget allows
+	 * 
+	 * @param dir
+	 *            the data directory
+	 * @param defaultName
+	 *            the name of the file served by default
+	 * @param cache
+	 *            the cache holding the content of the files
+	 * @return a new catalog
+	 * @throws IOException
+	 *             if the directory cannot be read
+	 */
+	public static PayloadCatalog load(File dir, String defaultName, PayloadCache cache)
+			throws IOException {
+		File files[] = dir.listFiles();
+		if (files == null) {
+			throw new IOException("Unable to list the data directory " + dir);
+		}
+		Arrays.sort(files);
+		Entry entries[] = new Entry[files.length];
+		int n = 0;
+		Entry defaultEntry = null;
+		for (File file : files) {
+			if (!isPayload(file)) {
+				continue;
+			}
+			Entry entry = new Entry(file);
+			entries[n++] = entry;
+			if (file.getName().equals(defaultName)) {
+				defaultEntry = entry;
+			}
+		}
+		if (n == 0) {
+			throw new IOException("No payload found in " + dir);
+		}
+		if (defaultEntry == null) {
+			defaultEntry = entries[0];
+			logger.warnv("Default payload {0} not found, using {1}", defaultName,
+					defaultEntry.getName());
+		}
+		entries = Arrays.copyOf(entries, n);
+		// The default payload is loaded first, then the others as long as
+		// they fit in the budget
+		cache.preload(defaultEntry);
+		for (Entry entry : entries) {
+			cache.preload(entry);
+		}
+
+		return new PayloadCatalog(dir, cache, entries, defaultEntry);
+	}
+
+	/**
+	 * @return {@code true} if the file can be served as a payload
+	 */
+	static boolean isPayload(File file) {
+		return file.isFile() && !file.isHidden();
+	}
+
+	/**
+	 * Parse the request into {@code out}. The request line has the form
+	 * <tt>[GET] &lt;resource&gt;[?query] [option]...</tt>, only the last
+	 * segment of the resource path is used as the payload name. The options
+	 * are separated by white spaces or commas:
+	 * <ul>
+	 * <li>an encoding accepted by the client (see {@link ContentEncoding}),
+	 * in which case the smallest accepted variant is selected,</li>
+	 * <li><tt>range=&lt;offset&gt;:[length]</tt> to ask for a range of the
+	 * file only, the length defaults to the rest of the file. A range is
+	 * always taken from the identity content, the encodings are then
+	 * ignored.</li>
+	 * </ul>
+	 * The buffer position and limit are left untouched.
+	 * 
+	 * @param request
+	 *            the request bytes, between position and limit
+	 * @param out
+	 *            the request to fill, its payload is the default payload if
+	 *            the request does not name a known resource
+	 * @throws IOException
+	 *             if the payload is not resident and cannot be loaded
+	 */
+	public void resolve(ByteBuffer request, Request out) throws IOException {
+		resolve(request, request.position(), request.limit(), out);
+	}
+
+	/**
+	 * Parse the request line held in {@code request[from, to)} into
+	 * {@code out}
+	 * 
+	 * @param request
+	 *            the buffer holding the request
+	 * @param from
+	 *            the index of the first byte of the request line
+	 * @param to
+	 *            the index after the last byte of the request line
+	 * @param out
+	 *            the request to fill
+	 * @throws IOException
+	 *             if the payload is not resident and cannot be loaded
+	 * @see #resolve(ByteBuffer, Request)
+	 */
+	public void resolve(ByteBuffer request, int from, int to, Request out) throws IOException {
+		int start = skipSpaces(request, from, to);
+		int end = tokenEnd(request, start, to);
+		if (end - start == GET.length && matches(request, start, GET)) {
+			start = skipSpaces(request, end, to);
+			end = tokenEnd(request, start, to);
+		}
+		// Keep only the last segment of the path, without the query string
+		int nameStart = start;
+		int nameEnd = end;
+		for (int i = start; i < end; i++) {
+			byte b = request.get(i);
+			if (b == '?') {
+				nameEnd = i;
+				break;
+			}
+			if (b == '/') {
+				nameStart = i + 1;
+			}
+		}
+		Entry entry = lookup(request, nameStart, nameEnd);
+		Payload payload = this.cache.get(entry != null ? entry : this.defaultEntry);
+		out.reset(payload);
+		int accepted = parseOptions(request, end, to, out);
+		if (!out.isRanged()) {
+			out.setPayload(payload.negotiate(accepted));
+		}
+	}
+
+	/**
+	 * Parse the options of the request. The options are listed after the
+	 * resource, separated by white spaces or commas, the unknown ones are
+	 * ignored.
+	 * 
+	 * @param request
+	 * @param from
+	 *            the index after the resource
+	 * @param to
+	 *            the index after the last byte of the request line
+	 * @param out
+	 *            the request receiving the range, if any
+	 * @return the mask of the accepted encodings
+	 */
+	private static int parseOptions(ByteBuffer request, int from, int to, Request out) {
+		int accepted = 0;
+		int start = from;
+		for (int i = from; i <= to; i++) {
+			if (i == to || isSpace(request.get(i)) || request.get(i) == ',') {
+				if (i > start) {
+					if (i - start > RANGE.length && matches(request, start, RANGE)) {
+						parseRange(request, start + RANGE.length, i, out);
+					} else {
+						ContentEncoding encoding = ContentEncoding.parse(request, start, i);
+						if (encoding != null) {
+							accepted |= encoding.mask();
+						}
+					}
+				}
+				start = i + 1;
+			}
+		}
+		return accepted;
+	}
+
+	/**
+	 * Parse the value of a range option, <tt>&lt;offset&gt;:[length]</tt>. A
+	 * malformed value is ignored.
+	 * 
+	 * @param request
+	 * @param from
+	 *            the index after <tt>range=</tt>
+	 * @param to
+	 *            the index after the value
+	 * @param out
+	 */
+	private static void parseRange(ByteBuffer request, int from, int to, Request out) {
+		long offset = 0;
+		long length = -1;
+		boolean separator = false;
+		for (int i = from; i < to; i++) {
+			byte b = request.get(i);
+			if (b == ':' && !separator && i > from) {
+				separator = true;
+			} else if (b >= '0' && b <= '9') {
+				int digit = b - '0';
+				long value = separator ? Math.max(length, 0) : offset;
+				if (value > (Long.MAX_VALUE - digit) / 10) {
+					// Overflow
+					return;
+				}
+				value = value * 10 + digit;
+				if (separator) {
+					length = value;
+				} else {
+					offset = value;
+				}
+			} else {
+				return;
+			}
+		}
+		if (separator) {
+			out.setRange(offset, length);
+		}
+	}
+
+	/**
+	 * Find the entry whose name is the bytes {@code buffer[from, to)}
+	 * 
+	 * @param buffer
+	 * @param from
+	 * @param to
+	 * @return the entry or {@code null} if there is no such entry or if its
+	 *         file was deleted
+	 */
+	public Entry lookup(ByteBuffer buffer, int from, int to) {
+		if (from >= to) {
+			return null;
+		}
+		Table t = this.table;
+		int i = hash(buffer, from, to) & t.mask;
+		byte key[];
+		while ((key = t.keys[i]) != null) {
+			if (key.length == to - from && matches(buffer, from, key)) {
+				Entry entry = t.values[i];
+				return entry.isDeleted() ? null : entry;
+			}
+			i = (i + 1) & t.mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Find the entry by name, including the entries of deleted files
+	 * 
+	 * @param name
+	 * @return the entry or {@code null} if there is no such entry
+	 */
+	public Entry get(String name) {
+		for (Entry entry : this.table.values) {
+			if (entry != null && entry.getName().equals(name)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Add a new file to the catalog. The table is rebuilt and replaced as a
+	 * whole so that lookups never see it half updated.
+	 * 
+	 * @param file
+	 * @return the entry of the file
+	 */
+	public synchronized Entry add(File file) {
+		Entry entry = get(file.getName());
+		if (entry == null) {
+			Entry entries[] = this.table.entries();
+			entries = Arrays.copyOf(entries, entries.length + 1);
+			entry = new Entry(file);
+			entries[entries.length - 1] = entry;
+			this.table = new Table(entries);
+		}
+		return entry;
+	}
+
+	/**
+	 * @return the payload served when the request does not name a known
+	 *         resource
+	 * @throws IOException
+	 *             if the payload is not resident and cannot be loaded
+	 */
+	public Payload getDefaultPayload() throws IOException {
+		return this.cache.get(this.defaultEntry);
+	}
+
+	/**
+	 * @return the data directory
+	 */
+	public File getDir() {
+		return this.dir;
+	}
+
+	/**
+	 * @return the cache holding the content of the files
+	 */
+	public PayloadCache getCache() {
+		return this.cache;
+	}
+
+	/**
+	 * @return the number of entries of the catalog
+	 */
+	public int size() {
+		return this.table.size;
+	}
+
+	/**
+	 * FNV-1a hash of {@code key[from, to)}
+	 */
+	private static int hash(byte key[], int from, int to) {
+		int h = 0x811c9dc5;
+		for (int i = from; i < to; i++) {
+			h = (h ^ (key[i] & 0xff)) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * FNV-1a hash of {@code buffer[from, to)}, must match
+	 * {@link #hash(byte[], int, int)}
+	 */
+	private static int hash(ByteBuffer buffer, int from, int to) {
+		int h = 0x811c9dc5;
+		for (int i = from; i < to; i++) {
+			h = (h ^ (buffer.get(i) & 0xff)) * 0x01000193;
+		}
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * @return {@code true} if the bytes of the buffer starting at
+	 *         {@code from} are the bytes of the key
+	 */
+	private static boolean matches(ByteBuffer buffer, int from, byte key[]) {
+		for (int i = 0; i < key.length; i++) {
+			if (buffer.get(from + i) != key[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the index of the first non white space byte
+	 */
+	private static int skipSpaces(ByteBuffer buffer, int from, int to) {
+		while (from < to && isSpace(buffer.get(from))) {
+			from++;
+		}
+		return from;
+	}
+
+	/**
+	 * @return the index after the last byte of the token starting at
+	 *         {@code from}
+	 */
+	private static int tokenEnd(ByteBuffer buffer, int from, int to) {
+		while (from < to && !isSpace(buffer.get(from))) {
+			from++;
+		}
+		return from;
+	}
+
+	/**
+	 * @return {@code true} if the byte is a white space or an end of line
+	 */
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+	}
+}
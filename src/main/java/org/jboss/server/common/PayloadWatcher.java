@@ -0,0 +1,187 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.PayloadCache.Entry;
+
+/**
+ * {@code PayloadWatcher}
+ * <p>
+ * Watches the data directory and keeps the catalog and the cache in sync with
+ * it: changed files are reloaded, deleted files are invalidated and new files
+ * are added to the catalog. The watcher runs on its own daemon thread, the
+ * new versions are read there and swapped in atomically, so the I/O threads
+ * never wait on a reload.
+ * </p>
+ * 
+ * Created on Nov 7, 2012 at 5:26:40 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class PayloadWatcher implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(PayloadWatcher.class);
+
+	private final PayloadCatalog catalog;
+	private final WatchService watchService;
+
+	/**
+	 * Create a new instance of {@code PayloadWatcher}
+	 * 
+	 * @param catalog
+	 *            the catalog to keep in sync with its directory
+	 * @throws IOException
+	 *             if the directory cannot be watched
+	 */
+	public PayloadWatcher(PayloadCatalog catalog) throws IOException {
+		this.catalog = catalog;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		catalog.getDir().toPath()
+				.register(this.watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+	}
+
+	/**
+	 * Start watching the catalog directory on a new daemon thread
+	 * 
+	 * @param catalog
+	 * @return the watcher
+	 * @throws IOException
+	 *             if the directory cannot be watched
+	 */
+	public static PayloadWatcher start(PayloadCatalog catalog) throws IOException {
+		PayloadWatcher watcher = new PayloadWatcher(catalog);
+		Thread thread = new Thread(watcher, "payload-watcher");
+		thread.setDaemon(true);
+		thread.start();
+		return watcher;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = this.watchService.take();
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == OVERFLOW) {
+						reloadAll();
+					} else {
+						Path path = (Path) event.context();
+						handle(event.kind(), path.getFileName().toString());
+					}
+				}
+				if (!key.reset()) {
+					logger.warnv("The data directory {0} is no longer watched", catalog.getDir());
+					return;
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// The watcher is shutting down
+		}
+	}
+
+	/**
+	 * Apply a change of the directory
+	 * 
+	 * @param kind
+	 *            the kind of change
+	 * @param name
+	 *            the name of the changed file
+	 */
+	private void handle(WatchEvent.Kind<?> kind, String name) {
+		PayloadCache cache = this.catalog.getCache();
+		try {
+			if (kind == ENTRY_DELETE) {
+				Entry entry = this.catalog.get(name);
+				if (entry != null) {
+					cache.invalidate(entry, true);
+					logger.infov("Payload {0} deleted", name);
+				}
+				return;
+			}
+			File file = new File(this.catalog.getDir(), name);
+			if (!PayloadCatalog.isPayload(file)) {
+				return;
+			}
+			Entry entry = this.catalog.get(name);
+			if (entry == null) {
+				this.catalog.add(file);
+				logger.infov("Payload {0} added", name);
+			} else {
+				cache.reload(entry);
+				logger.debugv("Payload {0} reloaded: {1}", name, cache);
+			}
+		} catch (IOException e) {
+			logger.errorv(e, "Unable to reload payload {0}", name);
+			Entry entry = this.catalog.get(name);
+			if (entry != null) {
+				cache.invalidate(entry, false);
+			}
+		}
+	}
+
+	/**
+	 * Reload all the files after events were lost
+	 */
+	private void reloadAll() {
+		File files[] = this.catalog.getDir().listFiles();
+		if (files != null) {
+			for (File file : files) {
+				handle(ENTRY_MODIFY, file.getName());
+			}
+		}
+	}
+
+	/**
+	 * Stop watching the directory
+	 */
+	public void close() {
+		try {
+			this.watchService.close();
+		} catch (IOException e) {
+			// NOPE
+		}
+	}
+}
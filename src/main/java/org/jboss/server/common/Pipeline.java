@@ -0,0 +1,272 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * {@code Pipeline}
+ * <p>
+ * Incremental parser of the requests of a connection. The requests are lines
+ * ended by CRLF (a bare LF is accepted too). A client may pipeline several
+ * requests in one segment, or a request may be split across several reads:
+ * {@link #parse(ByteBuffer, ResponseMode)} consumes every complete request
+ * found in the read buffer and leaves the incomplete one in place, to be
+ * completed by the next read.
+ * </p>
+ * <p>
+ * The responses of the requests parsed together form a batch, which is
+ * written with a single gathering write: {@link #getBuffers()} is the
+ * concatenation of the buffers of all the responses. A response sent from
+ * the file (sendfile or stream mode, or a payload too large to be held in
+ * memory) cannot be gathered, it ends the batch and is given by
+ * {@link #getFileResponse()}, to be sent once the buffers are written. The
+ * pipeline holds the file channel of its payload until the next batch is
+ * parsed or the pipeline is reset, so the cache does not close it meanwhile.
+ * </p>
+ * <p>
+ * A typical read loop is:
+ * 
+ * <pre>
+ * readBuffer.flip();
+ * while (pipeline.parse(readBuffer, mode) &gt; 0) {
+ * 	// write the buffers, then the file response if any
+ * }
+ * readBuffer.compact();
+ * </pre>
+ * 
+ * The responses, their views and the gather array are reused from one batch
+ * to the next.
+ * </p>
+ * 
+ * Created on Nov 13, 2012 at 9:47:31 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class Pipeline {
+
+	/**
+	 * The maximum number of responses of a batch
+	 */
+	public static final int MAX_BATCH = 16;
+
+	private final Request request = new Request();
+	private final Response responses[] = new Response[MAX_BATCH];
+	private ByteBuffer buffers[] = new ByteBuffer[0];
+	private int bufferCount;
+	private int size;
+	private long length;
+	private Response fileResponse;
+	// The payload whose file channel is held for the file response
+	private Payload filePayload;
+	// Number of bytes after the position known not to hold an end of line
+	private int scanned;
+	// Whether the rest of an overlong request is being skipped
+	private boolean discarding;
+
+	/**
+	 * Create a new instance of {@code Pipeline}
+	 */
+	public Pipeline() {
+		super();
+	}
+
+	/**
+	 * Parse the complete requests held in the buffer, between position and
+	 * limit, and prepare their responses. The position is moved after the
+	 * last request parsed. Parsing stops after {@link #MAX_BATCH} requests or
+	 * after a request whose response is sent from the file, the next call
+	 * parses the following ones.
+	 * <p>
+	 * A request longer than the buffer is answered from its first bytes, the
+	 * rest of it is skipped.
+	 * </p>
+	 * 
+	 * @param input
+	 *            the read buffer, flipped
+	 * @param mode
+	 *            the way the payloads are sent
+	 * @return the number of responses of the new batch, {@code 0} if there is
+	 *         no complete request in the buffer
+	 * @throws IOException
+	 *             if a payload is not resident and cannot be loaded
+	 */
+	public int parse(ByteBuffer input, ResponseMode mode) throws IOException {
+		this.size = 0;
+		this.bufferCount = 0;
+		this.length = 0;
+		this.fileResponse = null;
+		releaseFile();
+		PayloadCatalog catalog = FileLoader.getCatalog();
+
+		while (this.size < MAX_BATCH && this.fileResponse == null) {
+			int start = input.position();
+			int limit = input.limit();
+			int end = start + this.scanned;
+			while (end < limit && input.get(end) != '\n') {
+				end++;
+			}
+			if (end == limit) {
+				if (start == 0 && limit == input.capacity()) {
+					// The buffer is full but still holds no end of line
+					if (!this.discarding) {
+						this.discarding = true;
+						add(catalog, input, start, limit, mode);
+					}
+					input.position(limit);
+					this.scanned = 0;
+				} else {
+					this.scanned = limit - start;
+					break;
+				}
+				continue;
+			}
+			// Consume the line and its end of line
+			input.position(end + 1);
+			this.scanned = 0;
+			if (this.discarding) {
+				this.discarding = false;
+				continue;
+			}
+			if (end > start && input.get(end - 1) == '\r') {
+				end--;
+			}
+			if (end > start) {
+				add(catalog, input, start, end, mode);
+			}
+		}
+
+		return this.size;
+	}
+
+	/**
+	 * Parse the request line {@code input[from, to)} and add its response to
+	 * the batch
+	 * 
+	 * @param catalog
+	 * @param input
+	 * @param from
+	 * @param to
+	 * @param mode
+	 * @throws IOException
+	 */
+	private void add(PayloadCatalog catalog, ByteBuffer input, int from, int to, ResponseMode mode)
+			throws IOException {
+		Response response = this.responses[this.size];
+		if (response == null) {
+			response = this.responses[this.size] = new Response();
+		}
+		for (;;) {
+			catalog.resolve(input, from, to, this.request);
+			response.prepare(this.request);
+			if (!response.isSentFromFile(mode)) {
+				break;
+			}
+			Payload payload = response.getPayload();
+			if (payload.acquireFile()) {
+				this.filePayload = payload;
+				this.size++;
+				this.fileResponse = response;
+				return;
+			}
+			// Retired and closed since it was resolved, take the new version
+		}
+		this.size++;
+		ByteBuffer views[] = response.getBuffers();
+		if (this.bufferCount + views.length > this.buffers.length) {
+			this.buffers = Arrays.copyOf(this.buffers,
+					Math.max(this.bufferCount + views.length, 2 * this.buffers.length));
+		}
+		System.arraycopy(views, 0, this.buffers, this.bufferCount, views.length);
+		this.bufferCount += views.length;
+		this.length += response.getLength();
+	}
+
+	/**
+	 * @return the buffers of the responses of the batch, except the file
+	 *         response. Only the first {@link #getBufferCount()} ones are
+	 *         relevant.
+	 */
+	public ByteBuffer[] getBuffers() {
+		return this.buffers;
+	}
+
+	/**
+	 * @return the number of buffers to write
+	 */
+	public int getBufferCount() {
+		return this.bufferCount;
+	}
+
+	/**
+	 * @return the total number of bytes of the buffers to write
+	 */
+	public long getLength() {
+		return this.length;
+	}
+
+	/**
+	 * @return the response of the batch sent from the file, always the last
+	 *         one, or {@code null}
+	 */
+	public Response getFileResponse() {
+		return this.fileResponse;
+	}
+
+	/**
+	 * Forget the current batch and the request being scanned, and give back
+	 * the file channel held for the batch, e.g. when the connection is closed
+	 * or before reusing the pipeline for another connection
+	 */
+	public void reset() {
+		this.size = 0;
+		this.bufferCount = 0;
+		this.length = 0;
+		this.fileResponse = null;
+		this.scanned = 0;
+		this.discarding = false;
+		releaseFile();
+	}
+
+	/**
+	 * Give back the file channel held for the last file response, if any
+	 */
+	private void releaseFile() {
+		if (this.filePayload != null) {
+			this.filePayload.releaseFile();
+			this.filePayload = null;
+		}
+	}
+
+	/**
+	 * @return the number of responses of the batch
+	 */
+	public int size() {
+		return this.size;
+	}
+}
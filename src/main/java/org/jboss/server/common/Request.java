@@ -0,0 +1,120 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+/**
+ * {@code Request}
+ * <p>
+ * A parsed client request: the selected payload and the optional byte range.
+ * A connection reuses the same instance for all its requests.
+ * </p>
+ * 
+ * Created on Nov 12, 2012 at 10:26:48 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class Request {
+
+	private Payload payload;
+	private long offset;
+	private long length;
+	private boolean ranged;
+
+	/**
+	 * Create a new instance of {@code Request}
+	 */
+	public Request() {
+		super();
+	}
+
+	/**
+	 * Reset the request to the whole content of the payload
+	 * 
+	 * @param payload
+	 *            the selected payload
+	 */
+	public void reset(Payload payload) {
+		this.payload = payload;
+		this.offset = 0;
+		this.length = -1;
+		this.ranged = false;
+	}
+
+	/**
+	 * Restrict the request to a range of the file
+	 * 
+	 * @param offset
+	 *            the offset of the first byte
+	 * @param length
+	 *            the number of bytes, {@code -1} for the rest of the file
+	 */
+	void setRange(long offset, long length) {
+		this.offset = offset;
+		this.length = length;
+		this.ranged = true;
+	}
+
+	/**
+	 * Getter for payload
+	 * 
+	 * @return the payload
+	 */
+	public Payload getPayload() {
+		return this.payload;
+	}
+
+	/**
+	 * Setter for the payload
+	 * 
+	 * @param payload
+	 *            the payload to set
+	 */
+	void setPayload(Payload payload) {
+		this.payload = payload;
+	}
+
+	/**
+	 * @return the offset of the first byte of the range
+	 */
+	public long getOffset() {
+		return this.offset;
+	}
+
+	/**
+	 * @return the number of bytes of the range, {@code -1} for the rest of
+	 *         the file
+	 */
+	public long getLength() {
+		return this.length;
+	}
+
+	/**
+	 * @return {@code true} if the request only asks for a range of the file
+	 */
+	public boolean isRanged() {
+		return this.ranged;
+	}
+}
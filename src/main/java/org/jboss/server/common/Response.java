@@ -0,0 +1,296 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@code Response}
+ * <p>
+ * The buffers to write back for a request. A connection reuses the same
+ * instance for all its responses: the views on the payload are only created
+ * when the client asks for a payload it did not ask for recently, otherwise
+ * they are simply rewound. The views on a payload retired by the cache are
+ * dropped on the next request, they never pin an evicted or reloaded
+ * version.
+ * </p>
+ * <p>
+ * The buffers are a header followed by the views on the payload. The header
+ * is empty unless the request asks for a byte range, in which case it gives
+ * the range and its length, e.g.
+ * <tt>Content-Range: 0-1023/32639\r\nContent-Length: 1024\r\n\r\n</tt>, and
+ * the views are narrowed to the range. No content is ever copied, a range is
+ * a set of slices of the shared payload, or a window of the file when the
+ * payload is sent from disk.
+ * </p>
+ * 
+ * Created on Nov 12, 2012 at 11:02:15 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class Response {
+
+	private static final byte CONTENT_RANGE[] = "Content-Range: "
+			.getBytes(StandardCharsets.US_ASCII);
+	private static final byte CONTENT_LENGTH[] = ("\r\nContent-Length: ")
+			.getBytes(StandardCharsets.US_ASCII);
+	private static final byte END_OF_HEADER[] = "\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final int HEADER_SIZE = 128;
+	/**
+	 * The number of payloads whose views are kept by a response
+	 */
+	public static final int CACHED_VIEWS = 4;
+
+	private final ByteBuffer header = ByteBuffer.allocateDirect(HEADER_SIZE);
+	private Payload payload;
+	private ByteBuffer views[];
+	private ByteBuffer buffers[];
+	// Most recently used first, the first entry is the current one
+	private final Payload cachedPayloads[] = new Payload[CACHED_VIEWS];
+	private final ByteBuffer cachedViews[][] = new ByteBuffer[CACHED_VIEWS][];
+	private final ByteBuffer cachedBuffers[][] = new ByteBuffer[CACHED_VIEWS][];
+	private long length;
+	private long filePosition;
+	private long fileCount;
+
+	/**
+	 * Create a new instance of {@code Response}
+	 */
+	public Response() {
+		super();
+	}
+
+	/**
+	 * Prepare the buffers to write back for the request
+	 * 
+	 * @param request
+	 */
+	public void prepare(Request request) {
+		Payload requested = request.getPayload();
+		purge();
+		if (requested != this.payload) {
+			select(requested);
+		}
+		Payload.rewind(this.views);
+		this.header.clear();
+
+		if (!request.isRanged()) {
+			this.header.flip();
+			this.length = requested.getLength();
+			this.filePosition = 0;
+			this.fileCount = requested.getFileLength();
+			return;
+		}
+
+		long size = requested.getFileLength();
+		long offset = Math.min(request.getOffset(), size);
+		long count = request.getLength() < 0 ? size - offset : Math.min(request.getLength(), size
+				- offset);
+		// Narrow the views of the file content to the range, the last view
+		// is the trailer
+		long start = 0;
+		for (int i = 0; i < this.views.length - 1; i++) {
+			ByteBuffer view = this.views[i];
+			int capacity = view.capacity();
+			int from = (int) Math.max(0, Math.min(capacity, offset - start));
+			int to = (int) Math.max(from, Math.min(capacity, offset + count - start));
+			view.limit(to);
+			view.position(from);
+			start += capacity;
+		}
+		writeHeader(offset, count, size);
+		this.length = this.header.remaining() + count + Constants.CRLF.length();
+		this.filePosition = offset;
+		this.fileCount = count;
+	}
+
+	/**
+	 * Make the views on the payload the current ones. The views of the last
+	 * {@link #CACHED_VIEWS} payloads are kept, so that a client going back
+	 * and forth between a few payloads does not create new views for each
+	 * request.
+	 * 
+	 * @param requested
+	 */
+	private void select(Payload requested) {
+		int i = 0;
+		while (i < CACHED_VIEWS - 1 && this.cachedPayloads[i] != null
+				&& this.cachedPayloads[i] != requested) {
+			i++;
+		}
+		ByteBuffer selectedViews[];
+		ByteBuffer selectedBuffers[];
+		if (this.cachedPayloads[i] == requested) {
+			selectedViews = this.cachedViews[i];
+			selectedBuffers = this.cachedBuffers[i];
+		} else {
+			// Not found, the least recently used entry is replaced
+			selectedViews = requested.duplicate();
+			selectedBuffers = new ByteBuffer[selectedViews.length + 1];
+			selectedBuffers[0] = this.header;
+			System.arraycopy(selectedViews, 0, selectedBuffers, 1, selectedViews.length);
+		}
+		// Move the entry to the front
+		System.arraycopy(this.cachedPayloads, 0, this.cachedPayloads, 1, i);
+		System.arraycopy(this.cachedViews, 0, this.cachedViews, 1, i);
+		System.arraycopy(this.cachedBuffers, 0, this.cachedBuffers, 1, i);
+		this.cachedPayloads[0] = requested;
+		this.cachedViews[0] = selectedViews;
+		this.cachedBuffers[0] = selectedBuffers;
+		this.payload = requested;
+		this.views = selectedViews;
+		this.buffers = selectedBuffers;
+	}
+
+	/**
+	 * Drop the views of the payloads retired by the cache, keeping the order
+	 * of the others
+	 */
+	private void purge() {
+		int n = 0;
+		for (int i = 0; i < CACHED_VIEWS; i++) {
+			Payload cached = this.cachedPayloads[i];
+			if (cached != null && !cached.isRetired()) {
+				this.cachedPayloads[n] = cached;
+				this.cachedViews[n] = this.cachedViews[i];
+				this.cachedBuffers[n] = this.cachedBuffers[i];
+				n++;
+			}
+		}
+		for (int i = n; i < CACHED_VIEWS; i++) {
+			this.cachedPayloads[i] = null;
+			this.cachedViews[i] = null;
+			this.cachedBuffers[i] = null;
+		}
+		if (this.cachedPayloads[0] != this.payload) {
+			// The current payload was retired
+			this.payload = null;
+			this.views = null;
+			this.buffers = null;
+		}
+	}
+
+	/**
+	 * Write the range header, without creating any string
+	 * 
+	 * @param offset
+	 * @param count
+	 * @param size
+	 */
+	private void writeHeader(long offset, long count, long size) {
+		this.header.put(CONTENT_RANGE);
+		if (count > 0) {
+			putLong(this.header, offset);
+			this.header.put((byte) '-');
+			putLong(this.header, offset + count - 1);
+		} else {
+			this.header.put((byte) '*');
+		}
+		this.header.put((byte) '/');
+		putLong(this.header, size);
+		this.header.put(CONTENT_LENGTH);
+		putLong(this.header, count);
+		this.header.put(END_OF_HEADER);
+		this.header.flip();
+	}
+
+	/**
+	 * Write the decimal ASCII representation of a positive value
+	 * 
+	 * @param buffer
+	 * @param value
+	 */
+	static void putLong(ByteBuffer buffer, long value) {
+		long divisor = 1;
+		while (value / divisor >= 10) {
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10) {
+			buffer.put((byte) ('0' + (value / divisor) % 10));
+		}
+	}
+
+	/**
+	 * @param mode
+	 *            the way the payloads are sent
+	 * @return {@code true} if the content is sent from the file rather than
+	 *         from the buffers. The encoded variants are only held in memory
+	 *         and always go through the buffers, the files too large to be
+	 *         held in memory always come from the file.
+	 */
+	public boolean isSentFromFile(ResponseMode mode) {
+		return this.payload.getFile() != null
+				&& (mode == ResponseMode.SENDFILE || mode == ResponseMode.STREAM || this.payload
+						.isStreamed());
+	}
+
+	/**
+	 * @return the payload of the response
+	 */
+	public Payload getPayload() {
+		return this.payload;
+	}
+
+	/**
+	 * @return the header of the response, empty unless the request asked for
+	 *         a range
+	 */
+	public ByteBuffer getHeader() {
+		return this.header;
+	}
+
+	/**
+	 * @return the buffers to write: the header followed by the views on the
+	 *         payload
+	 */
+	public ByteBuffer[] getBuffers() {
+		return this.buffers;
+	}
+
+	/**
+	 * @return the total number of bytes of the buffers to write
+	 */
+	public long getLength() {
+		return this.length;
+	}
+
+	/**
+	 * @return the position of the first byte to send when the content is sent
+	 *         from the file
+	 */
+	public long getFilePosition() {
+		return this.filePosition;
+	}
+
+	/**
+	 * @return the number of bytes to send when the content is sent from the
+	 *         file
+	 */
+	public long getFileCount() {
+		return this.fileCount;
+	}
+}
@@ -0,0 +1,96 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+/**
+ * {@code ResponseMode}
+ * <p>
+ * The way the payload is pushed to the client.
+ * </p>
+ * 
+ * Created on Nov 5, 2012 at 9:42:51 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public enum ResponseMode {
+
+	/**
+	 * The payload is written from the shared in-memory buffers
+	 */
+	BUFFER("buffer"),
+	/**
+	 * The payload is streamed from the file to the socket using
+	 * {@code FileChannel.transferTo}, skipping the user-space copy when the
+	 * target channel allows it
+	 */
+	SENDFILE("sendfile"),
+	/**
+	 * The payload is read from the file by chunks into a buffer reused for
+	 * the whole connection, so that the memory used by a connection does not
+	 * depend on the file size. The files too large to be held in memory are
+	 * always streamed.
+	 */
+	STREAM("stream");
+
+	private final String value;
+
+	/**
+	 * Create a new instance of {@code ResponseMode}
+	 * 
+	 * @param value
+	 */
+	private ResponseMode(String value) {
+		this.value = value;
+	}
+
+	/**
+	 * Parse the response mode from its name
+	 * 
+	 * @param value
+	 *            the name of the response mode
+	 * @return the matching response mode
+	 * @throws IllegalArgumentException
+	 *             if the value does not match any response mode
+	 */
+	public static ResponseMode parse(String value) {
+		for (ResponseMode mode : values()) {
+			if (mode.value.equalsIgnoreCase(value)) {
+				return mode;
+			}
+		}
+		throw new IllegalArgumentException("Invalid response mode: " + value);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Enum#toString()
+	 */
+	@Override
+	public String toString() {
+		return this.value;
+	}
+}
@@ -0,0 +1,169 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code Session}
+ * <p>
+ * A live client session: its ID, the engine serving it, its channel and its
+ * activity. The counters are only updated by the thread currently serving
+ * the connection and read by the {@link SessionRegistry} reaper.
+ * </p>
+ * 
+ * Created on Nov 19, 2012 at 10:05:52 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class Session {
+
+	private final SessionId id;
+	private final String engine;
+	private final Closeable channel;
+	private final Shard shard;
+	private final long creationTime;
+	private volatile long lastActivity;
+	private volatile long bytesRead;
+	private volatile long bytesWritten;
+
+	/**
+	 * Create a new instance of {@code Session}
+	 * 
+	 * @param id
+	 *            the session ID
+	 * @param engine
+	 *            the name of the engine serving the session, e.g.
+	 *            <tt>nio2-async</tt>
+	 * @param channel
+	 *            the channel of the connection, closed when the session is
+	 *            reaped
+	 * @param shard
+	 *            the shard which accepted the connection, may be {@code null}
+	 */
+	public Session(SessionId id, String engine, Closeable channel, Shard shard) {
+		this.id = id;
+		this.engine = engine;
+		this.channel = channel;
+		this.shard = shard;
+		this.creationTime = System.nanoTime();
+		this.lastActivity = this.creationTime;
+	}
+
+	/**
+	 * Record bytes read from the client
+	 * 
+	 * @param n
+	 *            the number of bytes read
+	 */
+	public void onRead(long n) {
+		this.bytesRead += n;
+		this.lastActivity = System.nanoTime();
+	}
+
+	/**
+	 * Record bytes written to the client
+	 * 
+	 * @param n
+	 *            the number of bytes written
+	 */
+	public void onWrite(long n) {
+		this.bytesWritten += n;
+		this.lastActivity = System.nanoTime();
+	}
+
+	/**
+	 * @param now
+	 *            the current {@link System#nanoTime()}
+	 * @return the time elapsed since the last activity, in nanoseconds
+	 */
+	public long getIdleTime(long now) {
+		return now - this.lastActivity;
+	}
+
+	/**
+	 * Close the channel of the session. The engine removes the session from
+	 * the registry when it sees the channel closed.
+	 */
+	public void close() {
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// NOPE
+		}
+	}
+
+	/**
+	 * @return the session ID
+	 */
+	public SessionId getId() {
+		return this.id;
+	}
+
+	/**
+	 * @return the shard which accepted the connection, or {@code null}
+	 */
+	public Shard getShard() {
+		return this.shard;
+	}
+
+	/**
+	 * @return the name of the engine serving the session
+	 */
+	public String getEngine() {
+		return this.engine;
+	}
+
+	/**
+	 * @return the number of bytes read from the client
+	 */
+	public long getBytesRead() {
+		return this.bytesRead;
+	}
+
+	/**
+	 * @return the number of bytes written to the client
+	 */
+	public long getBytesWritten() {
+		return this.bytesWritten;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		long now = System.nanoTime();
+		return "Session[" + this.id + ", " + this.engine + ", age="
+				+ TimeUnit.NANOSECONDS.toMillis(now - this.creationTime) + " ms, idle="
+				+ TimeUnit.NANOSECONDS.toMillis(getIdleTime(now)) + " ms, read=" + this.bytesRead
+				+ ", written=" + this.bytesWritten + "]";
+	}
+}
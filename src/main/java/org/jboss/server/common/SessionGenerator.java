@@ -25,29 +25,154 @@
  */
 package org.jboss.server.common;
 
-import java.util.UUID;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * {@code SessionGenerator}
+ * <p>
+ * Generates the session IDs given to the clients at the session
+ * initialization. The generator is chosen with the system property
+ * {@value #GENERATOR_PROPERTY}:
+ * <ul>
+ * <li><tt>fast</tt> (default): random IDs from the per-thread
+ * {@link ThreadLocalRandom}, neither locked nor shared between threads. The
+ * IDs are unique in practice but predictable, they must not be used as
+ * secrets.</li>
+ * <li><tt>secure</tt>: random IDs from a {@link SecureRandom} per thread, so
+ * that the threads accepting connections do not contend on a shared
+ * instance as with {@code UUID.randomUUID()}.</li>
+ * </ul>
+ * Both generate version 4 UUIDs.
+ * </p>
  * 
  * Created on Nov 1, 2011 at 2:25:20 PM
  * 
  * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
  */
-public class SessionGenerator {
+public abstract class SessionGenerator {
+
+	/**
+	 * The system property selecting the generator, <tt>fast</tt> or
+	 * <tt>secure</tt>
+	 */
+	public static final String GENERATOR_PROPERTY = "org.jboss.server.session.generator";
+	private static final byte HANDSHAKE_PREFIX[] = "jSessionId: "
+			.getBytes(StandardCharsets.US_ASCII);
+	private static final byte CRLF[] = Constants.CRLF.getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * The length of the session initialization response
+	 */
+	public static final int HANDSHAKE_LENGTH = HANDSHAKE_PREFIX.length + SessionId.LENGTH
+			+ CRLF.length;
+
+	private static final SessionGenerator INSTANCE = create(System.getProperty(
+			GENERATOR_PROPERTY, "fast"));
 
 	/**
 	 * Create a new instance of {@code SessionGenerator}
 	 */
-	public SessionGenerator() {
+	protected SessionGenerator() {
 		super();
 	}
 
 	/**
+	 * @param name
+	 *            the name of the generator, <tt>fast</tt> or <tt>secure</tt>
+	 * @return a new generator
+	 * @throws IllegalArgumentException
+	 *             if the name is unknown
+	 */
+	public static SessionGenerator create(String name) {
+		switch (name.trim().toLowerCase()) {
+			case "fast":
+				return new FastGenerator();
+			case "secure":
+				return new SecureGenerator();
+			default:
+				throw new IllegalArgumentException("Unknown session generator: " + name);
+		}
+	}
+
+	/**
+	 * @return the generator selected by {@value #GENERATOR_PROPERTY}
+	 */
+	public static SessionGenerator getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Generate a new session ID
 	 * 
-	 * @return
+	 * @return a random session ID
 	 */
-	public static String generateId() {
-		return UUID.randomUUID().toString();
+	public SessionId generate() {
+		long msb = nextLong();
+		long lsb = nextLong();
+		// Version 4 and IETF variant, as UUID.randomUUID()
+		msb = (msb & ~0xf000L) | 0x4000L;
+		lsb = (lsb & 0x3fffffffffffffffL) | 0x8000000000000000L;
+		return new SessionId(msb, lsb);
+	}
+
+	/**
+	 * @return the next 64 random bits
+	 */
+	protected abstract long nextLong();
+
+	/**
+	 * Write the session initialization response,
+	 * <tt>jSessionId: &lt;id&gt;\r\n</tt>, to the buffer
+	 * 
+	 * @param buffer
+	 *            the target buffer, with at least {@link #HANDSHAKE_LENGTH}
+	 *            bytes remaining
+	 * @param sessionId
+	 */
+	public static void putHandshake(ByteBuffer buffer, SessionId sessionId) {
+		buffer.put(HANDSHAKE_PREFIX);
+		sessionId.encode(buffer);
+		buffer.put(CRLF);
+	}
+
+	/**
+	 * {@code FastGenerator}
+	 */
+	private static final class FastGenerator extends SessionGenerator {
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.jboss.server.common.SessionGenerator#nextLong()
+		 */
+		@Override
+		protected long nextLong() {
+			return ThreadLocalRandom.current().nextLong();
+		}
+	}
+
+	/**
+	 * {@code SecureGenerator}
+	 */
+	private static final class SecureGenerator extends SessionGenerator {
+
+		private final ThreadLocal<SecureRandom> random = new ThreadLocal<SecureRandom>() {
+			@Override
+			protected SecureRandom initialValue() {
+				return new SecureRandom();
+			}
+		};
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.jboss.server.common.SessionGenerator#nextLong()
+		 */
+		@Override
+		protected long nextLong() {
+			return this.random.get().nextLong();
+		}
 	}
 }
@@ -0,0 +1,147 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/**
+ * {@code SessionId}
+ * <p>
+ * A 128 bits session ID, held as two {@code long}s and written as the 36
+ * ASCII characters of the UUID textual form. The ID is encoded straight into
+ * the buffers it is sent with, the string form is only built for logging.
+ * </p>
+ * 
+ * Created on Nov 16, 2012 at 9:12:40 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class SessionId {
+
+	/**
+	 * The number of ASCII characters of an encoded ID
+	 */
+	public static final int LENGTH = 36;
+	private static final byte HEX[] = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a',
+			'b', 'c', 'd', 'e', 'f' };
+
+	private final long mostSigBits;
+	private final long leastSigBits;
+
+	/**
+	 * Create a new instance of {@code SessionId}
+	 * 
+	 * @param mostSigBits
+	 * @param leastSigBits
+	 */
+	public SessionId(long mostSigBits, long leastSigBits) {
+		this.mostSigBits = mostSigBits;
+		this.leastSigBits = leastSigBits;
+	}
+
+	/**
+	 * Write the ASCII form of the ID, e.g.
+	 * <tt>f81d4fae-7dec-41d0-a765-00a0c91e6bf6</tt>, to the buffer
+	 * 
+	 * @param buffer
+	 *            the target buffer, with at least {@link #LENGTH} bytes
+	 *            remaining
+	 */
+	public void encode(ByteBuffer buffer) {
+		putHex(buffer, this.mostSigBits >>> 32, 8);
+		buffer.put((byte) '-');
+		putHex(buffer, this.mostSigBits >>> 16, 4);
+		buffer.put((byte) '-');
+		putHex(buffer, this.mostSigBits, 4);
+		buffer.put((byte) '-');
+		putHex(buffer, this.leastSigBits >>> 48, 4);
+		buffer.put((byte) '-');
+		putHex(buffer, this.leastSigBits, 12);
+	}
+
+	/**
+	 * Write the {@code digits} lowest hexadecimal digits of the value
+	 * 
+	 * @param buffer
+	 * @param value
+	 * @param digits
+	 */
+	private static void putHex(ByteBuffer buffer, long value, int digits) {
+		for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+			buffer.put(HEX[(int) (value >>> shift) & 0xf]);
+		}
+	}
+
+	/**
+	 * @return the most significant 64 bits of the ID
+	 */
+	public long getMostSignificantBits() {
+		return this.mostSigBits;
+	}
+
+	/**
+	 * @return the least significant 64 bits of the ID
+	 */
+	public long getLeastSignificantBits() {
+		return this.leastSigBits;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		long h = this.mostSigBits ^ this.leastSigBits;
+		return (int) (h >> 32) ^ (int) h;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#equals(java.lang.Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof SessionId)) {
+			return false;
+		}
+		SessionId other = (SessionId) obj;
+		return this.mostSigBits == other.mostSigBits && this.leastSigBits == other.leastSigBits;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return new UUID(this.mostSigBits, this.leastSigBits).toString();
+	}
+}
@@ -0,0 +1,424 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.HashedWheelTimer.Timeout;
+
+/**
+ * {@code SessionRegistry}
+ * <p>
+ * The live sessions of the server, keyed by session ID. The registry is
+ * split into {@value #STRIPES} stripes, each one an open-addressing table
+ * keyed by the two {@code long}s of the IDs and locked on its own, so that
+ * registering and removing sessions does not contend on a global lock nor
+ * create any entry object.
+ * </p>
+ * <p>
+ * A reaper thread closes the sessions idle for longer than the timeout given
+ * by the system property {@value #IDLE_TIMEOUT_PROPERTY} (in seconds, default
+ * 300, {@code 0} disables the reaper). Closing the channel wakes up the
+ * engine serving the session, which then removes it from the registry.
+ * </p>
+ * 
+ * Created on Nov 19, 2012 at 10:47:16 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class SessionRegistry {
+
+	/**
+	 * The system property giving the idle timeout of the sessions, in seconds
+	 */
+	public static final String IDLE_TIMEOUT_PROPERTY = "org.jboss.server.session.idle";
+	/**
+	 * The number of stripes of the registry
+	 */
+	public static final int STRIPES = 64;
+	private static final Logger logger = Logger.getLogger(SessionRegistry.class);
+
+	private final Stripe stripes[] = new Stripe[STRIPES];
+	private final long idleTimeout;
+
+	/**
+	 * {@code Holder}
+	 * <p>
+	 * Lazy holder of the shared registry
+	 * </p>
+	 */
+	private static final class Holder {
+		private static final SessionRegistry INSTANCE = create();
+	}
+
+	/**
+	 * {@code Stripe}
+	 * <p>
+	 * Open-addressing table with linear probing, the keys are the two halves
+	 * of the session IDs
+	 * </p>
+	 */
+	private static final class Stripe {
+
+		private long msbs[] = new long[16];
+		private long lsbs[] = new long[16];
+		private Session values[] = new Session[16];
+		private int size;
+
+		/**
+		 * @param msb
+		 * @param lsb
+		 * @return the slot of the key, or the empty slot where it would be
+		 */
+		private int slot(long msb, long lsb) {
+			int mask = this.values.length - 1;
+			int i = index(msb, lsb) & mask;
+			while (this.values[i] != null && (this.msbs[i] != msb || this.lsbs[i] != lsb)) {
+				i = (i + 1) & mask;
+			}
+			return i;
+		}
+
+		/**
+		 * @param session
+		 */
+		void put(Session session) {
+			if (2 * (this.size + 1) > this.values.length) {
+				resize();
+			}
+			long msb = session.getId().getMostSignificantBits();
+			long lsb = session.getId().getLeastSignificantBits();
+			int i = slot(msb, lsb);
+			if (this.values[i] == null) {
+				this.size++;
+			}
+			this.msbs[i] = msb;
+			this.lsbs[i] = lsb;
+			this.values[i] = session;
+		}
+
+		/**
+		 * @param msb
+		 * @param lsb
+		 * @return the session or {@code null}
+		 */
+		Session get(long msb, long lsb) {
+			return this.values[slot(msb, lsb)];
+		}
+
+		/**
+		 * Remove the session, shifting back the following entries of the
+		 * probe sequence so that no tombstone is needed
+		 * 
+		 * @param session
+		 * @return {@code true} if the session was registered
+		 */
+		boolean remove(Session session) {
+			int i = slot(session.getId().getMostSignificantBits(), session.getId()
+					.getLeastSignificantBits());
+			if (this.values[i] != session) {
+				return false;
+			}
+			int mask = this.values.length - 1;
+			int hole = i;
+			for (int j = (i + 1) & mask; this.values[j] != null; j = (j + 1) & mask) {
+				int home = index(this.msbs[j], this.lsbs[j]) & mask;
+				// Move the entry to the hole unless its home slot lies
+				// cyclically in (hole, j]
+				if (hole <= j ? (home <= hole || home > j) : (home <= hole && home > j)) {
+					this.msbs[hole] = this.msbs[j];
+					this.lsbs[hole] = this.lsbs[j];
+					this.values[hole] = this.values[j];
+					hole = j;
+				}
+			}
+			this.values[hole] = null;
+			this.size--;
+			return true;
+		}
+
+		/**
+		 * Double the capacity of the table
+		 */
+		private void resize() {
+			long oldMsbs[] = this.msbs;
+			long oldLsbs[] = this.lsbs;
+			Session oldValues[] = this.values;
+			int capacity = 2 * oldValues.length;
+			this.msbs = new long[capacity];
+			this.lsbs = new long[capacity];
+			this.values = new Session[capacity];
+			for (int j = 0; j < oldValues.length; j++) {
+				if (oldValues[j] != null) {
+					int i = slot(oldMsbs[j], oldLsbs[j]);
+					this.msbs[i] = oldMsbs[j];
+					this.lsbs[i] = oldLsbs[j];
+					this.values[i] = oldValues[j];
+				}
+			}
+		}
+
+		/**
+		 * Copy the sessions idle for longer than the timeout
+		 * 
+		 * @param now
+		 * @param timeout
+		 * @param out
+		 *            the array receiving the idle sessions, grown if needed
+		 * @param n
+		 *            the number of sessions already in the array
+		 * @return the array
+		 */
+		Session[] collectIdle(long now, long timeout, Session out[], int n[]) {
+			for (Session session : this.values) {
+				if (session != null && session.getIdleTime(now) > timeout) {
+					if (n[0] == out.length) {
+						out = Arrays.copyOf(out, 2 * out.length);
+					}
+					out[n[0]++] = session;
+				}
+			}
+			return out;
+		}
+	}
+
+	/**
+	 * Create a new instance of {@code SessionRegistry}
+	 * 
+	 * @param idleTimeout
+	 *            the idle timeout of the sessions in nanoseconds, {@code 0}
+	 *            for no timeout
+	 */
+	SessionRegistry(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+		for (int i = 0; i < STRIPES; i++) {
+			this.stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * Create the shared registry and start its reaper
+	 * 
+	 * @return the shared registry
+	 */
+	private static SessionRegistry create() {
+		long seconds = Long.getLong(IDLE_TIMEOUT_PROPERTY, 300);
+		SessionRegistry registry = new SessionRegistry(TimeUnit.SECONDS.toNanos(seconds));
+		if (seconds > 0) {
+			Thread reaper = new Thread(registry.new Reaper(), "session-reaper");
+			reaper.setDaemon(true);
+			reaper.start();
+			logger.infof("Sessions idle for more than %d s are closed", seconds);
+		}
+		return registry;
+	}
+
+	/**
+	 * @return the shared registry
+	 */
+	public static SessionRegistry getInstance() {
+		return Holder.INSTANCE;
+	}
+
+	/**
+	 * Spread the bits of the key, the IDs are random but may share their
+	 * version bits
+	 */
+	private static int index(long msb, long lsb) {
+		long h = (msb ^ lsb) * 0x9e3779b97f4a7c15L;
+		return (int) (h >>> 32);
+	}
+
+	/**
+	 * @param msb
+	 * @param lsb
+	 * @return the stripe of the key
+	 */
+	private Stripe stripe(long msb, long lsb) {
+		// The table index uses the high bits, the stripe the low ones
+		return this.stripes[(int) ((msb ^ lsb) * 0x9e3779b97f4a7c15L) & (STRIPES - 1)];
+	}
+
+	/**
+	 * Create and register a new session
+	 * 
+	 * @param id
+	 *            the session ID
+	 * @param engine
+	 *            the name of the engine serving the session
+	 * @param channel
+	 *            the channel of the connection
+	 * @param shard
+	 *            the shard which accepted the connection, may be {@code null}
+	 * @return the new session
+	 */
+	public Session register(SessionId id, String engine, Closeable channel, Shard shard) {
+		Session session = new Session(id, engine, channel, shard);
+		Stripe stripe = stripe(id.getMostSignificantBits(), id.getLeastSignificantBits());
+		synchronized (stripe) {
+			stripe.put(session);
+		}
+		if (shard != null) {
+			shard.onOpen();
+		}
+		return session;
+	}
+
+	/**
+	 * Remove the session from the registry. Removing a session twice is
+	 * harmless.
+	 * 
+	 * @param session
+	 *            the session to remove, {@code null} is ignored
+	 */
+	public void remove(Session session) {
+		if (session == null) {
+			return;
+		}
+		SessionId id = session.getId();
+		Stripe stripe = stripe(id.getMostSignificantBits(), id.getLeastSignificantBits());
+		boolean removed;
+		synchronized (stripe) {
+			removed = stripe.remove(session);
+		}
+		if (removed && session.getShard() != null) {
+			session.getShard().onClose();
+		}
+	}
+
+	/**
+	 * @param id
+	 * @return the live session with that ID or {@code null}
+	 */
+	public Session get(SessionId id) {
+		long msb = id.getMostSignificantBits();
+		long lsb = id.getLeastSignificantBits();
+		Stripe stripe = stripe(msb, lsb);
+		synchronized (stripe) {
+			return stripe.get(msb, lsb);
+		}
+	}
+
+	/**
+	 * @return the number of live sessions
+	 */
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : this.stripes) {
+			synchronized (stripe) {
+				size += stripe.size;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Arm the deadline of the next read of a connection. Between two requests
+	 * the connection is idle and has until the idle timeout of the sessions
+	 * (no deadline when the reaper is disabled), while a request partially
+	 * read must complete within {@link Constants#DEFAULT_TIMEOUT}.
+	 * 
+	 * @param timeout
+	 *            the timeout of the connection
+	 * @param readBuffer
+	 *            the read buffer of the connection, in fill mode
+	 */
+	public void armReadDeadline(Timeout timeout, ByteBuffer readBuffer) {
+		if (readBuffer.position() > 0) {
+			timeout.arm(Constants.DEFAULT_TIMEOUT, Constants.DEFAULT_TIME_UNIT);
+		} else if (this.idleTimeout > 0) {
+			timeout.arm(this.idleTimeout, TimeUnit.NANOSECONDS);
+		} else {
+			timeout.disarm();
+		}
+	}
+
+	/**
+	 * Close the sessions idle for longer than the timeout
+	 * 
+	 * @param idle
+	 *            an array to collect the idle sessions, grown if needed
+	 * @param now
+	 *            the current {@link System#nanoTime()}
+	 * @return the array used
+	 */
+	Session[] reap(Session idle[], long now) {
+		int n[] = { 0 };
+		for (Stripe stripe : this.stripes) {
+			// Only collect under the lock, closing may take a while
+			synchronized (stripe) {
+				idle = stripe.collectIdle(now, this.idleTimeout, idle, n);
+			}
+		}
+		for (int i = 0; i < n[0]; i++) {
+			logger.debugv("Closing idle session {0}", idle[i]);
+			idle[i].close();
+			// Do not wait for the engine to see the channel closed
+			remove(idle[i]);
+			idle[i] = null;
+		}
+		if (n[0] > 0) {
+			logger.infof("%d idle sessions closed, %d live sessions", n[0], size());
+		}
+		return idle;
+	}
+
+	/**
+	 * {@code Reaper}
+	 * <p>
+	 * Closes the idle sessions, checking four times per timeout period and at
+	 * least once per second
+	 * </p>
+	 */
+	private final class Reaper implements Runnable {
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			long period = Math.max(1, TimeUnit.NANOSECONDS.toMillis(idleTimeout / 4));
+			period = Math.min(period, 1000);
+			Session idle[] = new Session[64];
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					Thread.sleep(period);
+					idle = reap(idle, System.nanoTime());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (Throwable th) {
+					logger.error("Session reaper failure", th);
+				}
+			}
+		}
+	}
+}
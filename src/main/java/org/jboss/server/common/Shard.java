@@ -0,0 +1,203 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+
+/**
+ * {@code Shard}
+ * <p>
+ * An accepting unit of a server, e.g. one of the listeners sharing the port
+ * with {@code SO_REUSEPORT}, with its counters: the connections accepted and
+ * the sessions still open. All the shards are reported in the logs every
+ * {@value #REPORT_PROPERTY} seconds (default 10, 0 to disable) when their
+ * counters changed, to see how evenly the connections are spread.
+ * </p>
+ * 
+ * Created on Nov 23, 2012 at 11:08:27 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class Shard {
+
+	private static final Logger logger = Logger.getLogger(Shard.class);
+	/**
+	 * The system property giving the interval of the shard reports, in
+	 * seconds
+	 */
+	public static final String REPORT_PROPERTY = "org.jboss.server.shards.report";
+
+	private static final List<Shard> SHARDS = new CopyOnWriteArrayList<>();
+	private static final AtomicBoolean REPORTER_STARTED = new AtomicBoolean();
+
+	private final String name;
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicInteger active = new AtomicInteger();
+
+	/**
+	 * Create a new instance of {@code Shard}
+	 * 
+	 * @param name
+	 */
+	private Shard(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Create and register a new shard
+	 * 
+	 * @param name
+	 *            the name of the shard, e.g. <tt>nio2-0</tt>
+	 * @return the new shard
+	 */
+	public static Shard create(String name) {
+		if (REPORTER_STARTED.compareAndSet(false, true)) {
+			long seconds = Long.getLong(REPORT_PROPERTY, 10);
+			if (seconds > 0) {
+				startReporter(TimeUnit.SECONDS.toMillis(seconds));
+			}
+		}
+		Shard shard = new Shard(name);
+		SHARDS.add(shard);
+		return shard;
+	}
+
+	/**
+	 * Start the daemon thread logging the shards
+	 * 
+	 * @param interval
+	 *            the interval of the reports, in milliseconds
+	 */
+	private static void startReporter(final long interval) {
+		Thread thread = new Thread(new Runnable() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.lang.Runnable#run()
+			 */
+			@Override
+			public void run() {
+				String last = null;
+				for (;;) {
+					try {
+						Thread.sleep(interval);
+					} catch (InterruptedException e) {
+						return;
+					}
+					String report = report();
+					if (!report.equals(last)) {
+						logger.infof("Shards: %s", report);
+						last = report;
+					}
+				}
+			}
+		}, "shard-reporter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @return the counters of all the shards
+	 */
+	public static String report() {
+		StringBuilder sb = new StringBuilder();
+		for (Shard shard : SHARDS) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(shard);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return all the shards created so far
+	 */
+	public static List<Shard> getShards() {
+		return SHARDS;
+	}
+
+	/**
+	 * Count a connection accepted by this shard
+	 */
+	public void onAccept() {
+		this.accepted.incrementAndGet();
+	}
+
+	/**
+	 * Count a session opened on a connection of this shard
+	 */
+	void onOpen() {
+		this.active.incrementAndGet();
+	}
+
+	/**
+	 * Count a session of this shard closed
+	 */
+	void onClose() {
+		this.active.decrementAndGet();
+	}
+
+	/**
+	 * @return the name of the shard
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return the number of connections accepted by the shard
+	 */
+	public long getAccepted() {
+		return this.accepted.get();
+	}
+
+	/**
+	 * @return the number of open sessions of the shard
+	 */
+	public int getActive() {
+		return this.active.get();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return this.name + "[accepted=" + this.accepted.get() + ", active=" + this.active.get()
+				+ "]";
+	}
+}
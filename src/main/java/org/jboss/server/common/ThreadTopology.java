@@ -0,0 +1,259 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@code ThreadTopology}
+ * <p>
+ * The threads of the engines, read from system properties so that each
+ * engine can be tuned to the machine without recompiling:
+ * <ul>
+ * <li>{@value #STRATEGY_PROPERTY}: how the NIO.2 channel groups get their
+ * threads, see {@link Strategy} (default <tt>pool</tt>)</li>
+ * <li>{@value #POOL_SIZE_PROPERTY}: the size of the shared thread pool, which
+ * runs the client managers of the sync engines and, with the <tt>pool</tt>
+ * strategy, the completion handlers (default 512)</li>
+ * <li>{@value #IO_THREADS_PROPERTY}: the threads of the <tt>fixed</tt> and
+ * <tt>forkjoin</tt> strategies, and the read and the write threads of the
+ * XNIO workers (default: the number of processors)</li>
+ * <li>{@value #GROUPS_PROPERTY}: the number of channel groups of the
+ * <tt>groups</tt> strategy (default: the number of processors)</li>
+ * <li>{@value #TASK_THREADS_PROPERTY}: the maximum number of task threads of
+ * the XNIO workers (default 1000)</li>
+ * <li>{@value #SHARDS_PROPERTY}: the number of NIO.2 listeners sharing the
+ * server port with {@code SO_REUSEPORT}, each with its own channel group, or
+ * of XNIO read threads accepting on the single listener (default 1)</li>
+ * </ul>
+ * </p>
+ * 
+ * Created on Nov 22, 2012 at 2:31:09 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class ThreadTopology {
+
+	/**
+	 * The system property selecting the strategy of the NIO.2 channel groups
+	 */
+	public static final String STRATEGY_PROPERTY = "org.jboss.server.threads.strategy";
+	/**
+	 * The system property giving the size of the shared thread pool
+	 */
+	public static final String POOL_SIZE_PROPERTY = "org.jboss.server.threads.pool";
+	/**
+	 * The system property giving the number of I/O threads
+	 */
+	public static final String IO_THREADS_PROPERTY = "org.jboss.server.threads.io";
+	/**
+	 * The system property giving the number of channel groups
+	 */
+	public static final String GROUPS_PROPERTY = "org.jboss.server.threads.groups";
+	/**
+	 * The system property giving the maximum number of XNIO task threads
+	 */
+	public static final String TASK_THREADS_PROPERTY = "org.jboss.server.threads.tasks";
+	/**
+	 * The system property giving the number of listeners
+	 */
+	public static final String SHARDS_PROPERTY = "org.jboss.server.shards";
+
+	/**
+	 * {@code Strategy}
+	 * <p>
+	 * How the threads of the NIO.2 channel groups are provided
+	 * </p>
+	 */
+	public enum Strategy {
+
+		/**
+		 * A group per shard wrapping a thread pool with
+		 * {@code withThreadPool}: the completions are dispatched to the pool
+		 * by the internal threads of the group. The first shard wraps the
+		 * shared thread pool, each other shard a pool of its own of the same
+		 * size.
+		 */
+		POOL("pool"),
+		/**
+		 * A group per shard created with {@code withFixedThreadPool}: its
+		 * threads wait for the I/O events and run the completion handlers
+		 * directly
+		 */
+		FIXED("fixed"),
+		/**
+		 * A group per shard wrapping a work-stealing {@code ForkJoinPool}
+		 */
+		FORKJOIN("forkjoin"),
+		/**
+		 * Several single-threaded groups, each with its own listener bound to
+		 * the server port with {@code SO_REUSEPORT}: the kernel hashes the
+		 * incoming connections across the listeners, and a connection is
+		 * served by the thread of its group only
+		 */
+		GROUPS("groups");
+
+		private final String value;
+
+		/**
+		 * Create a new instance of {@code Strategy}
+		 * 
+		 * @param value
+		 */
+		private Strategy(String value) {
+			this.value = value;
+		}
+
+		/**
+		 * Parse the strategy from its name
+		 * 
+		 * @param value
+		 *            the name of the strategy
+		 * @return the matching strategy
+		 * @throws IllegalArgumentException
+		 *             if the value does not match any strategy
+		 */
+		public static Strategy parse(String value) {
+			for (Strategy strategy : values()) {
+				if (strategy.value.equalsIgnoreCase(value.trim())) {
+					return strategy;
+				}
+			}
+			throw new IllegalArgumentException("Invalid thread strategy: " + value);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.Enum#toString()
+		 */
+		@Override
+		public String toString() {
+			return this.value;
+		}
+	}
+
+	/**
+	 * Create a new instance of {@code ThreadTopology}
+	 */
+	private ThreadTopology() {
+		super();
+	}
+
+	/**
+	 * @return the strategy of the NIO.2 channel groups
+	 */
+	public static Strategy getStrategy() {
+		return Strategy.parse(System.getProperty(STRATEGY_PROPERTY, Strategy.POOL.toString()));
+	}
+
+	/**
+	 * @return the size of the shared thread pool
+	 */
+	public static int getPoolSize() {
+		return positive(POOL_SIZE_PROPERTY, 512);
+	}
+
+	/**
+	 * @return the number of I/O threads
+	 */
+	public static int getIoThreads() {
+		return positive(IO_THREADS_PROPERTY, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return the number of channel groups of the <tt>groups</tt> strategy
+	 */
+	public static int getGroups() {
+		return positive(GROUPS_PROPERTY, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @return the maximum number of task threads of the XNIO workers
+	 */
+	public static int getTaskThreads() {
+		return positive(TASK_THREADS_PROPERTY, 1000);
+	}
+
+	/**
+	 * @return the number of listeners sharing the server port
+	 */
+	public static int getShards() {
+		return positive(SHARDS_PROPERTY, 1);
+	}
+
+	/**
+	 * @param property
+	 * @param defaultValue
+	 * @return the value of the property
+	 * @throws IllegalArgumentException
+	 *             if the value is not a positive number
+	 */
+	private static int positive(String property, int defaultValue) {
+		int value = Integer.getInteger(property, defaultValue);
+		if (value <= 0) {
+			throw new IllegalArgumentException("Invalid value of " + property + ": " + value);
+		}
+		return value;
+	}
+
+	/**
+	 * Create a factory of daemon threads named after the prefix followed by
+	 * their number
+	 * 
+	 * @param prefix
+	 *            the prefix of the thread names
+	 * @return a new thread factory
+	 */
+	public static ThreadFactory newThreadFactory(final String prefix) {
+		return new ThreadFactory() {
+
+			private final AtomicInteger counter = new AtomicInteger();
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+			 */
+			@Override
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, prefix + this.counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * @return a description of the topology, for the logs
+	 */
+	public static String describe() {
+		return String.format("strategy=%s, pool=%d, io=%d, groups=%d, tasks=%d, shards=%d",
+				getStrategy(), getPoolSize(), getIoThreads(), getGroups(), getTaskThreads(),
+				getShards());
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@code VirtualThreads}
+ * <p>
+ * Access to the virtual threads of Java 21. The project is built for an
+ * older release, so the API is reached through reflection; the
+ * {@code sync-vt} mode is rejected on a runtime without virtual threads.
+ * </p>
+ * 
+ * Created on Nov 21, 2012 at 9:05:18 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public final class VirtualThreads {
+
+	/**
+	 * The prefix of the names of the virtual threads
+	 */
+	public static final String THREAD_NAME_PREFIX = "client-";
+
+	private static final ThreadFactory FACTORY = factory();
+	private static final MethodHandle IS_VIRTUAL = isVirtualHandle();
+
+	/**
+	 * Create a new instance of {@code VirtualThreads}
+	 */
+	private VirtualThreads() {
+		super();
+	}
+
+	/**
+	 * @return the factory of named virtual threads, or {@code null} if the
+	 *         runtime does not support them
+	 */
+	private static ThreadFactory factory() {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder,
+					THREAD_NAME_PREFIX, 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Before Java 21, or a preview feature not enabled
+			return null;
+		}
+	}
+
+	/**
+	 * @return the handle of {@code Thread.isVirtual()}, or {@code null} if the
+	 *         runtime does not support virtual threads
+	 */
+	private static MethodHandle isVirtualHandle() {
+		try {
+			return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+					MethodType.methodType(boolean.class));
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param thread
+	 * @return {@code true} if the thread is a virtual thread
+	 */
+	public static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (boolean) IS_VIRTUAL.invokeExact(thread);
+		} catch (Throwable th) {
+			return false;
+		}
+	}
+
+	/**
+	 * @return {@code true} if the runtime supports virtual threads
+	 */
+	public static boolean isSupported() {
+		return FACTORY != null;
+	}
+
+	/**
+	 * Create an executor starting a new virtual thread for each task
+	 * 
+	 * @return a new executor
+	 * @throws UnsupportedOperationException
+	 *             if the runtime does not support virtual threads
+	 */
+	public static ExecutorService newExecutor() {
+		if (FACTORY == null) {
+			throw new UnsupportedOperationException("Virtual threads require Java 21, running "
+					+ System.getProperty("java.version"));
+		}
+		try {
+			Method method = Executors.class.getMethod("newThreadPerTaskExecutor",
+					ThreadFactory.class);
+			return (ExecutorService) method.invoke(null, FACTORY);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException("Cannot create a virtual thread executor", e);
+		}
+	}
+}
@@ -0,0 +1,509 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.nio;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.BufferPool;
+import org.jboss.server.common.Constants;
+import org.jboss.server.common.HashedWheelTimer;
+import org.jboss.server.common.HashedWheelTimer.Timeout;
+import org.jboss.server.common.Payload;
+import org.jboss.server.common.Pipeline;
+import org.jboss.server.common.Response;
+import org.jboss.server.common.ResponseMode;
+import org.jboss.server.common.Session;
+import org.jboss.server.common.SessionGenerator;
+import org.jboss.server.common.SessionRegistry;
+
+/**
+ * {@code Connection}
+ * <p>
+ * The state of a connection served by a {@link Reactor}, attached to the
+ * selection key of its channel. The connection reads the greeting line of
+ * the client and sends the session ID back, then answers the requests batch
+ * by batch (see {@link Pipeline}): the responses held in memory with
+ * gathering writes, then the response sent from the file, if any, streamed
+ * by chunks or transferred with {@link FileChannel#transferTo} in sendfile
+ * mode. What the socket does not accept is written on the next write events
+ * of the channel, the reads are suspended while requests are queued behind
+ * a backlog exceeding {@link #HIGH_WATERMARK} or while the read buffer is
+ * full.
+ * </p>
+ * <p>
+ * The connection is only touched by the thread of its reactor. The other
+ * threads, i.e. the timer and the session reaper, close it through
+ * {@link #close()}, which hands the close over to the reactor so that the
+ * session and the buffers are always released.
+ * </p>
+ * 
+ * Created on Dec 3, 2012 at 11:20:52 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+final class Connection implements Closeable {
+
+	private static final Logger logger = Logger.getLogger(Connection.class);
+
+	/**
+	 * The backlog, in bytes, above which the reads of the connection are
+	 * suspended when requests are queued behind the batch
+	 */
+	static final long HIGH_WATERMARK = 64 * 1024;
+	/**
+	 * The backlog, in bytes, under which the reads of the connection are
+	 * resumed
+	 */
+	static final long LOW_WATERMARK = 16 * 1024;
+
+	private final Reactor reactor;
+	private final SocketChannel channel;
+	private final ResponseMode responseMode;
+	private final Timeout timeout;
+	private final Pipeline pipeline = new Pipeline();
+	private final ByteBuffer trailer = Payload.trailer();
+	private final AtomicBoolean closing = new AtomicBoolean();
+	private Session session;
+	private SelectionKey key;
+	private ByteBuffer readBuffer;
+	/**
+	 * The session ID being sent, {@code null} once the handshake is complete
+	 */
+	private ByteBuffer handshake;
+	private boolean greeted;
+	private boolean writing;
+	private boolean closed;
+	// The batch being written
+	private ByteBuffer buffers[];
+	private int offset;
+	private int count;
+	private FileChannel file;
+	private long position;
+	private long end;
+	private ByteBuffer current;
+	private ByteBuffer chunk;
+	private long backlog;
+
+	/**
+	 * Create a new instance of {@code Connection}
+	 * 
+	 * @param reactor
+	 *            the reactor serving the connection
+	 * @param channel
+	 *            the accepted channel, in non-blocking mode
+	 * @param responseMode
+	 *            the way the payload is pushed to the client
+	 */
+	Connection(Reactor reactor, SocketChannel channel, ResponseMode responseMode) {
+		this.reactor = reactor;
+		this.channel = channel;
+		this.responseMode = responseMode;
+		this.timeout = HashedWheelTimer.getInstance().newTimeout(this);
+	}
+
+	/**
+	 * Register the channel with the selector of the reactor and wait for the
+	 * greeting of the client. Called by the reactor.
+	 * 
+	 * @param selector
+	 */
+	void register(Selector selector) {
+		if (this.closing.get()) {
+			// Closed before being registered
+			closeNow();
+			return;
+		}
+		try {
+			this.readBuffer = BufferPool.getReadBufferPool().acquire();
+			this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+			this.timeout.arm(Constants.HANDSHAKE_TIMEOUT, Constants.DEFAULT_TIME_UNIT);
+		} catch (IOException e) {
+			closeNow();
+		}
+	}
+
+	/**
+	 * Handle the ready operations of the channel. Called by the reactor.
+	 * 
+	 * @param key
+	 *            the selection key of the channel
+	 */
+	void handle(SelectionKey key) {
+		try {
+			int ready = key.readyOps();
+			if ((ready & SelectionKey.OP_READ) != 0) {
+				onReadable();
+			}
+			if (!this.closed && (ready & SelectionKey.OP_WRITE) != 0) {
+				onWritable();
+			}
+		} catch (IOException | CancelledKeyException e) {
+			closeNow();
+		} catch (RuntimeException e) {
+			// Do not leave the connection half served, the reactor goes on
+			logger.errorv("[{0}] Unexpected error, closing the connection: {1}", this.session, e);
+			closeNow();
+		}
+	}
+
+	/**
+	 * Read the available bytes, then read the greeting or answer the
+	 * requests
+	 * 
+	 * @throws IOException
+	 */
+	private void onReadable() throws IOException {
+		int nBytes = this.channel.read(this.readBuffer);
+		if (nBytes < 0) {
+			// The connection was closed remotely
+			closeNow();
+			return;
+		}
+		if (nBytes > 0) {
+			this.session.onRead(nBytes);
+		}
+		if (!this.greeted) {
+			readGreeting();
+			return;
+		}
+		if (this.readBuffer.position() == 0) {
+			// Nothing to answer
+			return;
+		}
+		if (this.writing) {
+			// The requests read ahead are answered once the pending batch is
+			// written, stop reading when there is no room left for them or
+			// when the backlog is too large
+			if (!this.readBuffer.hasRemaining() || this.backlog > HIGH_WATERMARK) {
+				interest(SelectionKey.OP_WRITE);
+			}
+		} else {
+			answer();
+		}
+	}
+
+	/**
+	 * Write more of the session ID or of the pending batch, then answer the
+	 * requests read ahead once it is complete
+	 * 
+	 * @throws IOException
+	 */
+	private void onWritable() throws IOException {
+		if (this.handshake != null) {
+			sendId();
+		} else if (this.writing) {
+			if (flush()) {
+				answer();
+			} else {
+				if (this.backlog < LOW_WATERMARK && this.readBuffer.hasRemaining()) {
+					interest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+				this.timeout.arm(Constants.DEFAULT_TIMEOUT, Constants.DEFAULT_TIME_UNIT);
+			}
+		}
+	}
+
+	/**
+	 * Look for the end of the greeting line, then start sending the session
+	 * ID. The bytes which follow the greeting, e.g. a first pipelined
+	 * request, are kept in the read buffer.
+	 * 
+	 * @throws IOException
+	 */
+	private void readGreeting() throws IOException {
+		int end = 0;
+		int limit = this.readBuffer.position();
+		while (end < limit && this.readBuffer.get(end) != '\n') {
+			end++;
+		}
+		if (end == limit) {
+			if (!this.readBuffer.hasRemaining()) {
+				// Overlong greeting, only its end of line matters
+				this.readBuffer.clear();
+			}
+			return;
+		}
+		this.readBuffer.flip();
+		this.readBuffer.position(end + 1);
+		this.readBuffer.compact();
+		this.greeted = true;
+		this.handshake = BufferPool.getReadBufferPool().acquire();
+		SessionGenerator.putHandshake(this.handshake, this.session.getId());
+		this.handshake.flip();
+		interest(0);
+		sendId();
+	}
+
+	/**
+	 * Write the session ID, then answer the requests already read, if any
+	 * 
+	 * @throws IOException
+	 */
+	private void sendId() throws IOException {
+		while (this.handshake.hasRemaining()) {
+			if (this.channel.write(this.handshake) == 0) {
+				// Wait until the channel becomes writable again
+				interest(SelectionKey.OP_WRITE);
+				return;
+			}
+		}
+		BufferPool.getReadBufferPool().release(this.handshake);
+		this.handshake = null;
+		answer();
+	}
+
+	/**
+	 * Answer the complete requests held in the read buffer, batch by batch,
+	 * until a batch cannot be written without blocking. The read buffer is
+	 * flipped on entry and compacted on exit, ready for the next read.
+	 * 
+	 * @throws IOException
+	 */
+	private void answer() throws IOException {
+		this.readBuffer.flip();
+		try {
+			while (this.pipeline.parse(this.readBuffer, this.responseMode) > 0) {
+				start();
+				if (!flush()) {
+					// Write the rest on the next write events, and keep reading
+					// unless requests are already queued behind a large batch
+					this.writing = true;
+					interest(this.readBuffer.hasRemaining() && this.backlog > HIGH_WATERMARK
+							? SelectionKey.OP_WRITE
+							: SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					this.timeout.arm(Constants.DEFAULT_TIMEOUT, Constants.DEFAULT_TIME_UNIT);
+					return;
+				}
+			}
+		} finally {
+			this.readBuffer.compact();
+		}
+		// All the requests are answered, wait for the next ones
+		this.writing = false;
+		interest(SelectionKey.OP_READ);
+		SessionRegistry.getInstance().armReadDeadline(this.timeout, this.readBuffer);
+	}
+
+	/**
+	 * Start writing the responses of the batch just parsed
+	 */
+	private void start() {
+		this.buffers = this.pipeline.getBuffers();
+		this.offset = 0;
+		this.count = this.pipeline.getBufferCount();
+		this.backlog = this.pipeline.getLength();
+		Response response = this.pipeline.getFileResponse();
+		if (response != null) {
+			this.file = response.getPayload().getFile();
+			this.position = response.getFilePosition();
+			this.end = this.position + response.getFileCount();
+			// The header, possibly empty, goes first
+			this.current = response.getHeader();
+			this.backlog += response.getLength();
+		}
+	}
+
+	/**
+	 * Write as much of the batch as the channel accepts without blocking
+	 * 
+	 * @return {@code true} if the whole batch is written
+	 * @throws IOException
+	 */
+	private boolean flush() throws IOException {
+		while (this.offset < this.count) {
+			// Skip the buffers already written
+			if (!this.buffers[this.offset].hasRemaining()) {
+				this.offset++;
+				continue;
+			}
+			long n = this.channel.write(this.buffers, this.offset, this.count - this.offset);
+			if (n == 0) {
+				return false;
+			}
+			written(n);
+		}
+		while (this.current != null) {
+			if (this.current.hasRemaining()) {
+				int n = this.channel.write(this.current);
+				if (n == 0) {
+					return false;
+				}
+				written(n);
+			} else if (this.responseMode == ResponseMode.SENDFILE && this.position < this.end) {
+				// Send the file straight from disk
+				long n = this.file.transferTo(this.position, this.end - this.position, this.channel);
+				if (n == 0) {
+					if (this.position >= this.file.size()) {
+						throw new EOFException("Unexpected end of file at " + this.position);
+					}
+					return false;
+				}
+				this.position += n;
+				written(n);
+			} else {
+				next();
+			}
+		}
+		this.buffers = null;
+		this.backlog = 0;
+		return true;
+	}
+
+	/**
+	 * Read the next chunk of the file, then select the trailer, then nothing
+	 * once the trailer is written
+	 * 
+	 * @throws IOException
+	 */
+	private void next() throws IOException {
+		if (this.position < this.end) {
+			if (this.chunk == null) {
+				this.chunk = BufferPool.getStreamChunkPool().acquire();
+			}
+			this.chunk.clear();
+			if (this.end - this.position < this.chunk.capacity()) {
+				this.chunk.limit((int) (this.end - this.position));
+			}
+			int n = this.file.read(this.chunk, this.position);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of file at " + this.position);
+			}
+			this.position += n;
+			this.chunk.flip();
+			this.current = this.chunk;
+		} else if (this.current != this.trailer) {
+			// Mark the end of the response
+			this.trailer.rewind();
+			this.current = this.trailer;
+		} else {
+			// The response is complete
+			this.file = null;
+			this.current = null;
+		}
+	}
+
+	/**
+	 * @param n
+	 *            the number of bytes just written
+	 */
+	private void written(long n) {
+		this.backlog -= n;
+		this.session.onWrite(n);
+	}
+
+	/**
+	 * @param ops
+	 *            the operations the reactor must select for the channel
+	 * @throws ClosedChannelException
+	 *             if the key of the channel is cancelled
+	 */
+	private void interest(int ops) throws ClosedChannelException {
+		if (!this.key.isValid()) {
+			throw new ClosedChannelException();
+		}
+		if (this.key.interestOps() != ops) {
+			this.key.interestOps(ops);
+		}
+	}
+
+	/**
+	 * Close the connection, e.g. when its deadline expires or its session is
+	 * reaped. May be called by any thread: the close is handed over to the
+	 * reactor unless the caller runs on it.
+	 */
+	@Override
+	public void close() {
+		if (this.reactor.inReactor()) {
+			closeNow();
+		} else if (this.closing.compareAndSet(false, true)) {
+			this.reactor.execute(new Runnable() {
+
+				/*
+				 * (non-Javadoc)
+				 * 
+				 * @see java.lang.Runnable#run()
+				 */
+				@Override
+				public void run() {
+					closeNow();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Close the channel, remove the session from the registry and give the
+	 * buffers back to the pool. Called by the reactor.
+	 */
+	private void closeNow() {
+		if (this.closed) {
+			return;
+		}
+		this.closed = true;
+		this.closing.set(true);
+		this.timeout.disarm();
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// NOPE
+		}
+		if (this.session != null) {
+			SessionRegistry.getInstance().remove(this.session);
+		}
+		this.pipeline.reset();
+		BufferPool.getReadBufferPool().release(this.readBuffer);
+		BufferPool.getReadBufferPool().release(this.handshake);
+		BufferPool.getStreamChunkPool().release(this.chunk);
+		this.readBuffer = null;
+		this.handshake = null;
+		this.chunk = null;
+		this.buffers = null;
+		this.file = null;
+		this.current = null;
+	}
+
+	/**
+	 * Setter for the session
+	 * 
+	 * @param session
+	 *            the session of the connection, removed from the registry
+	 *            when the connection is closed
+	 */
+	void setSession(Session session) {
+		this.session = session;
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadFactory;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.AbstractServer;
+import org.jboss.server.common.BufferPool;
+import org.jboss.server.common.DatagramReply;
+import org.jboss.server.common.ThreadTopology;
+
+/**
+ * {@code DatagramServer}
+ * <p>
+ * UDP mode of the NIO engine: the request datagrams are answered with a
+ * header datagram followed by the datagrams of the responses, in order and
+ * without sequence number (see {@link DatagramReply}), without any
+ * connection nor handshake. Each shard of the {@link ThreadTopology} is a blocking
+ * {@link DatagramChannel} bound to the port with SO_REUSEPORT and served by
+ * its own thread; the kernel hashes the clients across the shards, so the
+ * replies to a client are never interleaved.
+ * </p>
+ * 
+ * Created on Dec 10, 2012 at 2:17:52 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class DatagramServer extends AbstractServer {
+
+	private static final Logger logger = Logger.getLogger(DatagramServer.class);
+
+	/**
+	 * Create a new instance of {@code DatagramServer}
+	 * 
+	 * @param port
+	 */
+	public DatagramServer(int port) {
+		super(port);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		logger.infov("Starting NIO UDP Sever on port {0} ...", port);
+		logger.infov("Thread topology: {0}", ThreadTopology.describe());
+		try {
+			int shards = ThreadTopology.getShards();
+			DatagramChannel channels[] = new DatagramChannel[shards];
+			for (int i = 0; i < shards; i++) {
+				channels[i] = DatagramChannel.open();
+				if (shards > 1) {
+					channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+				}
+				channels[i].bind(new InetSocketAddress(port));
+			}
+			logger.infov("NIO UDP Sever started with {0} channel(s) ...", shards);
+			// The current thread serves the first shard
+			ThreadFactory factory = ThreadTopology.newThreadFactory("nio-udp-");
+			for (int i = 1; i < shards; i++) {
+				final DatagramChannel channel = channels[i];
+				factory.newThread(new Runnable() {
+
+					/*
+					 * (non-Javadoc)
+					 * 
+					 * @see java.lang.Runnable#run()
+					 */
+					@Override
+					public void run() {
+						serve(channel);
+					}
+				}).start();
+			}
+			serve(channels[0]);
+		} catch (Throwable th) {
+			th.printStackTrace();
+		}
+	}
+
+	/**
+	 * Answer the request datagrams received by the channel until it is
+	 * closed
+	 * 
+	 * @param channel
+	 */
+	private void serve(DatagramChannel channel) {
+		ByteBuffer request = BufferPool.getReadBufferPool().acquire();
+		DatagramReply reply = new DatagramReply();
+		try {
+			while (channel.isOpen()) {
+				SocketAddress client;
+				try {
+					request.clear();
+					client = channel.receive(request);
+				} catch (IOException e) {
+					if (channel.isOpen()) {
+						logger.errorv("Receive failed: {0}", e);
+					}
+					continue;
+				}
+				request.flip();
+				try {
+					reply.receive(request);
+					while (reply.prepare(responseMode)) {
+						ByteBuffer datagram;
+						while ((datagram = reply.next()) != null) {
+							channel.send(datagram, client);
+						}
+					}
+				} catch (IOException e) {
+					// Only the reply to that request is lost
+					logger.warnv("Reply to {0} failed: {1}", client, e);
+				}
+			}
+		} finally {
+			BufferPool.getReadBufferPool().release(request);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.jboss.server.common.AbstractServer#getEngine()
+	 */
+	@Override
+	public String getEngine() {
+		return "nio-udp";
+	}
+}
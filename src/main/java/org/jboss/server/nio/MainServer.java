@@ -0,0 +1,79 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.nio;
+
+import org.jboss.server.common.AbstractServer;
+import org.jboss.server.common.ResponseMode;
+
+/**
+ * {@code MainServer}
+ * 
+ * Created on Dec 3, 2012 at 2:41:30 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class MainServer {
+
+	/**
+	 * Runs the NIO server
+	 * 
+	 * @param mode
+	 *            the server mode, async/udp
+	 * @param port
+	 *            the server port number
+	 * @param responseMode
+	 *            the way the payload is pushed to the clients
+	 * @throws Exception
+	 */
+	public static void run(String mode, int port, ResponseMode responseMode) throws Exception {
+		AbstractServer target = null;
+		switch (mode) {
+			case "async":
+				// The reactors transfer the file without blocking in sendfile
+				// mode
+				target = new ReactorServer(port);
+				break;
+			case "udp":
+				target = new DatagramServer(port);
+				break;
+
+			default:
+				throw new Exception("Invalid mode: " + mode
+						+ ", the NIO server only runs async or udp");
+		}
+
+		if (responseMode == ResponseMode.SENDFILE && "udp".equals(mode)) {
+			throw new Exception("The sendfile response mode does not apply to datagrams");
+		}
+		target.setResponseMode(responseMode);
+		// Serve the co-located clients on a Unix domain socket as well, if asked
+		UnixDomainListener.start(target);
+
+		Thread thread = new Thread(target);
+		thread.start();
+		thread.join();
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.nio;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@code MpscQueue}
+ * <p>
+ * Unbounded lock-free queue with many producers and a single consumer, the
+ * reactor owning the queue. A producer swaps its node in as the new tail with
+ * a single atomic operation, then links it to the previous tail; the consumer
+ * follows the links from a stub head and never contends with the producers.
+ * </p>
+ * <p>
+ * A node swapped in but not linked yet is not visible to the consumer, so
+ * {@link #poll()} may return {@code null} while an {@link #offer(Object)} is
+ * in progress: the producers must signal the consumer once their offer
+ * returned, as {@link Reactor#execute(Runnable)} does with a selector wakeup.
+ * </p>
+ * 
+ * Created on Dec 3, 2012 at 10:12:37 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+final class MpscQueue<E> {
+
+	/**
+	 * {@code Node}
+	 */
+	private static final class Node<E> {
+
+		private E value;
+		private volatile Node<E> next;
+
+		/**
+		 * Create a new instance of {@code Node}
+		 * 
+		 * @param value
+		 */
+		Node(E value) {
+			this.value = value;
+		}
+	}
+
+	private final AtomicReference<Node<E>> tail;
+	/**
+	 * The last node consumed, only read and written by the consumer
+	 */
+	private Node<E> head;
+
+	/**
+	 * Create a new instance of {@code MpscQueue}
+	 */
+	MpscQueue() {
+		Node<E> stub = new Node<>(null);
+		this.head = stub;
+		this.tail = new AtomicReference<>(stub);
+	}
+
+	/**
+	 * Add an element at the tail of the queue. May be called by any thread.
+	 * 
+	 * @param value
+	 *            the element, not {@code null}
+	 */
+	void offer(E value) {
+		Node<E> node = new Node<>(value);
+		Node<E> previous = this.tail.getAndSet(node);
+		previous.next = node;
+	}
+
+	/**
+	 * Remove the element at the head of the queue. Must only be called by the
+	 * consumer.
+	 * 
+	 * @return the element at the head of the queue, or {@code null} if none
+	 *         is visible yet
+	 */
+	E poll() {
+		Node<E> next = this.head.next;
+		if (next == null) {
+			return null;
+		}
+		E value = next.value;
+		// The node becomes the new stub
+		next.value = null;
+		this.head = next;
+		return value;
+	}
+}
@@ -0,0 +1,176 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.nio;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.Shard;
+
+/**
+ * {@code Reactor}
+ * <p>
+ * A thread owning a {@link Selector} and the connections registered with it.
+ * The other threads never touch the selector nor the connections: they hand
+ * over tasks, e.g. the registration of a newly accepted channel or the close
+ * of a timed out connection, through a lock-free {@link MpscQueue}, and wake
+ * the selector up. The reactor runs the pending tasks before each select.
+ * </p>
+ * <p>
+ * A single wakeup is issued until the reactor consumes the tasks: the flag
+ * is cleared before the tasks are run, so a task offered after it was
+ * cleared always wakes the next select up.
+ * </p>
+ * 
+ * Created on Dec 3, 2012 at 10:48:05 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+final class Reactor implements Runnable {
+
+	private static final Logger logger = Logger.getLogger(Reactor.class);
+
+	private final Selector selector;
+	private final Shard shard;
+	private final MpscQueue<Runnable> tasks = new MpscQueue<>();
+	private final AtomicBoolean wakenUp = new AtomicBoolean();
+	private volatile Thread thread;
+
+	/**
+	 * Create a new instance of {@code Reactor}
+	 * 
+	 * @param name
+	 *            the name of the shard of the reactor
+	 * @throws IOException
+	 *             if the selector cannot be opened
+	 */
+	Reactor(String name) throws IOException {
+		this.selector = Selector.open();
+		this.shard = Shard.create(name);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		this.thread = Thread.currentThread();
+		for (;;) {
+			try {
+				this.wakenUp.set(false);
+				runTasks();
+				if (this.selector.select() > 0) {
+					processKeys(this.selector.selectedKeys());
+				}
+			} catch (Throwable th) {
+				logger.errorv("Unexpected error in the reactor {0}: {1}", this.shard.getName(), th);
+			}
+		}
+	}
+
+	/**
+	 * Run a task on the reactor thread. May be called by any thread.
+	 * 
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		this.tasks.offer(task);
+		if (!this.wakenUp.getAndSet(true)) {
+			this.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Hand a connection over to the reactor, which registers its channel
+	 * with the selector and starts the session initialization
+	 * 
+	 * @param connection
+	 */
+	void register(final Connection connection) {
+		this.shard.onAccept();
+		execute(new Runnable() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.lang.Runnable#run()
+			 */
+			@Override
+			public void run() {
+				connection.register(selector);
+			}
+		});
+	}
+
+	/**
+	 * @return {@code true} if the caller runs on the reactor thread
+	 */
+	boolean inReactor() {
+		return Thread.currentThread() == this.thread;
+	}
+
+	/**
+	 * Run the tasks handed over so far
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = this.tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				logger.errorv("Reactor task failed: {0}", e);
+			}
+		}
+	}
+
+	/**
+	 * Dispatch the ready operations to the connections
+	 * 
+	 * @param keys
+	 */
+	private void processKeys(Set<SelectionKey> keys) {
+		Iterator<SelectionKey> it = keys.iterator();
+		while (it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			((Connection) key.attachment()).handle(key);
+		}
+	}
+
+	/**
+	 * @return the shard of the reactor
+	 */
+	Shard getShard() {
+		return this.shard;
+	}
+}
@@ -0,0 +1,178 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ThreadFactory;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.AbstractServer;
+import org.jboss.server.common.Constants;
+import org.jboss.server.common.ThreadTopology;
+
+/**
+ * {@code ReactorServer}
+ * <p>
+ * Server built directly on {@link java.nio.channels.Selector} and
+ * {@link SocketChannel}, without any framework: a boss thread accepts the
+ * connections with blocking calls and hands them over, round robin, to N
+ * {@link Reactor}s, each running its own selector on its own thread. The
+ * number of reactors is the number of I/O threads of the
+ * {@link ThreadTopology}, each reactor is a shard of the server.
+ * </p>
+ * 
+ * Created on Dec 3, 2012 at 2:05:14 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class ReactorServer extends AbstractServer {
+
+	private static final Logger logger = Logger.getLogger(ReactorServer.class);
+
+	/**
+	 * The prefix of the names of the reactors and of their shards
+	 */
+	private final String name;
+
+	/**
+	 * Create a new instance of {@code ReactorServer}
+	 * 
+	 * @param port
+	 */
+	public ReactorServer(int port) {
+		this(port, "nio");
+	}
+
+	/**
+	 * Create a new instance of {@code ReactorServer}
+	 * 
+	 * @param port
+	 * @param name
+	 *            the prefix of the names of the reactors and of their shards
+	 */
+	protected ReactorServer(int port, String name) {
+		super(port);
+		this.name = name;
+		this.async = true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		try {
+			ServerSocketChannel listener = bind();
+			logger.infov("Starting NIO Reactor Sever on {0} ...", listener.getLocalAddress());
+			logger.infov("Thread topology: {0}", ThreadTopology.describe());
+			Reactor reactors[] = new Reactor[ThreadTopology.getIoThreads()];
+			ThreadFactory factory = ThreadTopology.newThreadFactory(this.name + "-reactor-");
+			for (int i = 0; i < reactors.length; i++) {
+				reactors[i] = new Reactor(this.name + "-" + i);
+				factory.newThread(reactors[i]).start();
+			}
+			logger.infov("NIO Reactor Sever started with {0} reactor(s) ...", reactors.length);
+			// The current thread is the boss
+			for (int next = 0;; next = (next + 1) % reactors.length) {
+				SocketChannel channel;
+				try {
+					channel = listener.accept();
+				} catch (IOException e) {
+					// e.g. too many open files, keep accepting
+					logger.errorv("Accept failed: {0}", e);
+					continue;
+				}
+				processChannel(channel, reactors[next]);
+			}
+		} catch (Throwable th) {
+			th.printStackTrace();
+		}
+	}
+
+	/**
+	 * Open the listener, in blocking mode since the boss only accepts
+	 * 
+	 * @return the listener bound to the port of the server
+	 * @throws IOException
+	 */
+	protected ServerSocketChannel bind() throws IOException {
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		listener.bind(new InetSocketAddress(port));
+		return listener;
+	}
+
+	/**
+	 * Configure the newly accepted channel before it is handed over
+	 * 
+	 * @param channel
+	 * @throws IOException
+	 */
+	protected void configure(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		channel.setOption(StandardSocketOptions.SO_SNDBUF, Constants.DEFAULT_SO_SNDBUF);
+	}
+
+	/**
+	 * Open the session of the newly accepted channel and hand the channel
+	 * over to the reactor. A failed initialization only loses that
+	 * connection.
+	 * 
+	 * @param channel
+	 * @param reactor
+	 */
+	private void processChannel(SocketChannel channel, Reactor reactor) {
+		try {
+			configure(channel);
+		} catch (IOException e) {
+			logger.warnv("Session initialization failed: {0}", e);
+			try {
+				channel.close();
+			} catch (IOException exp) {
+				// NOPE
+			}
+			return;
+		}
+		Connection connection = new Connection(reactor, channel, responseMode);
+		connection.setSession(openSession(generateSessionId(), connection, reactor.getShard()));
+		reactor.register(connection);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.jboss.server.common.AbstractServer#getEngine()
+	 */
+	@Override
+	public String getEngine() {
+		return "nio-async";
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.nio;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.AbstractServer;
+
+/**
+ * {@code UnixDomainListener}
+ * <p>
+ * Additional listener bound to a Unix domain socket, for the clients running
+ * on the same host: they skip the loopback TCP stack and get the same
+ * handshake, protocol and payloads. Neither the NIO.2 asynchronous channels
+ * nor XNIO 3.0 support Unix domain sockets, so the listener is served by
+ * NIO reactors (see {@link ReactorServer}) whatever the engine serving the
+ * TCP port, with the response mode of that engine.
+ * </p>
+ * <p>
+ * The listener is opened when the system property {@link #PATH_PROPERTY}
+ * gives the path of the socket file. A stale socket file left by a previous
+ * run is deleted, the file is also deleted when the JVM exits. The listener
+ * is not opened if the path names any other kind of file.
+ * </p>
+ * 
+ * Created on Dec 7, 2012 at 3:26:40 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class UnixDomainListener extends ReactorServer {
+
+	private static final Logger logger = Logger.getLogger(UnixDomainListener.class);
+	/**
+	 * The system property giving the path of the socket file, no Unix domain
+	 * listener is opened if it is not set
+	 */
+	public static final String PATH_PROPERTY = "org.jboss.server.unix.path";
+
+	private final Path path;
+
+	/**
+	 * Create a new instance of {@code UnixDomainListener}
+	 * 
+	 * @param path
+	 *            the path of the socket file
+	 */
+	public UnixDomainListener(Path path) {
+		super(0, "unix");
+		this.path = path;
+	}
+
+	/**
+	 * Open the Unix domain listener next to the server if the system
+	 * property {@link #PATH_PROPERTY} is set. The listener accepts on its own
+	 * daemon thread.
+	 * 
+	 * @param server
+	 *            the server serving the TCP port
+	 */
+	public static void start(AbstractServer server) {
+		String value = System.getProperty(PATH_PROPERTY);
+		if (value == null || value.trim().isEmpty()) {
+			return;
+		}
+		UnixDomainListener listener = new UnixDomainListener(Paths.get(value.trim()));
+		listener.setResponseMode(server.getResponseMode());
+		Thread thread = new Thread(listener, "unix-boss");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.jboss.server.nio.ReactorServer#bind()
+	 */
+	@Override
+	protected ServerSocketChannel bind() throws IOException {
+		deleteStaleSocket();
+		ServerSocketChannel listener = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		listener.bind(UnixDomainSocketAddress.of(this.path));
+		this.path.toFile().deleteOnExit();
+		logger.infov("Unix domain listener bound to {0}", this.path);
+		return listener;
+	}
+
+	/**
+	 * Delete the socket file left by a previous run, if any. Only a socket
+	 * file is deleted: a regular file, a directory or a link given by mistake
+	 * is left alone and the listener is not opened.
+	 * 
+	 * @throws IOException
+	 *             if the path names a file which is not a socket
+	 */
+	private void deleteStaleSocket() throws IOException {
+		BasicFileAttributes attributes;
+		try {
+			attributes = Files.readAttributes(this.path, BasicFileAttributes.class,
+					LinkOption.NOFOLLOW_LINKS);
+		} catch (NoSuchFileException e) {
+			return;
+		}
+		if (!attributes.isOther()) {
+			throw new IOException(this.path + " exists and is not a socket file");
+		}
+		Files.deleteIfExists(this.path);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.jboss.server.nio.ReactorServer#configure(java.nio.channels.SocketChannel
+	 * )
+	 */
+	@Override
+	protected void configure(SocketChannel channel) throws IOException {
+		// The send buffer of the TCP connections does not apply
+		channel.configureBlocking(false);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.jboss.server.nio.ReactorServer#getEngine()
+	 */
+	@Override
+	public String getEngine() {
+		return "nio-unix";
+	}
+}
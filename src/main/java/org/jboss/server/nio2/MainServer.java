@@ -26,6 +26,9 @@
 
 package org.jboss.server.nio2;
 
+import org.jboss.server.common.AbstractServer;
+import org.jboss.server.common.ResponseMode;
+import org.jboss.server.nio.UnixDomainListener;
 import org.jboss.server.nio2.async.AsyncServer;
 import org.jboss.server.nio2.sync.SyncServer;
 
@@ -42,17 +45,23 @@ public class MainServer {
 	 * Runs the NIO.2 server
 	 * 
 	 * @param mode
-	 *            the server mode, sync/async
+	 *            the server mode, sync/sync-vt/async
 	 * @param port
 	 *            the server port number
+	 * @param responseMode
+	 *            the way the payload is pushed to the clients
 	 * @throws Exception
 	 */
-	public static void run(String mode, int port) throws Exception {
-		Runnable target = null;
+	public static void run(String mode, int port, ResponseMode responseMode) throws Exception {
+		AbstractServer target = null;
 		switch (mode) {
 			case "sync":
 				target = new SyncServer(port);
 				break;
+			case "sync-vt":
+				target = new SyncServer(port);
+				target.useVirtualThreads();
+				break;
 			case "async":
 				target = new AsyncServer(port);
 				break;
@@ -61,6 +70,14 @@ public class MainServer {
 				throw new Exception("Invalid mode: " + mode);
 		}
 
+		// The asynchronous engines support the buffer and stream modes
+		if (responseMode == ResponseMode.SENDFILE && "async".equals(mode)) {
+			throw new Exception("The sendfile response mode requires a sync mode");
+		}
+		target.setResponseMode(responseMode);
+		// Serve the co-located clients on a Unix domain socket as well, if asked
+		UnixDomainListener.start(target);
+
 		Thread thread = new Thread(target);
 		thread.start();
 		thread.join();
@@ -25,16 +25,26 @@
  */
 package org.jboss.server.nio2;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousServerSocketChannel;
 import java.nio.channels.AsynchronousSocketChannel;
-import java.util.concurrent.Future;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import org.jboss.logging.Logger;
 import org.jboss.server.common.AbstractServer;
-import org.jboss.server.common.Constants;
+import org.jboss.server.common.BufferPool;
+import org.jboss.server.common.SessionGenerator;
+import org.jboss.server.common.Shard;
+import org.jboss.server.common.SessionId;
+import org.jboss.server.common.ThreadTopology;
 
 /**
  * {@code NioServer}
@@ -66,37 +76,164 @@ public abstract class NioServer extends AbstractServer {
 	public void run() {
 		String mode = this.async ? "Asynchronous" : "Synchronous";
 		logger.infov("Starting {0} NIO.2 Sever on port {1} ...", mode, port);
+		logger.infov("Thread topology: {0}", ThreadTopology.describe());
 
 		try {
-			// Create an asynchronous channel group
-			AsynchronousChannelGroup threadGroup = AsynchronousChannelGroup
-					.withThreadPool(executor);
-			try (AsynchronousServerSocketChannel listener = AsynchronousServerSocketChannel.open(
-					threadGroup).bind(new InetSocketAddress(port))) {
-				boolean running = true;
-				logger.infov("{0} NIO.2 Sever started ...", mode);
-
-				while (running) {
-					Future<AsynchronousSocketChannel> future = listener.accept();
-					final AsynchronousSocketChannel channel = future.get();
-					// Process the channel
-					processChannel(channel);
+			// Each shard has its own listener and channel group, the groups
+			// strategy is a shard per single-threaded group
+			ThreadTopology.Strategy strategy = ThreadTopology.getStrategy();
+			int shards = strategy == ThreadTopology.Strategy.GROUPS ? ThreadTopology.getGroups()
+					: ThreadTopology.getShards();
+			AsynchronousChannelGroup groups[] = new AsynchronousChannelGroup[shards];
+			for (int i = 0; i < shards; i++) {
+				groups[i] = createGroup(strategy, i);
+				AsynchronousServerSocketChannel listener = AsynchronousServerSocketChannel
+						.open(groups[i]);
+				if (shards > 1) {
+					// All the listeners share the port, the kernel spreads
+					// the connections across them
+					listener.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
 				}
+				listener.bind(new InetSocketAddress(port));
+				listener.accept(listener, new AcceptHandler(Shard.create("nio2-" + i)));
+			}
+			logger.infov("{0} NIO.2 Sever started with {1} listener(s) ...", mode, shards);
+			// The connections are accepted by the threads of the groups
+			for (AsynchronousChannelGroup group : groups) {
+				group.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
 			}
 		} catch (Throwable th) {
 			th.printStackTrace();
 		}
+	}
 
+	/**
+	 * Create the channel group of a shard
+	 * 
+	 * @param strategy
+	 *            how the group gets its threads
+	 * @param shard
+	 *            the index of the shard
+	 * @return a new channel group
+	 * @throws IOException
+	 */
+	protected AsynchronousChannelGroup createGroup(ThreadTopology.Strategy strategy, int shard)
+			throws IOException {
+		switch (strategy) {
+			case FIXED:
+				return AsynchronousChannelGroup.withFixedThreadPool(ThreadTopology.getIoThreads(),
+						ThreadTopology.newThreadFactory("nio2-io-" + shard + "-"));
+			case FORKJOIN:
+				return AsynchronousChannelGroup.withThreadPool(new ForkJoinPool(ThreadTopology
+						.getIoThreads()));
+			case GROUPS:
+				return AsynchronousChannelGroup.withFixedThreadPool(1,
+						ThreadTopology.newThreadFactory("nio2-group-" + shard + "-"));
+			default:
+				// A group shuts its pool down with it, the pools are not shared
+				// between the groups
+				if (shard == 0) {
+					return AsynchronousChannelGroup.withThreadPool(executor);
+				}
+				return AsynchronousChannelGroup.withThreadPool(Executors.newFixedThreadPool(
+						ThreadTopology.getPoolSize(),
+						ThreadTopology.newThreadFactory("nio2-pool-" + shard + "-")));
+		}
 	}
 
 	/**
-	 * Process the newly accepted channel
+	 * {@code AcceptHandler}
+	 * <p>
+	 * Completion handler of the accept operations. A server channel allows a
+	 * single pending accept: the next one is started as soon as a connection
+	 * is accepted, before the connection is processed, so that the next
+	 * connections are accepted by the other threads of the group meanwhile.
+	 * </p>
+	 */
+	private class AcceptHandler implements
+			CompletionHandler<AsynchronousSocketChannel, AsynchronousServerSocketChannel> {
+
+		private final Shard shard;
+
+		/**
+		 * Create a new instance of {@code AcceptHandler}
+		 * 
+		 * @param shard
+		 *            the shard of the listener
+		 */
+		AcceptHandler(Shard shard) {
+			this.shard = shard;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.nio.channels.CompletionHandler#completed(java.lang.Object,
+		 * java.lang.Object)
+		 */
+		@Override
+		public void completed(AsynchronousSocketChannel channel,
+				AsynchronousServerSocketChannel listener) {
+			listener.accept(listener, this);
+			this.shard.onAccept();
+			// Process the channel, a failed session initialization only loses
+			// that connection
+			try {
+				processChannel(channel, this.shard);
+			} catch (Exception e) {
+				logger.warnv("Session initialization failed: {0}", e);
+				try {
+					channel.close();
+				} catch (IOException exp) {
+					// NOPE
+				}
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.nio.channels.CompletionHandler#failed(java.lang.Throwable,
+		 * java.lang.Object)
+		 */
+		@Override
+		public void failed(Throwable exc, AsynchronousServerSocketChannel listener) {
+			if (listener.isOpen()) {
+				// e.g. too many open files, keep accepting
+				logger.errorv("Accept failed: {0}", exc);
+				listener.accept(listener, this);
+			}
+		}
+	}
+
+	/**
+	 * Process the newly accepted channel. Called from a thread of the channel
+	 * group, the implementations must not block.
 	 * 
 	 * @param channel
+	 * @param shard
+	 *            the shard which accepted the channel
 	 */
-	public abstract void processChannel(final AsynchronousSocketChannel channel) throws Exception;
+	public abstract void processChannel(final AsynchronousSocketChannel channel, Shard shard)
+			throws Exception;
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.jboss.server.common.AbstractServer#getEngine()
+	 */
+	@Override
+	public String getEngine() {
+		if (this.async) {
+			return "nio2-async";
+		}
+		return this.virtualThreads ? "nio2-sync-vt" : "nio2-sync";
+	}
 
 	/**
+	 * Read the client greeting line and answer with the session ID. The bytes
+	 * which follow the greeting, e.g. a first pipelined request, are kept in
+	 * the buffer, ready for the next read.
 	 * 
 	 * @param channel
 	 * @param buffer
@@ -104,21 +241,41 @@ public abstract class NioServer extends AbstractServer {
 	 * @throws Exception
 	 */
 	protected static void initSession(AsynchronousSocketChannel channel, ByteBuffer buffer,
-			String sessionId) throws Exception {
+			SessionId sessionId) throws Exception {
 		buffer.clear();
-		Future<Integer> future = channel.read(buffer);
-		int nBytes = future.get();
+		int end = 0;
+		for (;;) {
+			if (channel.read(buffer).get() < 0) {
+				throw new ClosedChannelException();
+			}
+			int limit = buffer.position();
+			while (end < limit && buffer.get(end) != '\n') {
+				end++;
+			}
+			if (end < limit) {
+				break;
+			}
+			if (!buffer.hasRemaining()) {
+				// Overlong greeting, only its end of line matters
+				buffer.clear();
+				end = 0;
+			}
+		}
+		// Keep what follows the greeting
 		buffer.flip();
-		byte bytes[] = new byte[nBytes];
-		buffer.get(bytes).clear();
-		System.out.println("[" + sessionId + "] " + new String(bytes).trim());
-		String response = "jSessionId: " + sessionId + Constants.CRLF;
+		buffer.position(end + 1);
+		buffer.compact();
 		// write initialization response to client
-		buffer.put(response.getBytes()).flip();
-		System.out.println("buffer.position(): " + buffer.position());
-		System.out.println("buffer.limit(): " + buffer.limit());
-		int x = channel.write(buffer).get();
-		System.out.println("Number of bytes written -> " + x);
+		ByteBuffer handshake = BufferPool.getReadBufferPool().acquire();
+		try {
+			SessionGenerator.putHandshake(handshake, sessionId);
+			handshake.flip();
+			while (handshake.hasRemaining()) {
+				channel.write(handshake).get();
+			}
+		} finally {
+			BufferPool.getReadBufferPool().release(handshake);
+		}
 	}
 
 }
@@ -0,0 +1,258 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.nio2.async;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.jboss.server.common.BufferPool;
+import org.jboss.server.common.Constants;
+import org.jboss.server.common.HashedWheelTimer;
+import org.jboss.server.common.HashedWheelTimer.Timeout;
+import org.jboss.server.common.Pipeline;
+import org.jboss.server.common.ResponseMode;
+import org.jboss.server.common.Session;
+import org.jboss.server.common.SessionRegistry;
+
+/**
+ * {@code Connection}
+ * <p>
+ * The state of a connection of the asynchronous NIO.2 server: the channel,
+ * its buffers, its session and deadline, and the completion handlers of its
+ * operations. The connection is the attachment of all its operations, so the
+ * handlers reach their state through typed fields.
+ * </p>
+ * <p>
+ * The connections are recycled through a bounded pool once closed: a new
+ * connection reuses the pipeline, the handlers and the timeout of a closed
+ * one. A connection whose deadline expired is not
+ * recycled, since the timer may still be closing its channel.
+ * </p>
+ * 
+ * Created on Nov 20, 2012 at 10:12:41 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+final class Connection implements Runnable {
+
+	/**
+	 * The maximum number of closed connections kept for reuse
+	 */
+	public static final int POOL_SIZE = 1024;
+
+	private static final ArrayBlockingQueue<Connection> POOL = new ArrayBlockingQueue<>(POOL_SIZE);
+
+	private final Pipeline pipeline = new Pipeline();
+	private final Timeout timeout = HashedWheelTimer.getInstance().newTimeout(this);
+	private final HandshakeHandler handshakeHandler = new HandshakeHandler();
+	private final ReadCompletionHandler readHandler = new ReadCompletionHandler();
+	private final WriteCompletionHandler writeHandler = new WriteCompletionHandler();
+	private final StreamCompletionHandler streamHandler = new StreamCompletionHandler();
+	private volatile AsynchronousSocketChannel channel;
+	private ByteBuffer readBuffer;
+	private ByteBuffer chunk;
+	private Session session;
+	private ResponseMode responseMode;
+	private boolean open;
+
+	/**
+	 * Create a new instance of {@code Connection}
+	 */
+	private Connection() {
+		super();
+	}
+
+	/**
+	 * Take a closed connection from the pool, or create a new one, and bind
+	 * it to the channel
+	 * 
+	 * @param channel
+	 *            the accepted channel
+	 * @param session
+	 *            the session of the connection
+	 * @param responseMode
+	 *            the way the payloads are sent
+	 * @return the connection of the channel
+	 */
+	static Connection open(AsynchronousSocketChannel channel, Session session,
+			ResponseMode responseMode) {
+		Connection connection = POOL.poll();
+		if (connection == null) {
+			connection = new Connection();
+		}
+		connection.channel = channel;
+		connection.session = session;
+		connection.responseMode = responseMode;
+		connection.readBuffer = BufferPool.getReadBufferPool().acquire();
+		connection.open = true;
+		return connection;
+	}
+
+	/**
+	 * Read the client greeting and answer with the session ID, then wait for
+	 * the client requests
+	 */
+	void start() {
+		this.handshakeHandler.start(this);
+	}
+
+	/**
+	 * Arm the deadline of the next operation, the channel is closed if the
+	 * operation does not complete in time
+	 * 
+	 * @param delay
+	 *            the deadline, in {@link Constants#DEFAULT_TIME_UNIT}
+	 */
+	void deadline(long delay) {
+		this.timeout.arm(delay, Constants.DEFAULT_TIME_UNIT);
+	}
+
+	/**
+	 * Read the next requests from the client, see
+	 * {@link SessionRegistry#armReadDeadline(Timeout, ByteBuffer)}
+	 */
+	void read() {
+		SessionRegistry.getInstance().armReadDeadline(this.timeout, this.readBuffer);
+		this.channel.read(this.readBuffer, this, this.readHandler);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		// The deadline expired, the pending operation fails and closes the
+		// connection
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// NOPE
+		}
+	}
+
+	/**
+	 * Close the channel, remove the session from the registry and give the
+	 * buffers back to their pools, then put the connection in the pool.
+	 * Only the first call has an effect.
+	 */
+	void close() {
+		if (!this.open) {
+			return;
+		}
+		this.open = false;
+		// Must be decided before the channel is closed
+		boolean reusable = this.timeout.cancel();
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			// NOPE
+		}
+		SessionRegistry.getInstance().remove(this.session);
+		BufferPool.getReadBufferPool().release(this.readBuffer);
+		BufferPool.getStreamChunkPool().release(this.chunk);
+		this.readBuffer = null;
+		this.chunk = null;
+		this.session = null;
+		this.pipeline.reset();
+		this.writeHandler.reset();
+		this.streamHandler.reset();
+		if (reusable) {
+			this.channel = null;
+			POOL.offer(this);
+		}
+	}
+
+	/**
+	 * @return the channel of the connection
+	 */
+	AsynchronousSocketChannel getChannel() {
+		return this.channel;
+	}
+
+	/**
+	 * @return the read buffer of the connection
+	 */
+	ByteBuffer getReadBuffer() {
+		return this.readBuffer;
+	}
+
+	/**
+	 * @return the chunk buffer used to stream the files, taken from the pool
+	 *         on first use
+	 */
+	ByteBuffer getChunk() {
+		if (this.chunk == null) {
+			this.chunk = BufferPool.getStreamChunkPool().acquire();
+		}
+		return this.chunk;
+	}
+
+	/**
+	 * @return the request pipeline of the connection
+	 */
+	Pipeline getPipeline() {
+		return this.pipeline;
+	}
+
+	/**
+	 * @return the session of the connection
+	 */
+	Session getSession() {
+		return this.session;
+	}
+
+	/**
+	 * @return the way the payloads are sent
+	 */
+	ResponseMode getResponseMode() {
+		return this.responseMode;
+	}
+
+	/**
+	 * @return the handler of the read operations
+	 */
+	ReadCompletionHandler getReadHandler() {
+		return this.readHandler;
+	}
+
+	/**
+	 * @return the handler of the gathering writes
+	 */
+	WriteCompletionHandler getWriteHandler() {
+		return this.writeHandler;
+	}
+
+	/**
+	 * @return the handler streaming the files
+	 */
+	StreamCompletionHandler getStreamHandler() {
+		return this.streamHandler;
+	}
+}
@@ -0,0 +1,140 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.nio2.async;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+
+import org.jboss.server.common.BufferPool;
+import org.jboss.server.common.Constants;
+import org.jboss.server.common.SessionGenerator;
+
+/**
+ * {@code HandshakeHandler}
+ * <p>
+ * Completion handler of the session initialization: reads the client
+ * greeting line, writes the session ID back, then hands the connection over
+ * to the {@link ReadCompletionHandler}. The bytes which follow the greeting,
+ * e.g. a first pipelined request, are kept in the read buffer and answered
+ * first. The whole exchange must complete within
+ * {@link Constants#HANDSHAKE_TIMEOUT}.
+ * </p>
+ * 
+ * Created on Nov 20, 2012 at 10:47:05 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+class HandshakeHandler implements CompletionHandler<Integer, Connection> {
+
+	/**
+	 * The session ID being sent, {@code null} while reading the greeting
+	 */
+	private ByteBuffer handshake;
+
+	/**
+	 * Create a new instance of {@code HandshakeHandler}
+	 */
+	public HandshakeHandler() {
+		super();
+	}
+
+	/**
+	 * Arm the handshake deadline and read the client greeting
+	 * 
+	 * @param connection
+	 */
+	void start(Connection connection) {
+		this.handshake = null;
+		connection.deadline(Constants.HANDSHAKE_TIMEOUT);
+		connection.getChannel().read(connection.getReadBuffer(), connection, this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.CompletionHandler#completed(java.lang.Object,
+	 * java.lang.Object)
+	 */
+	@Override
+	public void completed(Integer nBytes, Connection connection) {
+		if (nBytes < 0) {
+			failed(new ClosedChannelException(), connection);
+			return;
+		}
+		ByteBuffer buffer = connection.getReadBuffer();
+		if (this.handshake == null) {
+			int end = 0;
+			int limit = buffer.position();
+			while (end < limit && buffer.get(end) != '\n') {
+				end++;
+			}
+			if (end == limit) {
+				if (!buffer.hasRemaining()) {
+					// Overlong greeting, only its end of line matters
+					buffer.clear();
+				}
+				connection.getChannel().read(buffer, connection, this);
+				return;
+			}
+			// Keep what follows the greeting
+			buffer.flip();
+			buffer.position(end + 1);
+			buffer.compact();
+			// write initialization response to client
+			this.handshake = BufferPool.getReadBufferPool().acquire();
+			SessionGenerator.putHandshake(this.handshake, connection.getSession().getId());
+			this.handshake.flip();
+		}
+		if (this.handshake.hasRemaining()) {
+			connection.getChannel().write(this.handshake, connection, this);
+			return;
+		}
+		// End of session initialization
+		BufferPool.getReadBufferPool().release(this.handshake);
+		this.handshake = null;
+		if (buffer.position() > 0) {
+			// Answer the requests sent along with the greeting
+			buffer.flip();
+			connection.getReadHandler().process(connection);
+		} else {
+			connection.read();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.CompletionHandler#failed(java.lang.Throwable,
+	 * java.lang.Object)
+	 */
+	@Override
+	public void failed(Throwable exc, Connection connection) {
+		BufferPool.getReadBufferPool().release(this.handshake);
+		this.handshake = null;
+		connection.close();
+	}
+}
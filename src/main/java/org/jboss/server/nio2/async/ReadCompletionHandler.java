@@ -27,11 +27,13 @@ package org.jboss.server.nio2.async;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CompletionHandler;
+import java.util.concurrent.TimeUnit;
 
+import org.jboss.logging.Logger;
 import org.jboss.server.common.Constants;
+import org.jboss.server.common.Pipeline;
 
 /**
  * {@code ReadCompletionHandler}
@@ -40,13 +42,12 @@ import org.jboss.server.common.Constants;
  * 
  * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
  */
-class ReadCompletionHandler implements CompletionHandler<Integer, Object[]> {
+class ReadCompletionHandler implements CompletionHandler<Integer, Connection> {
+
+	private static final Logger logger = Logger.getLogger(ReadCompletionHandler.class);
 
 	/**
 	 * Create a new instance of {@code ReadCompletionHandler}
-	 * 
-	 * @param sessionId
-	 * @param byteBuffer
 	 */
 	public ReadCompletionHandler() {
 		super();
@@ -59,80 +60,85 @@ class ReadCompletionHandler implements CompletionHandler<Integer, Object[]> {
 	 * java.lang.Object)
 	 */
 	@Override
-	public void completed(Integer nBytes, Object[] attachment) {
+	public void completed(Integer nBytes, Connection connection) {
 		if (nBytes < 0) {
-			failed(new ClosedChannelException(), attachment);
+			failed(new ClosedChannelException(), connection);
 			return;
 		}
 
 		if (nBytes > 0) {
-			ByteBuffer buff = (ByteBuffer) attachment[Constants.READ_BUFFER_POS];
-			buff.flip();
-			byte bytes[] = new byte[nBytes];
-			buff.get(bytes).clear();
-			//System.out.println("ASYNC-NIO.2 --> [" + attachment[Constants.SESSION_ID_POS] + "] "
-			//		+ new String(bytes).trim());
-			// write response to client
-			writeResponse(attachment);
+			connection.getSession().onRead(nBytes);
+			connection.getReadBuffer().flip();
+			// Answer the complete requests read so far
+			process(connection);
 		} else {
-			AsynchronousSocketChannel channel = (AsynchronousSocketChannel) attachment[Constants.CHANNEL_POS];
-			ByteBuffer bb = (ByteBuffer) attachment[Constants.READ_BUFFER_POS];
-			bb.clear();
 			// Read again from client
-			channel.read(bb, attachment, this);
+			connection.read();
 		}
 	}
 
-	/*
-	 * (non-Javadoc)
+	/**
+	 * Write the responses of the next batch of requests held in the read
+	 * buffer (see {@link Pipeline}). The write and stream handlers call back
+	 * this method once the batch is written, so that all the pipelined
+	 * requests are answered before reading again from the client.
 	 * 
-	 * @see java.nio.channels.CompletionHandler#failed(java.lang.Throwable,
-	 * java.lang.Object)
+	 * @param connection
 	 */
-	@Override
-	public void failed(Throwable exc, Object[] attachment) {
+	void process(Connection connection) {
+		ByteBuffer buff = connection.getReadBuffer();
+		int n;
 		try {
-			String sessionId = (String) attachment[Constants.SESSION_ID_POS];
-			System.out.println("[" + sessionId + "] Closing remote connection");
-			AsynchronousSocketChannel channel = (AsynchronousSocketChannel) attachment[Constants.CHANNEL_POS];
-			channel.close();
+			n = connection.getPipeline().parse(buff, connection.getResponseMode());
 		} catch (IOException e) {
-			// NOPE
+			failed(e, connection);
+			return;
+		}
+		if (n > 0) {
+			// write response to client
+			writeResponse(connection);
+			return;
 		}
+		// Keep the incomplete request, if any, and read again from client
+		buff.compact();
+		connection.read();
 	}
 
-	/**
-	 * @param attachment
-	 * @throws Exception
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.CompletionHandler#failed(java.lang.Throwable,
+	 * java.lang.Object)
 	 */
-	@SuppressWarnings("unchecked")
-	public void writeResponse(Object[] attachment) {
-
-		// Retrieve the channel
-		AsynchronousSocketChannel channel = (AsynchronousSocketChannel) attachment[Constants.CHANNEL_POS];
-		// Retrieve the completion handler
-		CompletionHandler<Long, Object[]> writeHandler = (CompletionHandler<Long, Object[]>) attachment[Constants.WRITE_HANDLER_POS];
-		// Retrieve the buffers to write
-		ByteBuffer buffers[] = (ByteBuffer[]) attachment[Constants.WRITE_BUFFERS_POS];
-		// Flip all buffers
-		flipAll(buffers);
-		// Write response to client
-		channel.write(buffers, 0, buffers.length, Constants.DEFAULT_TIMEOUT,
-				Constants.DEFAULT_TIME_UNIT, attachment, writeHandler);
-
+	@Override
+	public void failed(Throwable exc, Connection connection) {
+		logger.debugv(exc, "[{0}] Closing remote connection", connection.getSession());
+		connection.close();
 	}
 
 	/**
-	 * Flip all the write byte buffers
+	 * Write the responses of the current batch: the responses held in memory
+	 * with a single gathering write, then the response sent from the file,
+	 * if any
 	 * 
-	 * @param buffers
+	 * @param connection
 	 */
-	protected static void flipAll(ByteBuffer[] buffers) {
-		for (ByteBuffer bb : buffers) {
-			if (bb.position() > 0) {
-				bb.flip();
-			}
+	public void writeResponse(Connection connection) {
+
+		Pipeline pipeline = connection.getPipeline();
+		if (pipeline.getBufferCount() == 0) {
+			// Stream the file by chunks, the files too large to be held in
+			// memory are always streamed
+			connection.getStreamHandler().start(connection);
+			return;
 		}
+		// Write the headers and the views on the shared payloads to client,
+		// the deadline is kept by the timeout of the connection (a timeout
+		// of zero means no timer for the operation itself)
+		connection.deadline(Constants.DEFAULT_TIMEOUT);
+		connection.getChannel().write(pipeline.getBuffers(), 0, pipeline.getBufferCount(), 0L,
+				TimeUnit.MILLISECONDS, connection, connection.getWriteHandler());
+
 	}
 
 }
@@ -0,0 +1,180 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.nio2.async;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.Constants;
+import org.jboss.server.common.Payload;
+import org.jboss.server.common.Response;
+
+/**
+ * {@code StreamCompletionHandler}
+ * <p>
+ * Streams the file of the selected payload to the client by chunks: each
+ * chunk is read from the file into the chunk buffer of the connection, with a
+ * positional read, and written before the next one is read. The memory used
+ * by the connection is the chunk buffer whatever the file size.
+ * </p>
+ * 
+ * Created on Nov 9, 2012 at 4:03:52 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+class StreamCompletionHandler implements CompletionHandler<Integer, Connection> {
+
+	private static final Logger logger = Logger.getLogger(StreamCompletionHandler.class);
+	private final ByteBuffer trailer = Payload.trailer();
+	private FileChannel file;
+	private long position;
+	private long end;
+	private ByteBuffer current;
+
+	/**
+	 * Create a new instance of {@code StreamCompletionHandler}
+	 */
+	public StreamCompletionHandler() {
+		super();
+	}
+
+	/**
+	 * Forget the response being streamed
+	 */
+	void reset() {
+		this.file = null;
+		this.current = null;
+	}
+
+	/**
+	 * Start streaming the file of the response that ends the current batch,
+	 * or the requested range of it after the range header
+	 * 
+	 * @param connection
+	 */
+	public void start(Connection connection) {
+		Response response = connection.getPipeline().getFileResponse();
+		this.file = response.getPayload().getFile();
+		this.position = response.getFilePosition();
+		this.end = this.position + response.getFileCount();
+		this.current = null;
+		ByteBuffer header = response.getHeader();
+		if (header.hasRemaining()) {
+			this.current = header;
+			write(header, connection);
+			return;
+		}
+		next(connection);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.CompletionHandler#completed(java.lang.Object,
+	 * java.lang.Object)
+	 */
+	@Override
+	public void completed(Integer nBytes, Connection connection) {
+		if (nBytes < 0) {
+			failed(new ClosedChannelException(), connection);
+			return;
+		}
+		connection.getSession().onWrite(nBytes);
+		if (this.current.hasRemaining()) {
+			// Write the rest of the current chunk
+			write(this.current, connection);
+		} else {
+			next(connection);
+		}
+	}
+
+	/**
+	 * Write the next chunk of the file, then the trailer. Once the trailer is
+	 * written, answer the next pipelined requests, if any.
+	 * 
+	 * @param connection
+	 */
+	private void next(Connection connection) {
+		if (this.position < this.end) {
+			ByteBuffer chunk = connection.getChunk();
+			chunk.clear();
+			if (this.end - this.position < chunk.capacity()) {
+				chunk.limit((int) (this.end - this.position));
+			}
+			try {
+				int n = this.file.read(chunk, this.position);
+				if (n < 0) {
+					throw new EOFException("Unexpected end of file at " + this.position);
+				}
+				this.position += n;
+			} catch (IOException e) {
+				failed(e, connection);
+				return;
+			}
+			chunk.flip();
+			this.current = chunk;
+		} else if (this.current != this.trailer) {
+			// Mark the end of the response
+			this.trailer.rewind();
+			this.current = this.trailer;
+		} else {
+			// The response is complete
+			reset();
+			connection.getReadHandler().process(connection);
+			return;
+		}
+		write(this.current, connection);
+	}
+
+	/**
+	 * Arm the write deadline of the connection and write the buffer
+	 * 
+	 * @param buffer
+	 * @param connection
+	 */
+	private void write(ByteBuffer buffer, Connection connection) {
+		connection.deadline(Constants.DEFAULT_TIMEOUT);
+		connection.getChannel().write(buffer, connection, this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.nio.channels.CompletionHandler#failed(java.lang.Throwable,
+	 * java.lang.Object)
+	 */
+	@Override
+	public void failed(Throwable exc, Connection connection) {
+		reset();
+		logger.debugv(exc, "[{0}] Closing remote connection", connection.getSession());
+		connection.close();
+	}
+}
@@ -25,14 +25,14 @@
  */
 package org.jboss.server.nio2.async;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CompletionHandler;
+import java.util.concurrent.TimeUnit;
 
 import org.jboss.logging.Logger;
 import org.jboss.server.common.Constants;
+import org.jboss.server.common.Pipeline;
 
 /**
  * {@code WriteCompletionHandler}
@@ -41,7 +41,7 @@ import org.jboss.server.common.Constants;
  * 
  * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
  */
-class WriteCompletionHandler implements CompletionHandler<Long, Object[]> {
+class WriteCompletionHandler implements CompletionHandler<Long, Connection> {
 
 	private static final Logger logger = Logger.getLogger(CompletionHandler.class);
 	private int offset = 0;
@@ -49,18 +49,15 @@ class WriteCompletionHandler implements CompletionHandler<Long, Object[]> {
 
 	/**
 	 * Create a new instance of {@code WriteCompletionHandler}
-	 * 
-	 * @param channel
-	 * @param sessionId
 	 */
 	public WriteCompletionHandler() {
 		super();
 	}
 
 	/**
-	 * 
+	 * Forget the progress of the current gathering write
 	 */
-	protected void reset() {
+	void reset() {
 		this.offset = 0;
 		this.written = 0;
 	}
@@ -71,30 +68,35 @@ class WriteCompletionHandler implements CompletionHandler<Long, Object[]> {
 	 * @see java.nio.channels.CompletionHandler#completed(java.lang.Object,
 	 * java.lang.Object)
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
-	public void completed(Long nBytes, Object[] attachment) {
+	public void completed(Long nBytes, Connection connection) {
 		if (nBytes < 0) {
-			failed(new ClosedChannelException(), attachment);
+			failed(new ClosedChannelException(), connection);
 		} else {
 			this.written += nBytes;
-			final long total = (Long) attachment[Constants.FILE_LENGTH_POS];
-			final AsynchronousSocketChannel channel = (AsynchronousSocketChannel) attachment[Constants.CHANNEL_POS];
+			connection.getSession().onWrite(nBytes);
+			final Pipeline pipeline = connection.getPipeline();
+			final long total = pipeline.getLength();
 
 			if (this.written < total) {
 				// Write the rest of bytes
-				ByteBuffer buffers[] = (ByteBuffer[]) attachment[Constants.WRITE_BUFFERS_POS];
-				offset = (int) (written / buffers[0].capacity());
-				channel.write(buffers, offset, buffers.length - offset, Constants.DEFAULT_TIMEOUT,
-						Constants.DEFAULT_TIME_UNIT, attachment, this);
+				ByteBuffer buffers[] = pipeline.getBuffers();
+				// Skip the buffers already written
+				while (!buffers[offset].hasRemaining()) {
+					offset++;
+				}
+				connection.deadline(Constants.DEFAULT_TIMEOUT);
+				connection.getChannel().write(buffers, offset, pipeline.getBufferCount() - offset,
+						0L, TimeUnit.MILLISECONDS, connection, this);
 			} else {
 				this.reset();
-				ByteBuffer buff = (ByteBuffer) attachment[Constants.READ_BUFFER_POS];
-				CompletionHandler<Integer, Object[]> readHandler = (CompletionHandler<Integer, Object[]>) attachment[Constants.READ_HANDLER_POS];
-
-				// Read again from client
-				channel.read(buff, Constants.DEFAULT_TIMEOUT, Constants.DEFAULT_TIME_UNIT,
-						attachment, readHandler);
+				if (pipeline.getFileResponse() != null) {
+					// Send the response that ends the batch from the file
+					connection.getStreamHandler().start(connection);
+				} else {
+					// Answer the next pipelined requests, if any
+					connection.getReadHandler().process(connection);
+				}
 			}
 		}
 	}
@@ -106,14 +108,8 @@ class WriteCompletionHandler implements CompletionHandler<Long, Object[]> {
 	 * java.lang.Object)
 	 */
 	@Override
-	public void failed(Throwable exc, Object[] attachment) {
-		try {
-			String sessionId = (String) attachment[Constants.SESSION_ID_POS];
-			System.out.println("[" + sessionId + "] Closing remote connection");
-			AsynchronousSocketChannel channel = (AsynchronousSocketChannel) attachment[Constants.CHANNEL_POS];
-			channel.close();
-		} catch (IOException e) {
-			// NOPE
-		}
+	public void failed(Throwable exc, Connection connection) {
+		logger.debugv(exc, "[{0}] Closing remote connection", connection.getSession());
+		connection.close();
 	}
 }
@@ -28,9 +28,17 @@ package org.jboss.server.nio2.sync;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import org.jboss.logging.Logger;
 import org.jboss.server.common.ClientManager;
+import org.jboss.server.common.Constants;
+import org.jboss.server.common.HashedWheelTimer.Timeout;
 
 /**
  * {@code ClientManager}
@@ -42,6 +50,8 @@ import org.jboss.server.common.ClientManager;
 public class Nio2ClientManager extends ClientManager<AsynchronousSocketChannel> {
 
 	private static final Logger logger = Logger.getLogger(Nio2ClientManager.class);
+	private ChannelAdapter adapter;
+	private final GatheringWrite gatheringWrite = new GatheringWrite();
 
 	/**
 	 * Create a new instance of {@code ClientManager}
@@ -52,6 +62,146 @@ public class Nio2ClientManager extends ClientManager<AsynchronousSocketChannel>
 		super(channel);
 	}
 
+	/**
+	 * {@code ChannelAdapter}
+	 * <p>
+	 * Blocking {@link WritableByteChannel} view of the asynchronous channel,
+	 * used as the target of {@code FileChannel.transferTo}. NIO.2 asynchronous
+	 * channels do not expose their file descriptor, so the JDK cannot use
+	 * {@code sendfile} on them and streams the file region through its own
+	 * temporary direct buffers instead.
+	 * </p>
+	 */
+	private static class ChannelAdapter implements WritableByteChannel {
+
+		private final AsynchronousSocketChannel channel;
+		private final Timeout timeout;
+
+		/**
+		 * Create a new instance of {@code ChannelAdapter}
+		 * 
+		 * @param channel
+		 * @param timeout
+		 *            the timeout of the connection, armed before each write
+		 */
+		ChannelAdapter(AsynchronousSocketChannel channel, Timeout timeout) {
+			this.channel = channel;
+			this.timeout = timeout;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.nio.channels.WritableByteChannel#write(java.nio.ByteBuffer)
+		 */
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			this.timeout.arm(Constants.DEFAULT_TIMEOUT, Constants.DEFAULT_TIME_UNIT);
+			try {
+				return this.channel.write(src).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			} catch (ExecutionException e) {
+				throw new IOException(e.getCause());
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.nio.channels.Channel#isOpen()
+		 */
+		@Override
+		public boolean isOpen() {
+			return this.channel.isOpen();
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.nio.channels.Channel#close()
+		 */
+		@Override
+		public void close() throws IOException {
+			this.channel.close();
+		}
+	}
+
+	/**
+	 * {@code GatheringWrite}
+	 * <p>
+	 * Completion handler of the gathering writes, which only exist with a
+	 * completion handler on asynchronous channels. The client manager waits
+	 * for the completion by parking its thread; the same handler is reused
+	 * for all the writes of the connection.
+	 * </p>
+	 */
+	private static class GatheringWrite implements CompletionHandler<Long, Thread> {
+
+		private long result;
+		private Throwable error;
+		private volatile boolean done;
+
+		/**
+		 * Write the buffers and wait for the write to complete
+		 * 
+		 * @param channel
+		 * @param buffers
+		 * @param offset
+		 * @param length
+		 * @return the number of bytes written
+		 * @throws IOException
+		 */
+		long write(AsynchronousSocketChannel channel, ByteBuffer buffers[], int offset, int length)
+				throws IOException {
+			this.done = false;
+			this.error = null;
+			// A timeout of zero means no timer for the operation itself, the
+			// deadline is kept by the timeout of the client manager
+			channel.write(buffers, offset, length, 0L, TimeUnit.MILLISECONDS,
+					Thread.currentThread(), this);
+			boolean interrupted = false;
+			while (!this.done) {
+				LockSupport.park(this);
+				interrupted |= Thread.interrupted();
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (this.error != null) {
+				throw new IOException(this.error);
+			}
+			return this.result;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.nio.channels.CompletionHandler#completed(java.lang.Object,
+		 * java.lang.Object)
+		 */
+		@Override
+		public void completed(Long nBytes, Thread waiter) {
+			this.result = nBytes;
+			this.done = true;
+			LockSupport.unpark(waiter);
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.nio.channels.CompletionHandler#failed(java.lang.Throwable,
+		 * java.lang.Object)
+		 */
+		@Override
+		public void failed(Throwable exc, Thread waiter) {
+			this.error = exc;
+			this.done = true;
+			LockSupport.unpark(waiter);
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -59,29 +209,33 @@ public class Nio2ClientManager extends ClientManager<AsynchronousSocketChannel>
 	 */
 	@Override
 	public void run() {
-		if (!this.intialized) {
-			this.init();
-		}
 		try {
-			// Initialization of the communication
-			byte bytes[] = new byte[this.readBuffer.capacity()];
+			if (!this.intialized) {
+				this.init();
+			}
+			// Answer the requests read along with the greeting, if any
+			if (this.readBuffer.position() > 0) {
+				process(channel);
+			}
 			do {
-				this.readBuffer.clear();
+				readDeadline();
 				int n = channel.read(this.readBuffer).get();
 				if (n < 0) {
 					break;
 				}
 
 				if (n > 0) {
-					this.readBuffer.flip();
-					this.readBuffer.get(bytes, 0, n);
-					// write response to client
-					writeResponse(channel);
+					onRead(n);
+					// Answer the complete requests read so far
+					process(channel);
 				}
 			} while (channel.isOpen());
 		} catch (Exception exp) {
-			logger.errorv("ERROR: from client side -> {0}", exp);
-			exp.printStackTrace();
+			// Nothing to report when the session was closed by the reaper
+			if (channel.isOpen()) {
+				logger.errorv("ERROR: from client side -> {0}", exp);
+				exp.printStackTrace();
+			}
 		} finally {
 			this.close();
 		}
@@ -93,14 +247,48 @@ public class Nio2ClientManager extends ClientManager<AsynchronousSocketChannel>
 	 * 
 	 * @see
 	 * org.jboss.server.common.ClientManager#write(java.nio.channels.Channel,
-	 * java.nio.ByteBuffer[], long)
+	 * java.nio.ByteBuffer[], int, int, long)
 	 */
 	@Override
 	public void write(final AsynchronousSocketChannel channel, final ByteBuffer[] buffers,
-			final long total) throws Exception {
+			int offset, int length, final long total) throws Exception {
 
-		for (ByteBuffer buffer : buffers) {
-			write(channel, buffer);
+		int end = offset + length;
+		long written = 0;
+		while (written < total) {
+			// Skip the buffers already written
+			while (!buffers[offset].hasRemaining()) {
+				offset++;
+			}
+			deadline(Constants.DEFAULT_TIMEOUT);
+			long n = this.gatheringWrite.write(channel, buffers, offset, end - offset);
+			if (n < 0) {
+				throw new IOException("The channel is closed");
+			}
+			written += n;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.jboss.server.common.ClientManager#transfer(java.nio.channels.Channel,
+	 * java.nio.channels.FileChannel, long, long)
+	 */
+	@Override
+	protected void transfer(AsynchronousSocketChannel channel, FileChannel file, long position,
+			long count) throws Exception {
+		if (this.adapter == null) {
+			this.adapter = new ChannelAdapter(channel, this.timeout);
+		}
+		long end = position + count;
+		while (position < end) {
+			long n = file.transferTo(position, end - position, this.adapter);
+			if (n <= 0 && !channel.isOpen()) {
+				throw new IOException("The channel is closed");
+			}
+			position += n;
 		}
 	}
 
@@ -113,11 +301,8 @@ public class Nio2ClientManager extends ClientManager<AsynchronousSocketChannel>
 	 */
 	@Override
 	protected void write(AsynchronousSocketChannel channel, ByteBuffer buffer) throws Exception {
-		if (buffer.position() > 0) {
-			buffer.flip();
-		}
-
 		while (buffer.hasRemaining()) {
+			deadline(Constants.DEFAULT_TIMEOUT);
 			if (channel.write(buffer).get() < 0) {
 				throw new IOException();
 			}
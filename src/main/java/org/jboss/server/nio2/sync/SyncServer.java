@@ -25,11 +25,15 @@
  */
 package org.jboss.server.nio2.sync;
 
+import java.io.IOException;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 
+import org.jboss.server.common.BufferPool;
 import org.jboss.server.common.Constants;
+import org.jboss.server.common.SessionId;
+import org.jboss.server.common.Shard;
 import org.jboss.server.nio2.NioServer;
 
 /**
@@ -53,21 +57,69 @@ public class SyncServer extends NioServer {
 	 * 
 	 * @see
 	 * org.jboss.server.nio2.common.NioServer#processChannel(java.nio.channels
-	 * .AsynchronousSocketChannel)
+	 * .AsynchronousSocketChannel, org.jboss.server.common.Shard)
 	 */
 	@Override
-	public void processChannel(AsynchronousSocketChannel channel) throws Exception {
-		// Generate a new session id
-		String sessionId = generateSessionId();
-		final ByteBuffer readBuffer = ByteBuffer.allocate(512);
-		// Initialize the session
-		initSession(channel, readBuffer, sessionId);
+	public void processChannel(final AsynchronousSocketChannel channel, final Shard shard)
+			throws Exception {
 		// Fix the channel send buffer size
 		channel.setOption(StandardSocketOptions.SO_SNDBUF, Constants.DEFAULT_SO_SNDBUF);
 		// Create a new client manager
-		Nio2ClientManager manager = new Nio2ClientManager(channel);
-		manager.setSessionId(sessionId);
-		// Execute the client manager
-		executor.execute(manager);
+		final Nio2ClientManager manager = new Nio2ClientManager(channel);
+		manager.setResponseMode(responseMode);
+		// Generated here so that the per-thread generators are not created
+		// again for each virtual thread
+		final SessionId sessionId = generateSessionId();
+		// The session initialization blocks, so it is done by the thread of
+		// the client manager rather than by the accepting thread
+		managerExecutor.execute(new Runnable() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see java.lang.Runnable#run()
+			 */
+			@Override
+			public void run() {
+				if (startSession(channel, sessionId, shard, manager)) {
+					manager.run();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Initialize the session of the channel and hand it to the client
+	 * manager
+	 * 
+	 * @param channel
+	 * @param sessionId
+	 * @param shard
+	 * @param manager
+	 * @return {@code true} if the session is initialized, else the channel is
+	 *         closed
+	 */
+	private boolean startSession(AsynchronousSocketChannel channel, SessionId sessionId,
+			Shard shard, Nio2ClientManager manager) {
+		final ByteBuffer readBuffer = BufferPool.getReadBufferPool().acquire();
+		// Initialize the session, the client must greet in time
+		try {
+			manager.getTimeout().arm(Constants.HANDSHAKE_TIMEOUT, Constants.DEFAULT_TIME_UNIT);
+			initSession(channel, readBuffer, sessionId);
+		} catch (Exception e) {
+			logger.warnv("Session initialization failed: {0}", e);
+			manager.getTimeout().disarm();
+			BufferPool.getReadBufferPool().release(readBuffer);
+			try {
+				channel.close();
+			} catch (IOException exp) {
+				// NOPE
+			}
+			return false;
+		}
+		manager.setSession(openSession(sessionId, channel, shard));
+		// The read buffer is reused by the client manager
+		manager.setReadBuffer(readBuffer);
+		return true;
 	}
 }
@@ -0,0 +1,232 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.xnio3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import org.jboss.server.common.BufferPool;
+import org.jboss.server.common.Constants;
+import org.jboss.server.common.HashedWheelTimer;
+import org.jboss.server.common.HashedWheelTimer.Timeout;
+import org.jboss.server.common.SessionGenerator;
+import org.jboss.server.common.SessionId;
+import org.jboss.server.common.Shard;
+import org.xnio.ChannelListener;
+import org.xnio.IoUtils;
+import org.xnio.channels.StreamChannel;
+
+/**
+ * {@code HandshakeListener}
+ * <p>
+ * Non-blocking session initialization of a newly accepted channel, driven by
+ * its read and write events: the listener waits for the greeting line of the
+ * client ({@link State#AWAITING_REQUEST}), then sends the session ID
+ * ({@link State#SENDING_ID}) and finally hands the channel to the server
+ * ({@link State#READY}). The bytes read after the greeting, e.g. a first
+ * pipelined request, are kept in the read buffer given to the server.
+ * </p>
+ * <p>
+ * The listener is also the close listener of the channel during the
+ * handshake, which must complete within {@link Constants#HANDSHAKE_TIMEOUT}.
+ * </p>
+ * 
+ * Created on Nov 21, 2012 at 2:36:18 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class HandshakeListener implements ChannelListener<StreamChannel> {
+
+	/**
+	 * {@code State}
+	 * <p>
+	 * The states of the session initialization
+	 * </p>
+	 */
+	enum State {
+		/**
+		 * Waiting for the greeting line of the client
+		 */
+		AWAITING_REQUEST,
+		/**
+		 * Writing the session ID to the client
+		 */
+		SENDING_ID,
+		/**
+		 * The session is initialized, or the channel closed
+		 */
+		READY
+	}
+
+	private final XnioServer server;
+	private final SessionId sessionId;
+	private final Shard shard;
+	private final Timeout timeout;
+	private State state = State.AWAITING_REQUEST;
+	private ByteBuffer readBuffer;
+	private ByteBuffer writeBuffer;
+
+	/**
+	 * Create a new instance of {@code HandshakeListener}
+	 * 
+	 * @param server
+	 *            the server to which the channel is handed once the session
+	 *            is initialized
+	 * @param channel
+	 * @param sessionId
+	 * @param shard
+	 *            the shard which accepted the channel
+	 */
+	public HandshakeListener(XnioServer server, StreamChannel channel, SessionId sessionId,
+			Shard shard) {
+		this.server = server;
+		this.sessionId = sessionId;
+		this.shard = shard;
+		this.timeout = HashedWheelTimer.getInstance().newTimeout(channel);
+	}
+
+	/**
+	 * Start waiting for the greeting of the client, without blocking
+	 * 
+	 * @param channel
+	 */
+	public void start(StreamChannel channel) {
+		this.readBuffer = BufferPool.getReadBufferPool().acquire();
+		this.timeout.arm(Constants.HANDSHAKE_TIMEOUT, Constants.DEFAULT_TIME_UNIT);
+		channel.getCloseSetter().set(this);
+		channel.getReadSetter().set(this);
+		channel.getWriteSetter().set(this);
+		channel.resumeReads();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.xnio.ChannelListener#handleEvent(java.nio.channels.Channel)
+	 */
+	@Override
+	public synchronized void handleEvent(StreamChannel channel) {
+		if (!channel.isOpen()) {
+			// Close event: the handshake failed or timed out
+			release();
+			return;
+		}
+		try {
+			switch (this.state) {
+				case AWAITING_REQUEST:
+					readGreeting(channel);
+					break;
+				case SENDING_ID:
+					sendId(channel);
+					break;
+				default:
+					// A late event, the channel is already handed over
+					break;
+			}
+		} catch (IOException e) {
+			IoUtils.safeClose(channel);
+		}
+	}
+
+	/**
+	 * Read the greeting line of the client, then start sending the session ID
+	 * 
+	 * @param channel
+	 * @throws IOException
+	 */
+	private void readGreeting(StreamChannel channel) throws IOException {
+		if (channel.read(this.readBuffer) < 0) {
+			throw new ClosedChannelException();
+		}
+		int end = 0;
+		int limit = this.readBuffer.position();
+		while (end < limit && this.readBuffer.get(end) != '\n') {
+			end++;
+		}
+		if (end == limit) {
+			if (!this.readBuffer.hasRemaining()) {
+				// Overlong greeting, only its end of line matters
+				this.readBuffer.clear();
+			}
+			return;
+		}
+		// Keep what follows the greeting
+		this.readBuffer.flip();
+		this.readBuffer.position(end + 1);
+		this.readBuffer.compact();
+		channel.suspendReads();
+		this.writeBuffer = BufferPool.getReadBufferPool().acquire();
+		SessionGenerator.putHandshake(this.writeBuffer, this.sessionId);
+		this.writeBuffer.flip();
+		this.state = State.SENDING_ID;
+		sendId(channel);
+	}
+
+	/**
+	 * Write the session ID, then hand the channel to the server
+	 * 
+	 * @param channel
+	 * @throws IOException
+	 */
+	private void sendId(StreamChannel channel) throws IOException {
+		while (this.writeBuffer.hasRemaining()) {
+			int n = channel.write(this.writeBuffer);
+			if (n < 0) {
+				throw new ClosedChannelException();
+			}
+			if (n == 0) {
+				// Wait until the channel becomes writable again
+				channel.resumeWrites();
+				return;
+			}
+		}
+		channel.suspendWrites();
+		this.state = State.READY;
+		this.timeout.disarm();
+		BufferPool.getReadBufferPool().release(this.writeBuffer);
+		this.writeBuffer = null;
+		channel.getReadSetter().set(null);
+		channel.getWriteSetter().set(null);
+		channel.getCloseSetter().set(null);
+		ByteBuffer buffer = this.readBuffer;
+		this.readBuffer = null;
+		this.server.sessionReady(channel, this.sessionId, this.shard, buffer, this.timeout);
+	}
+
+	/**
+	 * Give the buffers back to the pool when the channel is closed during
+	 * the handshake
+	 */
+	private void release() {
+		this.state = State.READY;
+		this.timeout.disarm();
+		BufferPool.getReadBufferPool().release(this.readBuffer);
+		BufferPool.getReadBufferPool().release(this.writeBuffer);
+		this.readBuffer = null;
+		this.writeBuffer = null;
+	}
+}
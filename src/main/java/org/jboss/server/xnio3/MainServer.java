@@ -26,8 +26,12 @@
 
 package org.jboss.server.xnio3;
 
+import org.jboss.server.common.AbstractServer;
+import org.jboss.server.common.ResponseMode;
+import org.jboss.server.nio.UnixDomainListener;
 import org.jboss.server.xnio3.async.AsyncServer;
 import org.jboss.server.xnio3.sync.SyncServer;
+import org.jboss.server.xnio3.udp.UdpServer;
 
 /**
  * {@code MainServer}
@@ -39,28 +43,48 @@ import org.jboss.server.xnio3.sync.SyncServer;
 public class MainServer {
 
 	/**
-	 * Runs the NIO.2 server
+	 * Runs the XNIO3 server
 	 * 
 	 * @param mode
-	 *            the server mode, sync/async
+	 *            the server mode, sync/sync-vt/async/udp
 	 * @param port
 	 *            the server port number
+	 * @param responseMode
+	 *            the way the payload is pushed to the clients
 	 * @throws Exception
 	 */
-	public static void run(String mode, int port) throws Exception {
-		Runnable target = null;
+	public static void run(String mode, int port, ResponseMode responseMode) throws Exception {
+		AbstractServer target = null;
 		switch (mode) {
 			case "sync":
 				target = new SyncServer(port);
 				break;
+			case "sync-vt":
+				target = new SyncServer(port);
+				target.useVirtualThreads();
+				break;
 			case "async":
 				target = new AsyncServer(port);
 				break;
+			case "udp":
+				target = new UdpServer(port);
+				break;
 
 			default:
 				throw new Exception("Invalid mode: " + mode);
 		}
 
+		// The asynchronous engines support the buffer and stream modes
+		if (responseMode == ResponseMode.SENDFILE && "async".equals(mode)) {
+			throw new Exception("The sendfile response mode requires a sync mode");
+		}
+		if (responseMode == ResponseMode.SENDFILE && "udp".equals(mode)) {
+			throw new Exception("The sendfile response mode does not apply to datagrams");
+		}
+		target.setResponseMode(responseMode);
+		// Serve the co-located clients on a Unix domain socket as well, if asked
+		UnixDomainListener.start(target);
+
 		Thread thread = new Thread(target);
 		thread.start();
 		thread.join();
@@ -26,7 +26,6 @@
 
 package org.jboss.server.xnio3;
 
-import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
@@ -35,7 +34,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.logging.Logger;
 import org.jboss.server.common.AbstractServer;
-import org.jboss.server.xnio3.common.XnioUtils;
+import org.jboss.server.common.HashedWheelTimer.Timeout;
+import org.jboss.server.common.SessionId;
+import org.jboss.server.common.Shard;
+import org.jboss.server.common.ThreadTopology;
 import org.xnio.ChannelListener;
 import org.xnio.ChannelListeners;
 import org.xnio.OptionMap;
@@ -57,6 +59,13 @@ public abstract class XnioServer extends AbstractServer {
 
 	protected static final Logger logger = Logger.getLogger(XnioServer.class.getName());
 	protected AtomicInteger counter = new AtomicInteger();
+	// Each read thread accepting on the listener is a shard
+	private final ThreadLocal<Shard> shards = new ThreadLocal<Shard>() {
+		@Override
+		protected Shard initialValue() {
+			return Shard.create(Thread.currentThread().getName());
+		}
+	};
 
 	/**
 	 * Create a new instance of {@code Xnio3Server}
@@ -79,22 +88,32 @@ public abstract class XnioServer extends AbstractServer {
 		try {
 			// Get the Xnio instance
 			final Xnio xnio = Xnio.getInstance("nio", getClass().getClassLoader());
-			int cores = Runtime.getRuntime().availableProcessors();
+			int ioThreads = ThreadTopology.getIoThreads();
+			logger.infov("Thread topology: {0}", ThreadTopology.describe());
+			// XNIO 3.0 binds the listener itself, without any option to share
+			// the port: the shards are read threads accepting on the same
+			// listener
+			int acceptThreads = Math.min(ThreadTopology.getShards(), ioThreads);
+			if (ThreadTopology.getShards() > 1) {
+				logger.warnv("SO_REUSEPORT is not supported by XNIO 3.0, using a single "
+						+ "listener accepting on {0} read threads", acceptThreads);
+			}
 
 			// Create the OptionMap for the worker
-			OptionMap optionMap = OptionMap.create(Options.WORKER_WRITE_THREADS, cores,
-					Options.WORKER_READ_THREADS, cores);
+			OptionMap optionMap = OptionMap.create(Options.WORKER_WRITE_THREADS, ioThreads,
+					Options.WORKER_READ_THREADS, ioThreads);
 			// Create the worker
 			final XnioWorker worker = xnio.createWorker(null,optionMap);
 			final SocketAddress address = new InetSocketAddress(this.port);
 			final ChannelListener<? super AcceptingChannel<ConnectedStreamChannel>> acceptListener = ChannelListeners
 					.openListenerAdapter(getAcceptListener());
 			// configure the number of worker task max threads
-			worker.setOption(Options.WORKER_TASK_MAX_THREADS, 1000);
+			worker.setOption(Options.WORKER_TASK_MAX_THREADS, ThreadTopology.getTaskThreads());
 
 			final AcceptingChannel<? extends ConnectedStreamChannel> server = worker
-					.createStreamServer(address, acceptListener,
-							OptionMap.create(Options.REUSE_ADDRESSES, Boolean.TRUE));
+					.createStreamServer(address, acceptListener, OptionMap.create(
+							Options.REUSE_ADDRESSES, Boolean.TRUE, Options.WORKER_ACCEPT_THREADS,
+							acceptThreads));
 			server.resumeAccepts();
 			logger.infov("{0} XNIO3 Sever started ...", mode);
 		} catch (Throwable th) {
@@ -102,30 +121,57 @@ public abstract class XnioServer extends AbstractServer {
 		}
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.jboss.server.common.AbstractServer#getEngine()
+	 */
+	@Override
+	public String getEngine() {
+		if (this.async) {
+			return "xnio3-async";
+		}
+		return this.virtualThreads ? "xnio3-sync-vt" : "xnio3-sync";
+	}
+
 	/**
 	 * @return the channel listener
 	 */
 	public abstract ChannelListener<Channel> getAcceptListener();
 
 	/**
+	 * Initialize the session of the newly accepted channel, without blocking
+	 * the accept thread: the channel is handed to
+	 * {@link #sessionReady(StreamChannel, SessionId, Shard, ByteBuffer, Timeout)}
+	 * once the client is greeted. Called by the read thread which accepted
+	 * the channel.
 	 * 
 	 * @param channel
-	 * @param sessionId
-	 * @throws IOException
+	 * @see HandshakeListener
 	 */
-	public void initSession(StreamChannel channel, String sessionId) throws IOException {
-		ByteBuffer buffer = ByteBuffer.allocate(512);
-		buffer.clear();
-		int nBytes = channel.read(buffer);
-		buffer.flip();
-		byte bytes[] = new byte[nBytes];
-		buffer.get(bytes);
-		String response = "jSessionId: " + sessionId + XnioUtils.CRLF;
-		// write initialization response to client
-		buffer.clear();
-		buffer.put(response.getBytes());
-		buffer.flip();
-		channel.awaitWritable();
-		channel.write(buffer);
+	protected void initSession(StreamChannel channel) {
+		Shard shard = this.shards.get();
+		shard.onAccept();
+		new HandshakeListener(this, channel, generateSessionId(), shard).start(channel);
 	}
+
+	/**
+	 * Start serving the channel once its session is initialized. Called from
+	 * an I/O thread of the channel, with its reads and writes suspended and
+	 * its listeners cleared.
+	 * 
+	 * @param channel
+	 * @param sessionId
+	 *            the ID sent to the client
+	 * @param shard
+	 *            the shard which accepted the channel
+	 * @param readBuffer
+	 *            a buffer of the read buffer pool holding the bytes read
+	 *            after the greeting, if any, ready for the next read
+	 * @param timeout
+	 *            the disarmed timeout of the handshake, closing the channel
+	 *            when it expires
+	 */
+	protected abstract void sessionReady(StreamChannel channel, SessionId sessionId, Shard shard,
+			ByteBuffer readBuffer, Timeout timeout);
 }
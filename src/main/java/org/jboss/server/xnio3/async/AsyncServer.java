@@ -26,10 +26,17 @@
 package org.jboss.server.xnio3.async;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
 
+import org.jboss.server.common.HashedWheelTimer.Timeout;
+import org.jboss.server.common.Session;
+import org.jboss.server.common.SessionId;
+import org.jboss.server.common.Shard;
+import org.jboss.server.common.SessionRegistry;
 import org.jboss.server.xnio3.XnioServer;
 import org.xnio.ChannelListener;
+import org.xnio.IoUtils;
 import org.xnio.Options;
 import org.xnio.channels.StreamChannel;
 
@@ -54,6 +61,11 @@ public class AsyncServer extends XnioServer {
 
 	/**
 	 * {@code CloseChannelListener}
+	 * <p>
+	 * Removes the session from the registry once the channel is closed,
+	 * either by the client, by the session reaper or by a timeout, and
+	 * releases the buffers of the connection.
+	 * </p>
 	 * 
 	 * Created on Nov 11, 2011 at 1:58:40 PM
 	 * 
@@ -61,7 +73,9 @@ public class AsyncServer extends XnioServer {
 	 */
 	private class CloseChannelListener implements ChannelListener<StreamChannel> {
 
-		private String sessionId;
+		private Session session;
+		private ReadChannelListener readListener;
+		private Timeout timeout;
 
 		/*
 		 * (non-Javadoc)
@@ -71,7 +85,10 @@ public class AsyncServer extends XnioServer {
 		@Override
 		public void handleEvent(StreamChannel channel) {
 			logger.infov("Closing remote connection for session: {0} (counter = {1}) ",
-					this.sessionId, counter.decrementAndGet());
+					this.session.getId(), counter.decrementAndGet());
+			this.timeout.disarm();
+			SessionRegistry.getInstance().remove(this.session);
+			this.readListener.release();
 		}
 	}
 
@@ -94,25 +111,50 @@ public class AsyncServer extends XnioServer {
 			public void handleEvent(Channel channel) {
 				counter.incrementAndGet();
 				final StreamChannel streamChannel = (StreamChannel) channel;
-				String sessionId = generateSessionId();
 				try {
 					// Fix the size of the send buffer to 8KB
 					streamChannel.setOption(Options.SEND_BUFFER, 8 * 1024);
-					initSession(streamChannel, sessionId);
-					// Setup the read listener
-					ReadChannelListener readListener = new ReadChannelListener();
-					readListener.setSessionId(sessionId);
-					streamChannel.getReadSetter().set(readListener);
-					// Setup the close listener
-					//CloseChannelListener closeListener = new CloseChannelListener();
-					//closeListener.sessionId = sessionId;
-					//streamChannel.getCloseSetter().set(closeListener);
-					// Resume reads
-					streamChannel.resumeReads();
+					initSession(streamChannel);
 				} catch (IOException e) {
 					e.printStackTrace();
+					IoUtils.safeClose(streamChannel);
 				}
 			}
 		};
 	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.jboss.server.xnio3.XnioServer#sessionReady(org.xnio.channels.StreamChannel
+	 * , org.jboss.server.common.SessionId, org.jboss.server.common.Shard,
+	 * java.nio.ByteBuffer,
+	 * org.jboss.server.common.HashedWheelTimer.Timeout)
+	 */
+	@Override
+	protected void sessionReady(StreamChannel channel, SessionId sessionId, Shard shard,
+			ByteBuffer readBuffer, Timeout timeout) {
+		// Setup the read listener
+		ReadChannelListener readListener = new ReadChannelListener(readBuffer);
+		readListener.setTimeout(timeout);
+		readListener.setSession(openSession(sessionId, channel, shard));
+		readListener.setResponseMode(responseMode);
+		channel.getReadSetter().set(readListener);
+		// The write listener is only resumed while a batch is pending
+		channel.getWriteSetter().set(readListener.getWriteListener());
+		// Setup the close listener
+		CloseChannelListener closeListener = new CloseChannelListener();
+		closeListener.session = readListener.getSession();
+		closeListener.readListener = readListener;
+		closeListener.timeout = timeout;
+		channel.getCloseSetter().set(closeListener);
+		// Resume reads
+		SessionRegistry.getInstance().armReadDeadline(timeout, readBuffer);
+		channel.resumeReads();
+		if (readBuffer.position() > 0) {
+			// Answer the requests sent along with the greeting
+			channel.wakeupReads();
+		}
+	}
 }
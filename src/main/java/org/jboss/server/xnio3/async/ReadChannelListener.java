@@ -27,14 +27,36 @@ package org.jboss.server.xnio3.async;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.ClosedChannelException;
 
-import org.jboss.server.common.FileLoader;
+import org.jboss.server.common.BufferPool;
+import org.jboss.server.common.Constants;
+import org.jboss.server.common.HashedWheelTimer.Timeout;
+import org.jboss.server.common.Pipeline;
+import org.jboss.server.common.ResponseMode;
+import org.jboss.server.common.Session;
+import org.jboss.server.common.SessionRegistry;
 import org.xnio.ChannelListener;
+import org.xnio.IoUtils;
 import org.xnio.channels.StreamChannel;
 
 /**
  * {@code ReadChannelListener}
+ * <p>
+ * Reads the requests of the connection and answers them batch by batch (see
+ * {@link Pipeline}). A batch is written as far as the socket accepts it; the
+ * rest is handed to the {@link WriteChannelListener} of the connection, set
+ * as the write listener of the channel, so that a slow client never blocks
+ * the I/O thread. While a batch is pending, the requests read ahead stay in
+ * the read buffer and are answered by the write listener once the batch is
+ * written; the reads are suspended when the read buffer is full, or when
+ * requests are queued behind a batch whose backlog exceeds the high
+ * watermark. A client waiting for a large response before sending its next
+ * request is never suspended.
+ * </p>
+ * <p>
+ * XNIO runs the read and write listeners of a channel on different threads,
+ * the state of the connection is guarded by the read listener monitor.
+ * </p>
  * 
  * Created on Nov 22, 2011 at 4:44:01 PM
  * 
@@ -42,16 +64,24 @@ import org.xnio.channels.StreamChannel;
  */
 public class ReadChannelListener implements ChannelListener<StreamChannel> {
 	
-	private String		sessionId;
+	private Session		session;
+	private Timeout		timeout;
+	private final Pipeline	pipeline = new Pipeline();
+	private final WriteChannelListener	writeListener = new WriteChannelListener(this);
 	private ByteBuffer	readBuffer;
-	private ByteBuffer	writeBuffers[];
-	private long		fileLength;
+	private ResponseMode	responseMode = ResponseMode.BUFFER;
+	private boolean	writing;
+	private boolean	readsSuspended;
 	
 	/**
 	 * Create a new instance of {@code ReadChannelListener}
+	 * 
+	 * @param readBuffer
+	 *            a buffer of the read buffer pool, ready for the next read,
+	 *            released when the channel is closed
 	 */
-	public ReadChannelListener() {
-		this.init();
+	public ReadChannelListener(ByteBuffer readBuffer) {
+		this.readBuffer = readBuffer;
 	}
 	
 	/*
@@ -59,120 +89,197 @@ public class ReadChannelListener implements ChannelListener<StreamChannel> {
 	 * 
 	 * @see org.xnio.ChannelListener#handleEvent(java.nio.channels.Channel )
 	 */
-	public void handleEvent(StreamChannel channel) {
+	public synchronized void handleEvent(StreamChannel channel) {
 		try {
 			int nBytes = channel.read(readBuffer);
 			if (nBytes < 0) {
-				// means that the connection was closed remotely
+				// means that the connection was closed remotely, the close
+				// listener releases the read buffer
 				channel.close();
 				return;
 			}
-			
 			if (nBytes > 0) {
-				readBuffer.flip();
-				byte bytes[] = new byte[nBytes];
-				readBuffer.get(bytes).clear();
-				writeResponse(channel);
+				session.onRead(nBytes);
+			}
+			if (readBuffer.position() == 0) {
+				// Nothing to answer
+				return;
+			}
+			if (writing) {
+				// The requests read ahead are answered once the pending batch
+				// is written, stop reading when there is no room left for them
+				// or when the batch is still large
+				if (!readBuffer.hasRemaining()
+						|| writeListener.getBacklog() > WriteChannelListener.HIGH_WATERMARK) {
+					suspendReads(channel);
+				}
+			} else {
+				// Answer the complete requests read so far
+				answer(channel);
 			}
 		} catch (Exception e) {
-			e.printStackTrace();
+			if (channel.isOpen()) {
+				e.printStackTrace();
+			}
+			IoUtils.safeClose(channel);
 		}
 	}
-	
+
 	/**
+	 * Called by the write listener when the channel becomes writable: write
+	 * more of the pending batch, then answer the requests read ahead once it
+	 * is complete
 	 * 
 	 * @param channel
-	 * @throws Exception
 	 */
-	void writeResponse(StreamChannel channel) throws Exception {
-		// Write the file content to the channel
-		write(channel, writeBuffers, fileLength);
+	synchronized void onWritable(StreamChannel channel) {
+		if (!writing || !channel.isOpen()) {
+			return;
+		}
+		try {
+			if (writeListener.flush(channel, session)) {
+				answer(channel);
+			} else {
+				if (readsSuspended && readBuffer.hasRemaining()
+						&& writeListener.getBacklog() < WriteChannelListener.LOW_WATERMARK) {
+					readsSuspended = false;
+					channel.resumeReads();
+				}
+				timeout.arm(Constants.DEFAULT_TIMEOUT, Constants.DEFAULT_TIME_UNIT);
+			}
+		} catch (Exception e) {
+			if (channel.isOpen()) {
+				e.printStackTrace();
+			}
+			IoUtils.safeClose(channel);
+		}
 	}
-	
+
 	/**
+	 * Answer the complete requests held in the read buffer, batch by batch,
+	 * until a batch cannot be written without blocking. The read buffer is
+	 * flipped on entry and compacted on exit, ready for the next read.
 	 * 
-	 * @param buffers
+	 * @param channel
+	 * @throws IOException
 	 */
-	public void flipAll(ByteBuffer[] buffers) {
-		for (ByteBuffer bb : buffers) {
-			if (bb.position() > 0) {
-				bb.flip();
+	private void answer(StreamChannel channel) throws IOException {
+		readBuffer.flip();
+		try {
+			while (pipeline.parse(readBuffer, responseMode) > 0) {
+				writeListener.start(pipeline);
+				if (!writeListener.flush(channel, session)) {
+					// Let the write listener write the rest
+					handOff(channel);
+					return;
+				}
 			}
+		} finally {
+			readBuffer.compact();
 		}
+		// All the requests are answered, wait for the next ones
+		if (writing) {
+			writing = false;
+			channel.suspendWrites();
+		}
+		if (readsSuspended) {
+			readsSuspended = false;
+			channel.resumeReads();
+		}
+		SessionRegistry.getInstance().armReadDeadline(timeout, readBuffer);
 	}
-	
+
 	/**
+	 * Hand the rest of the batch to the write listener, and stop reading if
+	 * requests are queued behind a batch whose backlog is too large. Called
+	 * with the read buffer flipped.
 	 * 
 	 * @param channel
-	 * @param buffers
-	 * @throws Exception
 	 */
-	protected void write(final StreamChannel channel, final ByteBuffer[] buffers, final long total)
-			throws Exception {
-		
-		// Flip all buffers
-		flipAll(buffers);
-		
-		long nw = 0, x = 0;
-		int offset = 0, len = buffers.length;
-		do {
-			offset = (int) (nw / buffers[0].capacity());
-			// Wait until the channel becomes writable again
-			channel.awaitWritable();
-			// Write data to client
-			x = channel.write(buffers, offset, len - offset);
-			if (x < 0) {
-				throw new ClosedChannelException();
-			}
-			nw += x;
-		} while (nw < total);
+	private void handOff(StreamChannel channel) {
+		if (!writing) {
+			writing = true;
+			channel.resumeWrites();
+		}
+		if (readBuffer.hasRemaining()
+				&& writeListener.getBacklog() > WriteChannelListener.HIGH_WATERMARK) {
+			suspendReads(channel);
+		}
+		timeout.arm(Constants.DEFAULT_TIMEOUT, Constants.DEFAULT_TIME_UNIT);
 	}
-	
+
 	/**
-	 * 
 	 * @param channel
-	 * @param buffer
-	 * @throws IOException
 	 */
-	void write(StreamChannel channel, ByteBuffer byteBuffer) throws IOException {
-		byteBuffer.flip();
-		// Wait until the channel becomes writable again
-		channel.awaitWritable();
-		channel.write(byteBuffer);
+	private void suspendReads(StreamChannel channel) {
+		if (!readsSuspended) {
+			readsSuspended = true;
+			channel.suspendReads();
+		}
 	}
 	
 	/**
-	 * Read the file from HD and initialize the write byte buffers array.
+	 * Give the buffers of the connection back to their pools once the channel
+	 * is closed
 	 */
-	private void init() {
-		this.readBuffer = ByteBuffer.allocateDirect(512);
-		this.writeBuffers = FileLoader.cloneData();
-		this.fileLength = FileLoader.getFileLength();
+	synchronized void release() {
+		BufferPool.getReadBufferPool().release(this.readBuffer);
+		this.readBuffer = null;
+		this.pipeline.reset();
+		this.writeListener.release();
 	}
-	
+
 	/**
 	 * @return the readBuffer
 	 */
 	public ByteBuffer getReadBuffer() {
 		return this.readBuffer;
 	}
+
+	/**
+	 * @return the write listener of the connection
+	 */
+	public WriteChannelListener getWriteListener() {
+		return this.writeListener;
+	}
 	
 	/**
-	 * Getter for sessionId
+	 * Setter for the responseMode
+	 * 
+	 * @param responseMode
+	 *            the way the payload is pushed to the client
+	 */
+	public void setResponseMode(ResponseMode responseMode) {
+		this.responseMode = responseMode;
+	}
+
+	/**
+	 * Setter for the timeout
+	 * 
+	 * @param timeout
+	 *            the timeout of the connection, armed before each read and
+	 *            write
+	 */
+	public void setTimeout(Timeout timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Getter for session
 	 * 
-	 * @return the sessionId
+	 * @return the session
 	 */
-	public String getSessionId() {
-		return this.sessionId;
+	public Session getSession() {
+		return this.session;
 	}
 	
 	/**
-	 * Setter for the sessionId
+	 * Setter for the session
 	 * 
-	 * @param sessionId
-	 *            the sessionId to set
+	 * @param session
+	 *            the session to set
 	 */
-	public void setSessionId(String sessionId) {
-		this.sessionId = sessionId;
+	public void setSession(Session session) {
+		this.session = session;
 	}
 }
@@ -25,15 +25,37 @@
  */
 package org.jboss.server.xnio3.async;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import org.jboss.server.xnio3.common.XnioUtils;
-
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+
+import org.jboss.server.common.BufferPool;
+import org.jboss.server.common.Payload;
+import org.jboss.server.common.Pipeline;
+import org.jboss.server.common.Response;
+import org.jboss.server.common.Session;
 import org.xnio.ChannelListener;
 import org.xnio.channels.StreamChannel;
 
 /**
  * {@code WriteChannelListener}
+ * <p>
+ * Writes the responses of a batch (see {@link Pipeline}) without ever
+ * blocking the I/O thread: the responses held in memory with gathering
+ * writes, then the response sent from the file, if any, streamed by chunks.
+ * Each call of {@link #flush(StreamChannel, Session)} writes what the socket
+ * accepts; the rest, the backlog, is written on the next write events of the
+ * channel.
+ * </p>
+ * <p>
+ * The connection reads less while its backlog is large: when requests are
+ * queued behind the batch, reads are suspended if the backlog exceeds
+ * {@link #HIGH_WATERMARK} and resumed once it falls under
+ * {@link #LOW_WATERMARK} (see {@link ReadChannelListener}). The backlog of a
+ * single large response alone does not suspend the reads.
+ * </p>
  * 
  * Created on Nov 22, 2011 at 4:47:23 PM
  * 
@@ -41,17 +63,38 @@ import org.xnio.channels.StreamChannel;
  */
 public class WriteChannelListener implements ChannelListener<StreamChannel> {
 
-	private int offset = 0;
-	private long written = 0;
+	/**
+	 * The backlog, in bytes, above which the reads of the connection are
+	 * suspended when requests are queued behind the batch
+	 */
+	public static final long HIGH_WATERMARK = 64 * 1024;
+	/**
+	 * The backlog, in bytes, under which the reads of the connection are
+	 * resumed
+	 */
+	public static final long LOW_WATERMARK = 16 * 1024;
+
+	private final ReadChannelListener readListener;
+	private final ByteBuffer trailer = Payload.trailer();
+	private ByteBuffer chunk;
 	private ByteBuffer buffers[];
-	private long total = 0;
-	private String sessionId;
+	private int offset;
+	private int count;
+	private FileChannel file;
+	private long position;
+	private long end;
+	private ByteBuffer current;
+	private long backlog;
 
 	/**
 	 * Create a new instance of {@code WriteChannelListener}
+	 * 
+	 * @param readListener
+	 *            the read listener of the connection, which owns the batch
+	 *            being written
 	 */
-	public WriteChannelListener() {
-		super();
+	public WriteChannelListener(ReadChannelListener readListener) {
+		this.readListener = readListener;
 	}
 
 	/*
@@ -61,129 +104,125 @@ public class WriteChannelListener implements ChannelListener<StreamChannel> {
 	 */
 	@Override
 	public void handleEvent(StreamChannel channel) {
-
-		if (this.total > 0) {
-			if (this.written < this.total) {
-				this.offset = (int) (this.written / XnioUtils.WRITE_BUFFER_SIZE);
-				try {
-					// Update the value of written bytes
-					this.written += channel.write(buffers, offset, buffers.length - offset);
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-
-			if (this.written == this.total) {
-				reset();
-				//channel.suspendWrites();
-			}
-		}
+		this.readListener.onWritable(channel);
 	}
 
 	/**
-	 * Initialize the Channel listener fields
+	 * Start writing the responses of the batch just parsed
 	 * 
-	 * @param buffers
-	 * @param total
-	 * @param written
-	 */
-	public void init(ByteBuffer[] buffers, long total, long written) {
-		this.buffers = buffers;
-		this.written = written;
-		this.total = total;
-	}
-
-	/**
-	 * Reset the write handler counters
+	 * @param pipeline
 	 */
-	public void reset() {
-		this.total = 0;
+	void start(Pipeline pipeline) {
+		this.buffers = pipeline.getBuffers();
 		this.offset = 0;
-		this.written = 0;
-		this.buffers = null;
-	}
-
-	/**
-	 * 
-	 * @param nBytes
-	 */
-	public void addWritten(long nBytes) {
-		this.written += nBytes;
-	}
-
-	/**
-	 * Getter for buffers
-	 * 
-	 * @return the buffers
-	 */
-	public ByteBuffer[] getBuffers() {
-		return this.buffers;
-	}
-
-	/**
-	 * Setter for the buffers
-	 * 
-	 * @param buffers
-	 *            the buffers to set
-	 */
-	public void setBuffers(ByteBuffer[] buffers) {
-		this.buffers = buffers;
-	}
-
-	/**
-	 * Getter for offset
-	 * 
-	 * @return the offset
-	 */
-	public int getOffset() {
-		return this.offset;
-	}
-
-	/**
-	 * Setter for the offset
-	 * 
-	 * @param offset
-	 *            the offset to set
-	 */
-	public void setOffset(int offset) {
-		this.offset = offset;
+		this.count = pipeline.getBufferCount();
+		this.backlog = pipeline.getLength();
+		Response response = pipeline.getFileResponse();
+		if (response != null) {
+			this.file = response.getPayload().getFile();
+			this.position = response.getFilePosition();
+			this.end = this.position + response.getFileCount();
+			// The header, possibly empty, goes first
+			this.current = response.getHeader();
+			this.backlog += response.getLength();
+		}
 	}
 
 	/**
-	 * Getter for total
+	 * Write as much of the batch as the channel accepts without blocking
 	 * 
-	 * @return the total
+	 * @param channel
+	 * @param session
+	 *            the session of the connection, updated with the bytes
+	 *            written
+	 * @return {@code true} if the whole batch is written
+	 * @throws IOException
 	 */
-	public long getTotal() {
-		return this.total;
+	boolean flush(StreamChannel channel, Session session) throws IOException {
+		while (this.offset < this.count) {
+			// Skip the buffers already written
+			if (!this.buffers[this.offset].hasRemaining()) {
+				this.offset++;
+				continue;
+			}
+			long n = channel.write(this.buffers, this.offset, this.count - this.offset);
+			if (n < 0) {
+				throw new ClosedChannelException();
+			}
+			if (n == 0) {
+				return false;
+			}
+			this.backlog -= n;
+			session.onWrite(n);
+		}
+		while (this.current != null) {
+			if (this.current.hasRemaining()) {
+				int n = channel.write(this.current);
+				if (n < 0) {
+					throw new ClosedChannelException();
+				}
+				if (n == 0) {
+					return false;
+				}
+				this.backlog -= n;
+				session.onWrite(n);
+			} else {
+				next();
+			}
+		}
+		this.buffers = null;
+		this.backlog = 0;
+		return true;
 	}
 
 	/**
-	 * Setter for the total
+	 * Read the next chunk of the file, then select the trailer, then nothing
+	 * once the trailer is written
 	 * 
-	 * @param total
-	 *            the total to set
+	 * @throws IOException
 	 */
-	public void setTotal(long total) {
-		this.total = total;
+	private void next() throws IOException {
+		if (this.position < this.end) {
+			if (this.chunk == null) {
+				this.chunk = BufferPool.getStreamChunkPool().acquire();
+			}
+			this.chunk.clear();
+			if (this.end - this.position < this.chunk.capacity()) {
+				this.chunk.limit((int) (this.end - this.position));
+			}
+			int n = this.file.read(this.chunk, this.position);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of file at " + this.position);
+			}
+			this.position += n;
+			this.chunk.flip();
+			this.current = this.chunk;
+		} else if (this.current != this.trailer) {
+			// Mark the end of the response
+			this.trailer.rewind();
+			this.current = this.trailer;
+		} else {
+			// The response is complete
+			this.file = null;
+			this.current = null;
+		}
 	}
 
 	/**
-	 * Getter for sessionId
-	 * 
-	 * @return the sessionId
+	 * Give the chunk buffer back to the pool once the channel is closed
 	 */
-	public String getSessionId() {
-		return this.sessionId;
+	void release() {
+		BufferPool.getStreamChunkPool().release(this.chunk);
+		this.chunk = null;
+		this.buffers = null;
+		this.file = null;
+		this.current = null;
 	}
 
 	/**
-	 * Setter for the sessionId
-	 * 
-	 * @param sessionId
-	 *            the sessionId to set
+	 * @return the number of bytes of the batch still to write
 	 */
-	public void setSessionId(String sessionId) {
-		this.sessionId = sessionId;
+	long getBacklog() {
+		return this.backlog;
 	}
 }
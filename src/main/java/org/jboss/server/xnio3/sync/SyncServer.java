@@ -26,12 +26,17 @@
 package org.jboss.server.xnio3.sync;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jboss.logging.Logger;
+import org.jboss.server.common.HashedWheelTimer.Timeout;
+import org.jboss.server.common.SessionId;
+import org.jboss.server.common.Shard;
 import org.jboss.server.xnio3.XnioServer;
 import org.xnio.ChannelListener;
+import org.xnio.IoUtils;
 import org.xnio.Options;
 import org.xnio.channels.StreamChannel;
 
@@ -77,20 +82,38 @@ public class SyncServer extends XnioServer {
 				logger.infof("New connection accepted -> total number of connections : %s",
 						counter.incrementAndGet());
 				final StreamChannel streamChannel = (StreamChannel) channel;
-				String sessionId = generateSessionId();
 				try {
 					// Fix the size of the send buffer to 8KB
 					streamChannel.setOption(Options.SEND_BUFFER, 8 * 1024);
-					initSession(streamChannel, sessionId);
-					// Create a new client manager
-					Xnio3ClientManager manager = new Xnio3ClientManager(streamChannel);
-					manager.setSessionId(sessionId);
-					manager.init();
-					executor.execute(manager);
+					initSession(streamChannel);
 				} catch (IOException e) {
 					e.printStackTrace();
+					IoUtils.safeClose(streamChannel);
 				}
 			}
 		};
 	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.jboss.server.xnio3.XnioServer#sessionReady(org.xnio.channels.StreamChannel
+	 * , org.jboss.server.common.SessionId, org.jboss.server.common.Shard,
+	 * java.nio.ByteBuffer,
+	 * org.jboss.server.common.HashedWheelTimer.Timeout)
+	 */
+	@Override
+	protected void sessionReady(StreamChannel channel, SessionId sessionId, Shard shard,
+			ByteBuffer readBuffer, Timeout timeout) {
+		// Create a new client manager, it has its own timeout
+		Xnio3ClientManager manager = new Xnio3ClientManager(channel);
+		manager.setSession(openSession(sessionId, channel, shard));
+		// The read buffer is reused by the client manager
+		manager.setReadBuffer(readBuffer);
+		manager.setResponseMode(responseMode);
+		// Virtual threads must not block their carrier in a selector
+		manager.setParking(this.virtualThreads);
+		managerExecutor.execute(manager);
+	}
 }
@@ -27,8 +27,14 @@ package org.jboss.server.xnio3.sync;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
 
 import org.jboss.server.common.ClientManager;
+import org.jboss.server.common.Constants;
+import org.xnio.ChannelListener;
 import org.xnio.channels.StreamChannel;
 
 /**
@@ -40,6 +46,11 @@ import org.xnio.channels.StreamChannel;
  */
 public class Xnio3ClientManager extends ClientManager<StreamChannel> {
 
+	private boolean parking;
+	private Thread thread;
+	private Waiter readWaiter;
+	private Waiter writeWaiter;
+
 	/**
 	 * Create a new instance of {@code ClientManager}
 	 * 
@@ -49,36 +60,184 @@ public class Xnio3ClientManager extends ClientManager<StreamChannel> {
 		super(channel);
 	}
 
+	/**
+	 * {@code Waiter}
+	 * <p>
+	 * Waits for the channel to become readable or writable by parking the
+	 * thread of the client manager until the I/O thread of the channel
+	 * notifies the event, instead of blocking the thread on a temporary
+	 * selector like {@code awaitReadable()} and {@code awaitWritable()} do.
+	 * </p>
+	 */
+	private final class Waiter implements ChannelListener<Channel> {
+
+		private final boolean write;
+		private volatile boolean ready;
+
+		/**
+		 * Create a new instance of {@code Waiter}
+		 * 
+		 * @param write
+		 *            {@code true} to wait for the channel to be writable
+		 */
+		Waiter(boolean write) {
+			this.write = write;
+		}
+
+		/**
+		 * Park the thread until the event or until the channel is closed
+		 * 
+		 * @throws ClosedChannelException
+		 *             if the channel is closed meanwhile
+		 */
+		void await() throws ClosedChannelException {
+			this.ready = false;
+			if (this.write) {
+				channel.resumeWrites();
+			} else {
+				channel.resumeReads();
+			}
+			while (!this.ready) {
+				if (!channel.isOpen()) {
+					throw new ClosedChannelException();
+				}
+				LockSupport.park(this);
+			}
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.xnio.ChannelListener#handleEvent(java.nio.channels.Channel)
+		 */
+		@Override
+		public void handleEvent(Channel ch) {
+			if (this.write) {
+				channel.suspendWrites();
+			} else {
+				channel.suspendReads();
+			}
+			this.ready = true;
+			LockSupport.unpark(thread);
+		}
+	}
+
+	/**
+	 * Wait for the channel by parking the thread of the client manager, woken
+	 * up by the listeners of the channel, rather than blocking it in a
+	 * selector. Required when the client managers run on virtual threads,
+	 * which would otherwise each hold a selector and block their carrier.
+	 * 
+	 * @param parking
+	 */
+	public void setParking(boolean parking) {
+		this.parking = parking;
+	}
+
+	/**
+	 * Set the listeners waking up the thread of the client manager, which
+	 * must be the calling thread
+	 */
+	private void installWaiters() {
+		this.thread = Thread.currentThread();
+		this.readWaiter = new Waiter(false);
+		this.writeWaiter = new Waiter(true);
+		this.channel.getReadSetter().set(this.readWaiter);
+		this.channel.getWriteSetter().set(this.writeWaiter);
+		this.channel.getCloseSetter().set(new ChannelListener<Channel>() {
+
+			/*
+			 * (non-Javadoc)
+			 * 
+			 * @see
+			 * org.xnio.ChannelListener#handleEvent(java.nio.channels.Channel)
+			 */
+			@Override
+			public void handleEvent(Channel ch) {
+				// Wake up the thread to notice the channel is closed
+				LockSupport.unpark(thread);
+			}
+		});
+	}
+
+	/**
+	 * Block until the channel is readable
+	 * 
+	 * @throws IOException
+	 */
+	private void awaitReadable() throws IOException {
+		if (this.readWaiter != null) {
+			this.readWaiter.await();
+		} else {
+			this.channel.awaitReadable();
+		}
+	}
+
+	/**
+	 * Block until the channel is writable
+	 * 
+	 * @throws IOException
+	 */
+	private void awaitWritable() throws IOException {
+		if (this.writeWaiter != null) {
+			this.writeWaiter.await();
+		} else {
+			this.channel.awaitWritable();
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * @see java.lang.Runnable#run()
 	 */
 	@Override
 	public void run() {
+		if (this.parking) {
+			installWaiters();
+		}
 		if (!this.intialized) {
-			this.init();
+			try {
+				this.init();
+			} catch (IOException e) {
+				e.printStackTrace();
+				this.close();
+				return;
+			}
+		}
+		if (this.readBuffer.position() > 0) {
+			// Answer the requests sent along with the greeting
+			try {
+				process(channel);
+			} catch (Exception e) {
+				e.printStackTrace();
+				this.close();
+				return;
+			}
 		}
 		while (this.channel.isOpen()) {
 			try {
 				// Block until there is some data available to read
-				channel.awaitReadable();
+				readDeadline();
+				awaitReadable();
 				int nBytes = channel.read(readBuffer);
 				if (nBytes < 0) {
 					// means that the connection was closed remotely
-					channel.close();
-					return;
+					break;
 				}
 
 				if (nBytes > 0) {
-					readBuffer.flip();
-					byte bytes[] = new byte[nBytes];
-					readBuffer.get(bytes).clear();
-					writeResponse(channel);
+					onRead(nBytes);
+					// Answer the complete requests read so far
+					process(channel);
 				}
 			} catch (Exception e) {
-				e.printStackTrace();
+				// Nothing to report when the session was closed by the reaper
+				if (this.channel.isOpen()) {
+					e.printStackTrace();
+				}
 			}
 		}
+		this.close();
 	}
 
 	/*
@@ -86,14 +245,52 @@ public class Xnio3ClientManager extends ClientManager<StreamChannel> {
 	 * 
 	 * @see
 	 * org.jboss.server.common.ClientManager#write(java.nio.channels.Channel,
-	 * java.nio.ByteBuffer[], long)
+	 * java.nio.ByteBuffer[], int, int, long)
 	 */
 	@Override
-	public void write(final StreamChannel channel, final ByteBuffer[] buffers, long total)
-			throws Exception {
+	public void write(final StreamChannel channel, final ByteBuffer[] buffers, int offset,
+			int length, long total) throws Exception {
+
+		int end = offset + length;
+		long written = 0;
+		while (written < total) {
+			// Skip the buffers already written
+			while (!buffers[offset].hasRemaining()) {
+				offset++;
+			}
+			long x = channel.write(buffers, offset, end - offset);
+			if (x < 0) {
+				throw new IOException("The channel is closed");
+			}
+			if (x == 0) {
+				// Wait only when the socket send buffer is full
+				deadline(Constants.DEFAULT_TIMEOUT);
+				awaitWritable();
+			}
+			written += x;
+		}
+	}
 
-		for (ByteBuffer bb : buffers) {
-			write(channel, bb);
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * org.jboss.server.common.ClientManager#transfer(java.nio.channels.Channel,
+	 * java.nio.channels.FileChannel, long, long)
+	 */
+	@Override
+	protected void transfer(StreamChannel channel, FileChannel file, long position, long count)
+			throws IOException {
+		long end = position + count;
+		while (position < end) {
+			// Wait until the channel becomes writable again
+			deadline(Constants.DEFAULT_TIMEOUT);
+			awaitWritable();
+			long x = channel.transferFrom(file, position, end - position);
+			if (x == 0 && !channel.isOpen()) {
+				throw new IOException("The channel is closed");
+			}
+			position += x;
 		}
 	}
 
@@ -106,13 +303,10 @@ public class Xnio3ClientManager extends ClientManager<StreamChannel> {
 	 */
 	@Override
 	protected void write(StreamChannel channel, ByteBuffer buffer) throws IOException {
-		if (buffer.position() > 0) {
-			buffer.flip();
-		}
-
 		while (buffer.hasRemaining()) {
 			// Wait until the channel becomes writable again
-			channel.awaitWritable();
+			deadline(Constants.DEFAULT_TIMEOUT);
+			awaitWritable();
 			int x = channel.write(buffer);
 			if (x < 0) {
 				throw new IOException("The channel is closed");
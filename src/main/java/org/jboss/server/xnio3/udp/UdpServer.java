@@ -0,0 +1,248 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.xnio3.udp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+import org.jboss.logging.Logger;
+import org.jboss.server.common.AbstractServer;
+import org.jboss.server.common.BufferPool;
+import org.jboss.server.common.DatagramReply;
+import org.jboss.server.common.ThreadTopology;
+import org.xnio.ChannelListener;
+import org.xnio.OptionMap;
+import org.xnio.Options;
+import org.xnio.Xnio;
+import org.xnio.XnioWorker;
+import org.xnio.channels.MulticastMessageChannel;
+import org.xnio.channels.SocketAddressBuffer;
+
+/**
+ * {@code UdpServer}
+ * <p>
+ * UDP mode of the XNIO3 engine: the request datagrams received by the UDP
+ * server channel of the worker are answered with a header datagram followed
+ * by the datagrams of the responses, in order and without sequence number
+ * (see {@link DatagramReply}), without any connection nor handshake. A reply
+ * is complete before the next request is read, so the replies are never
+ * interleaved.
+ * </p>
+ * <p>
+ * The datagrams are sent one buffer at a time: the gathering
+ * {@code sendTo} of XNIO 3.0 copies the buffers into a new one.
+ * </p>
+ * 
+ * Created on Dec 10, 2012 at 4:02:36 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class UdpServer extends AbstractServer {
+
+	private static final Logger logger = Logger.getLogger(UdpServer.class);
+
+	/**
+	 * Create a new instance of {@code UdpServer}
+	 * 
+	 * @param port
+	 */
+	public UdpServer(int port) {
+		super(port);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run() {
+		logger.infov("Starting XNIO3 UDP Server on port {0} ...", this.port);
+		try {
+			final Xnio xnio = Xnio.getInstance("nio", getClass().getClassLoader());
+			int ioThreads = ThreadTopology.getIoThreads();
+			logger.infov("Thread topology: {0}", ThreadTopology.describe());
+			OptionMap optionMap = OptionMap.create(Options.WORKER_WRITE_THREADS, ioThreads,
+					Options.WORKER_READ_THREADS, ioThreads);
+			final XnioWorker worker = xnio.createWorker(null, optionMap);
+			MulticastMessageChannel channel = worker.createUdpServer(new InetSocketAddress(
+					this.port), OptionMap.create(Options.REUSE_ADDRESSES, Boolean.TRUE));
+			ReadListener readListener = new ReadListener();
+			channel.getReadSetter().set(readListener);
+			channel.getWriteSetter().set(new WriteListener(readListener));
+			channel.resumeReads();
+			logger.info("XNIO3 UDP Sever started ...");
+		} catch (Throwable th) {
+			th.printStackTrace();
+		}
+	}
+
+	/**
+	 * {@code ReadListener}
+	 * <p>
+	 * Answers the request datagrams received so far. The channel is
+	 * non-blocking: when its send buffer is full, the reads are suspended and
+	 * the rest of the reply is sent by the {@link WriteListener} once the
+	 * channel becomes writable, then the reads are resumed. The read thread
+	 * never waits for the channel.
+	 * </p>
+	 */
+	private class ReadListener implements ChannelListener<MulticastMessageChannel> {
+
+		private final SocketAddressBuffer addressBuffer = new SocketAddressBuffer();
+		private final DatagramReply reply = new DatagramReply();
+		private final ByteBuffer request = BufferPool.getReadBufferPool().acquire();
+		private SocketAddress client;
+		// Whether a batch of the reply is prepared
+		private boolean prepared;
+		// The datagram the channel did not accept yet
+		private ByteBuffer datagram;
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.xnio.ChannelListener#handleEvent(java.nio.channels.Channel)
+		 */
+		@Override
+		public synchronized void handleEvent(MulticastMessageChannel channel) {
+			try {
+				for (;;) {
+					this.request.clear();
+					this.addressBuffer.clear();
+					if (channel.receiveFrom(this.addressBuffer, this.request) <= 0) {
+						return;
+					}
+					this.request.flip();
+					this.client = this.addressBuffer.getSourceAddress();
+					this.reply.receive(this.request);
+					this.prepared = false;
+					if (!send(channel)) {
+						// Finish the reply before taking the next request
+						channel.suspendReads();
+						channel.resumeWrites();
+						return;
+					}
+				}
+			} catch (IOException e) {
+				logger.errorv("Receive failed: {0}", e);
+			}
+		}
+
+		/**
+		 * Send the rest of the reply once the channel is writable, then take
+		 * the next requests
+		 * 
+		 * @param channel
+		 */
+		synchronized void onWritable(MulticastMessageChannel channel) {
+			if (send(channel)) {
+				channel.suspendWrites();
+				channel.resumeReads();
+			}
+		}
+
+		/**
+		 * Send the datagrams of the reply to the request datagram, as long as
+		 * the channel accepts them
+		 * 
+		 * @param channel
+		 * @return {@code true} if the reply is complete or failed,
+		 *         {@code false} if the channel is not writable
+		 */
+		private boolean send(MulticastMessageChannel channel) {
+			try {
+				for (;;) {
+					if (this.datagram == null) {
+						if (!this.prepared) {
+							if (!this.reply.prepare(responseMode)) {
+								return true;
+							}
+							this.prepared = true;
+						}
+						this.datagram = this.reply.next();
+						if (this.datagram == null) {
+							// The batch is sent, prepare the next one
+							this.prepared = false;
+							continue;
+						}
+					}
+					if (!channel.sendTo(this.client, this.datagram)) {
+						return false;
+					}
+					this.datagram = null;
+				}
+			} catch (IOException e) {
+				// Only the reply to that request is lost
+				logger.warnv("Reply to {0} failed: {1}", this.client, e);
+				this.datagram = null;
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * {@code WriteListener}
+	 * <p>
+	 * Hands the write events over to the read listener, which owns the reply
+	 * being sent
+	 * </p>
+	 */
+	private static class WriteListener implements ChannelListener<MulticastMessageChannel> {
+
+		private final ReadListener readListener;
+
+		/**
+		 * Create a new instance of {@code WriteListener}
+		 * 
+		 * @param readListener
+		 */
+		WriteListener(ReadListener readListener) {
+			this.readListener = readListener;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see org.xnio.ChannelListener#handleEvent(java.nio.channels.Channel)
+		 */
+		@Override
+		public void handleEvent(MulticastMessageChannel channel) {
+			this.readListener.onWritable(channel);
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.jboss.server.common.AbstractServer#getEngine()
+	 */
+	@Override
+	public String getEngine() {
+		return "xnio3-udp";
+	}
+}
@@ -0,0 +1,196 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+/**
+ * {@code BufferPoolTest}
+ * <p>
+ * Checks the accounting of the buffer pool: the buffers released are reused,
+ * the slabs are only carved when the free buffers run out, the buffers
+ * cached by a thread which terminated are given back to the pool, and the
+ * buffers dropped without being released are counted as leaks.
+ * </p>
+ * 
+ * Created on Nov 22, 2012 at 3:12:48 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class BufferPoolTest extends TestCase {
+
+	private static final int BUFFER_SIZE = 512;
+	private static final int BUFFERS_PER_SLAB = 8;
+
+	/**
+	 * Create a new instance of {@code BufferPoolTest}
+	 * 
+	 * @param name
+	 */
+	public BufferPoolTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * @return a new pool whose slabs hold {@value #BUFFERS_PER_SLAB} buffers
+	 */
+	private static BufferPool newPool() {
+		return new BufferPool(BUFFER_SIZE, BUFFER_SIZE * BUFFERS_PER_SLAB);
+	}
+
+	/**
+	 * Acquire a whole slab of buffers
+	 * 
+	 * @param pool
+	 * @return the buffers
+	 */
+	private static ByteBuffer[] acquireSlab(BufferPool pool) {
+		ByteBuffer buffers[] = new ByteBuffer[BUFFERS_PER_SLAB];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = pool.acquire();
+		}
+		return buffers;
+	}
+
+	/**
+	 * @param pool
+	 * @param buffers
+	 */
+	private static void releaseAll(BufferPool pool, ByteBuffer buffers[]) {
+		for (ByteBuffer buffer : buffers) {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Run a few garbage collections so that the buffers dropped are detected
+	 */
+	private static void collect() throws InterruptedException {
+		for (int i = 0; i < 5; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+	}
+
+	/**
+	 * 
+	 */
+	public void testAcquireRelease() {
+		BufferPool pool = newPool();
+		ByteBuffer buffer = pool.acquire();
+		assertTrue(buffer.isDirect());
+		assertEquals(BUFFER_SIZE, buffer.capacity());
+		assertEquals(BUFFER_SIZE, buffer.remaining());
+		buffer.put((byte) 1);
+		pool.release(buffer);
+
+		// The buffer is taken back from the thread cache, cleared
+		ByteBuffer again = pool.acquire();
+		assertSame(buffer, again);
+		assertEquals(0, again.position());
+		pool.release(again);
+		pool.release(null);
+		assertEquals(1, pool.getSlabCount());
+
+		try {
+			pool.release(ByteBuffer.allocate(BUFFER_SIZE));
+			fail("A heap buffer is not a buffer of the pool");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * 
+	 */
+	public void testSlabsAreCarvedOnDemand() {
+		BufferPool pool = newPool();
+		ByteBuffer first[] = acquireSlab(pool);
+		assertEquals(1, pool.getSlabCount());
+		ByteBuffer extra = pool.acquire();
+		assertEquals(2, pool.getSlabCount());
+		releaseAll(pool, first);
+		pool.release(extra);
+
+		// The released buffers are enough for another slab worth of buffers
+		releaseAll(pool, acquireSlab(pool));
+		assertEquals(2, pool.getSlabCount());
+		assertEquals(0, pool.getLeakCount());
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testTerminatedThreadCacheIsReclaimed() throws Exception {
+		final BufferPool pool = newPool();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				// The buffers end up in the cache of the thread
+				releaseAll(pool, acquireSlab(pool));
+			}
+		});
+		thread.start();
+		thread.join();
+		assertEquals(1, pool.getSlabCount());
+		collect();
+
+		// The cache of the terminated thread refills the free list
+		ByteBuffer buffers[] = acquireSlab(pool);
+		assertEquals(1, pool.getSlabCount());
+		assertEquals(0, pool.getLeakCount());
+		releaseAll(pool, buffers);
+	}
+
+	/**
+	 * Acquire a buffer and drop it
+	 * 
+	 * @param pool
+	 */
+	private static void leak(BufferPool pool) {
+		pool.acquire().put((byte) 1);
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testLeakIsCountedAndReclaimed() throws Exception {
+		BufferPool pool = newPool();
+		leak(pool);
+		for (int i = 0; i < 100 && pool.getLeakCount() == 0; i++) {
+			collect();
+			// The leaks are reclaimed when a buffer is acquired
+			pool.release(pool.acquire());
+		}
+		assertEquals(1, pool.getLeakCount());
+
+		// The area of the leaked buffer is back in the pool
+		releaseAll(pool, acquireSlab(pool));
+		assertEquals(1, pool.getSlabCount());
+	}
+}
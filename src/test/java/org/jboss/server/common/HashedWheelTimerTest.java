@@ -0,0 +1,263 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.jboss.server.common.HashedWheelTimer.Timeout;
+
+/**
+ * {@code HashedWheelTimerTest}
+ * <p>
+ * Checks arming, re-arming, disarming, cancelling and expiring the timeouts.
+ * The wheel is advanced by the test rather than by a timer thread, to times
+ * far enough from the deadlines for the test not to depend on its own
+ * speed.
+ * </p>
+ * 
+ * Created on Nov 26, 2012 at 10:14:53 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class HashedWheelTimerTest extends TestCase {
+
+	private final HashedWheelTimer timer = new HashedWheelTimer(10, TimeUnit.MILLISECONDS);
+	private final long created = System.nanoTime();
+	private long now;
+	private final AtomicInteger runs = new AtomicInteger();
+	private final Timeout timeout = this.timer.newTimeout(new Runnable() {
+		@Override
+		public void run() {
+			runs.incrementAndGet();
+		}
+	});
+
+	/**
+	 * Create a new instance of {@code HashedWheelTimerTest}
+	 * 
+	 * @param name
+	 */
+	public HashedWheelTimerTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Process the ticks up to the time
+	 * 
+	 * @param seconds
+	 *            the time, relative to the creation of the timer
+	 */
+	private void advance(long seconds) {
+		this.timer.advance(TimeUnit.SECONDS.toNanos(seconds));
+	}
+
+	/**
+	 * Process the ticks up to the time one by one
+	 * 
+	 * @param nanos
+	 *            the time, relative to the creation of the timer
+	 */
+	private void step(long nanos) {
+		long tick = TimeUnit.MILLISECONDS.toNanos(10);
+		while (this.now < nanos) {
+			this.now = Math.min(this.now + tick, nanos);
+			this.timer.advance(this.now);
+		}
+	}
+
+	/**
+	 * @return the time elapsed since the creation of the timer
+	 */
+	private long elapsed() {
+		return System.nanoTime() - this.created;
+	}
+
+	/**
+	 * 
+	 */
+	public void testExpire() {
+		assertFalse(this.timeout.isArmed());
+		this.timeout.arm(10, TimeUnit.SECONDS);
+		assertTrue(this.timeout.isArmed());
+		advance(5);
+		assertEquals(0, this.runs.get());
+		assertTrue(this.timeout.isArmed());
+
+		advance(30);
+		assertEquals(1, this.runs.get());
+		assertFalse(this.timeout.isArmed());
+		advance(60);
+		assertEquals(1, this.runs.get());
+	}
+
+	/**
+	 * A deadline beyond a turn of the wheel goes round the wheel
+	 */
+	public void testExpireAfterSeveralTurns() {
+		long turn = HashedWheelTimer.WHEEL_SIZE * 10 / 1000;
+		this.timeout.arm(3 * turn + 10, TimeUnit.SECONDS);
+		advance(3 * turn);
+		assertEquals(0, this.runs.get());
+		advance(3 * turn + 30);
+		assertEquals(1, this.runs.get());
+	}
+
+	/**
+	 * 
+	 */
+	public void testRearmMovesTheDeadline() {
+		this.timeout.arm(10, TimeUnit.SECONDS);
+		this.timeout.arm(60, TimeUnit.SECONDS);
+		advance(30);
+		assertEquals(0, this.runs.get());
+		assertTrue(this.timeout.isArmed());
+
+		// An earlier deadline is honored too
+		this.timeout.arm(10, TimeUnit.SECONDS);
+		advance(50);
+		assertEquals(1, this.runs.get());
+	}
+
+	/**
+	 * A shortened deadline expires in time rather than when the wheel reaches
+	 * the bucket of the previous one, a third of a turn later. The wheel is
+	 * advanced tick by tick, as by the timer thread.
+	 */
+	public void testShortenedDeadline() {
+		long before = elapsed();
+		this.timeout.arm(300, TimeUnit.SECONDS);
+		this.timeout.arm(1, TimeUnit.SECONDS);
+		long after = elapsed();
+		step(before + TimeUnit.MILLISECONDS.toNanos(900));
+		assertEquals(0, this.runs.get());
+		step(after + TimeUnit.MILLISECONDS.toNanos(1100));
+		assertEquals(1, this.runs.get());
+		assertFalse(this.timeout.isArmed());
+	}
+
+	/**
+	 * Timeouts moved out of a bucket leave the others in place
+	 */
+	public void testShortenedDeadlinesInTheSameBucket() {
+		Timeout timeouts[] = new Timeout[10];
+		for (int i = 0; i < timeouts.length; i++) {
+			timeouts[i] = this.timer.newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					runs.incrementAndGet();
+				}
+			});
+			timeouts[i].arm(300, TimeUnit.SECONDS);
+		}
+		for (int i = 0; i < timeouts.length; i += 3) {
+			timeouts[i].arm(1, TimeUnit.SECONDS);
+		}
+		step(elapsed() + TimeUnit.MILLISECONDS.toNanos(1100));
+		assertEquals(4, this.runs.get());
+		advance(400);
+		assertEquals(timeouts.length, this.runs.get());
+	}
+
+	/**
+	 * 
+	 */
+	public void testDisarm() {
+		this.timeout.arm(10, TimeUnit.SECONDS);
+		this.timeout.disarm();
+		assertFalse(this.timeout.isArmed());
+		advance(30);
+		assertEquals(0, this.runs.get());
+
+		// Dropped from the wheel, the timeout can be armed again
+		this.timeout.arm(10, TimeUnit.SECONDS);
+		advance(60);
+		assertEquals(1, this.runs.get());
+	}
+
+	/**
+	 * 
+	 */
+	public void testCancel() {
+		assertFalse(this.timeout.cancel());
+		this.timeout.arm(10, TimeUnit.SECONDS);
+		assertTrue(this.timeout.cancel());
+		assertFalse(this.timeout.cancel());
+		advance(30);
+		assertEquals(0, this.runs.get());
+
+		this.timeout.arm(10, TimeUnit.SECONDS);
+		advance(60);
+		assertEquals(1, this.runs.get());
+		// Too late, the task ran
+		assertFalse(this.timeout.cancel());
+	}
+
+	/**
+	 * A timeout armed again by its own task runs again
+	 */
+	public void testArmFromTheTask() {
+		final Timeout rearming[] = new Timeout[1];
+		rearming[0] = this.timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				if (runs.incrementAndGet() == 1) {
+					rearming[0].arm(100, TimeUnit.SECONDS);
+				}
+			}
+		});
+		rearming[0].arm(10, TimeUnit.SECONDS);
+		advance(30);
+		assertEquals(1, this.runs.get());
+		assertTrue(rearming[0].isArmed());
+		advance(200);
+		assertEquals(2, this.runs.get());
+		assertFalse(rearming[0].isArmed());
+	}
+
+	/**
+	 * Many timeouts in the same buckets
+	 */
+	public void testManyTimeouts() {
+		Timeout timeouts[] = new Timeout[1000];
+		for (int i = 0; i < timeouts.length; i++) {
+			timeouts[i] = this.timer.newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					runs.incrementAndGet();
+				}
+			});
+			timeouts[i].arm(10 + i % 20, TimeUnit.SECONDS);
+		}
+		for (int i = 0; i < timeouts.length; i += 2) {
+			timeouts[i].disarm();
+		}
+		advance(60);
+		assertEquals(timeouts.length / 2, this.runs.get());
+	}
+}
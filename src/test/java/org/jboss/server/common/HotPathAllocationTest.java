@@ -0,0 +1,186 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * {@code HotPathAllocationTest}
+ * <p>
+ * Checks that answering requests allocates nothing once the connection is
+ * warm: the request bytes are put in the read buffer of a client manager,
+ * parsed, and the responses are written to a channel that drains the buffers
+ * without copying them. This is the path shared by the four engines between
+ * the read and the write system calls.
+ * </p>
+ * 
+ * Created on Nov 15, 2012 at 10:41:27 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class HotPathAllocationTest extends TestCase {
+
+	private static final int WARMUP = 20000;
+	private static final int ROUNDS = 10000;
+
+	/**
+	 * {@code NullChannel}
+	 */
+	private static class NullChannel implements Channel {
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			// NOPE
+		}
+	}
+
+	/**
+	 * {@code DrainingClientManager}
+	 * <p>
+	 * Client manager whose writes only move the buffer positions
+	 * </p>
+	 */
+	private static class DrainingClientManager extends ClientManager<NullChannel> {
+
+		private long written;
+
+		DrainingClientManager() {
+			super(new NullChannel());
+		}
+
+		void request(byte bytes[]) throws Exception {
+			this.readBuffer.put(bytes);
+			process(this.channel);
+		}
+
+		@Override
+		public void run() {
+			// NOPE
+		}
+
+		@Override
+		protected void transfer(NullChannel channel, FileChannel file, long position, long count) {
+			this.written += count;
+		}
+
+		@Override
+		protected void write(NullChannel channel, ByteBuffer buffer) {
+			this.written += buffer.remaining();
+			buffer.position(buffer.limit());
+		}
+
+		@Override
+		public void write(NullChannel channel, ByteBuffer[] buffers, int offset, int length,
+				long total) {
+			for (int i = offset; i < offset + length; i++) {
+				write(channel, buffers[i]);
+			}
+		}
+	}
+
+	/**
+	 * Create a new instance of {@code HotPathAllocationTest}
+	 * 
+	 * @param name
+	 */
+	public HotPathAllocationTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * The requests of the test: plain, pipelined, split across two reads,
+	 * with encodings and ranges, over several payloads
+	 */
+	private static byte[][] requests() {
+		String requests[] = { "GET /file.txt\r\n", "file64k.txt\r\nGET /file32k.txt?x=1\r\n",
+				"GET /file128k.txt gzip,deflate\r\n", "file.txt range=1000:2000\r\n",
+				"GET /file12", "8k.txt range=100000:\r\nunknown.txt\r\n" };
+		byte bytes[][] = new byte[requests.length][];
+		for (int i = 0; i < requests.length; i++) {
+			bytes[i] = requests[i].getBytes(StandardCharsets.US_ASCII);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Run all the requests once
+	 * 
+	 * @param manager
+	 * @param requests
+	 * @throws Exception
+	 */
+	private static void round(DrainingClientManager manager, byte requests[][]) throws Exception {
+		for (byte request[] : requests) {
+			manager.request(request);
+		}
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testSteadyStateRequestsDoNotAllocate() throws Exception {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+		if (!bean.isThreadAllocatedMemorySupported()) {
+			return;
+		}
+		bean.setThreadAllocatedMemoryEnabled(true);
+
+		DrainingClientManager manager = new DrainingClientManager();
+		manager.init();
+		byte requests[][] = requests();
+		for (int i = 0; i < WARMUP; i++) {
+			round(manager, requests);
+		}
+		assertTrue(manager.written > 0);
+
+		long id = Thread.currentThread().getId();
+		long before = bean.getThreadAllocatedBytes(id);
+		for (int i = 0; i < ROUNDS; i++) {
+			round(manager, requests);
+		}
+		long allocated = bean.getThreadAllocatedBytes(id) - before;
+		manager.close();
+
+		assertTrue("Allocated " + allocated + " bytes for " + ROUNDS + " rounds of requests",
+				allocated < ROUNDS);
+	}
+}
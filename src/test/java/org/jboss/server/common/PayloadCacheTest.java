@@ -0,0 +1,191 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+/**
+ * {@code PayloadCacheTest}
+ * <p>
+ * Checks the warming of the cache: the files which fit in a buffer are read
+ * in memory, the larger ones get a streamed payload whatever the budget.
+ * The large files are sparse so that they take no room on disk. Checks also
+ * that the file channels of the payloads dropped by the cache are closed.
+ * </p>
+ * 
+ * Created on Nov 27, 2012 at 4:41:09 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class PayloadCacheTest extends TestCase {
+
+	private static final long GB = 1024L * 1024 * 1024;
+	private File file;
+
+	/**
+	 * Create a new instance of {@code PayloadCacheTest}
+	 * 
+	 * @param name
+	 */
+	public PayloadCacheTest(String name) {
+		super(name);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		this.file = File.createTempFile("payload", ".txt");
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		this.file.delete();
+	}
+
+	/**
+	 * Set the length of the test file, the bytes not written read as zeros
+	 * 
+	 * @param length
+	 * @throws IOException
+	 */
+	private void resize(long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * 
+	 * @throws Exception
+	 */
+	public void testPreload() throws Exception {
+		resize(1000);
+		PayloadCache cache = new PayloadCache(1024 * 1024);
+		PayloadCache.Entry entry = new PayloadCache.Entry(this.file);
+		assertTrue(cache.preload(entry));
+		Payload payload = cache.get(entry);
+		assertFalse(payload.isStreamed());
+		assertEquals(1000, payload.getFileLength());
+		assertEquals(1002, payload.getLength());
+		payload.getFile().close();
+	}
+
+	/**
+	 * A file in the budget but too large for a buffer is streamed, whether
+	 * its length overflows an {@code int} to a negative or to a positive
+	 * value
+	 * 
+	 * @throws Exception
+	 */
+	public void testPreloadStreamsTheFilesTooLargeForABuffer() throws Exception {
+		for (long length : new long[] { 3 * GB, 5 * GB }) {
+			resize(length);
+			PayloadCache cache = new PayloadCache(8 * GB);
+			PayloadCache.Entry entry = new PayloadCache.Entry(this.file);
+			assertTrue(cache.preload(entry));
+			Payload payload = cache.get(entry);
+			assertTrue(payload.isStreamed());
+			assertEquals(length, payload.getFileLength());
+			assertEquals(length + 2, payload.getLength());
+			assertEquals(0, cache.getSize());
+			payload.getFile().close();
+		}
+	}
+
+	/**
+	 * The file channel of a payload dropped by the cache is closed right away
+	 * when nobody sends the file
+	 * 
+	 * @throws Exception
+	 */
+	public void testRetiredPayloadClosesItsFile() throws Exception {
+		resize(1000);
+		PayloadCache cache = new PayloadCache(1024 * 1024);
+		PayloadCache.Entry entry = new PayloadCache.Entry(this.file);
+		Payload payload = cache.get(entry);
+		assertTrue(payload.getFile().isOpen());
+		cache.reload(entry);
+		assertFalse(payload.getFile().isOpen());
+
+		payload = cache.get(entry);
+		assertTrue(payload.getFile().isOpen());
+		cache.invalidate(entry, false);
+		assertFalse(payload.getFile().isOpen());
+		assertFalse(payload.acquireFile());
+	}
+
+	/**
+	 * The file channel of a payload dropped by the cache while it is being
+	 * sent is closed by the last connection sending it
+	 * 
+	 * @throws Exception
+	 */
+	public void testRetiredPayloadClosedByItsLastUser() throws Exception {
+		resize(1000);
+		PayloadCache cache = new PayloadCache(1024 * 1024);
+		PayloadCache.Entry entry = new PayloadCache.Entry(this.file);
+		Payload payload = cache.get(entry);
+		assertTrue(payload.acquireFile());
+		assertTrue(payload.acquireFile());
+		cache.invalidate(entry, false);
+		assertTrue(payload.getFile().isOpen());
+		payload.releaseFile();
+		assertTrue(payload.getFile().isOpen());
+		payload.releaseFile();
+		assertFalse(payload.getFile().isOpen());
+	}
+
+	/**
+	 * A file too large for a buffer is never read truncated
+	 * 
+	 * @throws Exception
+	 */
+	public void testReadRejectsTheFilesTooLargeForABuffer() throws Exception {
+		resize(5 * GB);
+		try {
+			PayloadCache.read(this.file);
+			fail("Read a file too large for a buffer");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+/**
+ * {@code PipelineTest}
+ * <p>
+ * Checks the framing of the requests by the {@link Pipeline}: the requests
+ * ended by CRLF or by a bare LF, pipelined in one read or split across
+ * several reads at any byte, batched up to {@link Pipeline#MAX_BATCH}
+ * responses, and the overlong requests.
+ * </p>
+ * 
+ * Created on Nov 23, 2012 at 3:41:19 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class PipelineTest extends TestCase {
+
+	private static final long FILE_RESPONSE = 32639 + 2;
+	private static final long FILE32K_RESPONSE = 31871 + 2;
+	private static final long FILE64K_RESPONSE = 64279 + 2;
+
+	private final Pipeline pipeline = new Pipeline();
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(BufferPool.READ_BUFFER_SIZE);
+	private ResponseMode mode = ResponseMode.BUFFER;
+	private int batches;
+	private long length;
+
+	/**
+	 * Create a new instance of {@code PipelineTest}
+	 * 
+	 * @param name
+	 */
+	public PipelineTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Put the bytes in the read buffer, as a read would, and answer the
+	 * complete requests
+	 * 
+	 * @param bytes
+	 * @return the number of requests answered
+	 * @throws Exception
+	 */
+	private int read(String bytes) throws Exception {
+		this.readBuffer.put(bytes.getBytes(StandardCharsets.US_ASCII));
+		this.readBuffer.flip();
+		int answered = 0;
+		int n;
+		while ((n = this.pipeline.parse(this.readBuffer, this.mode)) > 0) {
+			answered += n;
+			this.batches++;
+			this.length += this.pipeline.getLength();
+			Response response = this.pipeline.getFileResponse();
+			if (response != null) {
+				this.length += response.getLength();
+			}
+		}
+		this.readBuffer.compact();
+		return answered;
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testRequestsInOneRead() throws Exception {
+		assertEquals(3, read("GET /file.txt\r\nfile32k.txt\nGET /file64k.txt?x=1\r\n"));
+		assertEquals(1, this.batches);
+		assertEquals(FILE_RESPONSE + FILE32K_RESPONSE + FILE64K_RESPONSE, this.length);
+		assertEquals(0, this.readBuffer.position());
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testRequestSplitAtEveryByte() throws Exception {
+		String request = "GET /file32k.txt\r\n";
+		for (int i = 0; i < request.length() - 1; i++) {
+			assertEquals(0, read(request.substring(i, i + 1)));
+		}
+		assertEquals(1, read(request.substring(request.length() - 1)));
+		assertEquals(FILE32K_RESPONSE, this.length);
+		assertEquals(0, this.readBuffer.position());
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testRequestsSplitAcrossReads() throws Exception {
+		// The end of line is split between the CR and the LF
+		assertEquals(1, read("file.txt\r\nfile32"));
+		assertEquals(0, read("k.txt\r"));
+		assertEquals(2, read("\nfile64k.txt\n"));
+		assertEquals(FILE_RESPONSE + FILE32K_RESPONSE + FILE64K_RESPONSE, this.length);
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testEmptyLinesAreSkipped() throws Exception {
+		assertEquals(1, read("\r\n\n\r\nfile.txt\r\n\r\n"));
+		assertEquals(FILE_RESPONSE, this.length);
+		assertEquals(0, this.readBuffer.position());
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testBatchesAreBounded() throws Exception {
+		StringBuilder requests = new StringBuilder();
+		for (int i = 0; i < Pipeline.MAX_BATCH + 4; i++) {
+			requests.append("file.txt\r\n");
+		}
+		assertEquals(Pipeline.MAX_BATCH + 4, read(requests.toString()));
+		assertEquals(2, this.batches);
+		assertEquals((Pipeline.MAX_BATCH + 4) * FILE_RESPONSE, this.length);
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testFileResponseEndsTheBatch() throws Exception {
+		this.mode = ResponseMode.SENDFILE;
+		assertEquals(2, read("file.txt\r\nfile32k.txt\r\n"));
+		assertEquals(2, this.batches);
+		assertEquals(FILE_RESPONSE + FILE32K_RESPONSE, this.length);
+	}
+
+	/**
+	 * A request longer than the read buffer is answered from its first
+	 * bytes, the rest of it is skipped
+	 * 
+	 * @throws Exception
+	 */
+	public void testOverlongRequest() throws Exception {
+		StringBuilder filler = new StringBuilder();
+		while (filler.length() < 2 * BufferPool.READ_BUFFER_SIZE) {
+			filler.append(" padding");
+		}
+		String request = "GET /file64k.txt" + filler;
+		int split = BufferPool.READ_BUFFER_SIZE;
+		assertEquals(1, read(request.substring(0, split)));
+		assertEquals(0, read(request.substring(split, 2 * split)));
+		assertEquals(1, read(request.substring(2 * split) + "\r\nfile.txt\r\n"));
+		assertEquals(FILE64K_RESPONSE + FILE_RESPONSE, this.length);
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+
+/**
+ * {@code RangeRequestTest}
+ * <p>
+ * Checks the parsing of the <tt>range=&lt;offset&gt;:[length]</tt> option
+ * of the requests and the responses prepared for the ranges: the header and
+ * the slices of the payload. Malformed and overflowing ranges are ignored,
+ * the whole payload is then sent.
+ * </p>
+ * 
+ * Created on Nov 23, 2012 at 2:05:37 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class RangeRequestTest extends TestCase {
+
+	private static final long FILE_LENGTH = 32639;
+
+	/**
+	 * Create a new instance of {@code RangeRequestTest}
+	 * 
+	 * @param name
+	 */
+	public RangeRequestTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Parse the request line
+	 * 
+	 * @param line
+	 * @return the parsed request
+	 * @throws Exception
+	 */
+	private static Request parse(String line) throws Exception {
+		ByteBuffer buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+		Request request = new Request();
+		FileLoader.getCatalog().resolve(buffer, 0, buffer.limit(), request);
+		return request;
+	}
+
+	/**
+	 * @param buffer
+	 * @return the remaining bytes of the buffer, as a string
+	 */
+	private static String string(ByteBuffer buffer) {
+		byte bytes[] = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return new String(bytes, StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testRange() throws Exception {
+		Request request = parse("GET /file.txt range=1000:2000");
+		assertTrue(request.isRanged());
+		assertEquals(1000, request.getOffset());
+		assertEquals(2000, request.getLength());
+
+		Response response = new Response();
+		response.prepare(request);
+		assertEquals("Content-Range: 1000-2999/32639\r\nContent-Length: 2000\r\n\r\n",
+				string(response.getHeader()));
+		assertEquals(response.getHeader().remaining() + 2000 + 2, response.getLength());
+
+		// The views are narrowed to the range, followed by the trailer
+		ByteBuffer buffers[] = response.getBuffers();
+		StringBuilder body = new StringBuilder();
+		for (int i = 1; i < buffers.length; i++) {
+			body.append(string(buffers[i]));
+		}
+		byte file[] = Files.readAllBytes(new File("data", "file.txt").toPath());
+		assertEquals(new String(file, 1000, 2000, StandardCharsets.US_ASCII) + "\r\n",
+				body.toString());
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testOpenRange() throws Exception {
+		Request request = parse("file.txt range=100:");
+		assertTrue(request.isRanged());
+		assertEquals(100, request.getOffset());
+		assertEquals(-1, request.getLength());
+
+		Response response = new Response();
+		response.prepare(request);
+		assertEquals(100, response.getFilePosition());
+		assertEquals(FILE_LENGTH - 100, response.getFileCount());
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testRangeBeyondTheEnd() throws Exception {
+		Response response = new Response();
+		response.prepare(parse("file.txt range=40000:10"));
+		assertEquals("Content-Range: */32639\r\nContent-Length: 0\r\n\r\n",
+				string(response.getHeader()));
+		assertEquals(0, response.getFileCount());
+
+		response.prepare(parse("file.txt range=" + Long.MAX_VALUE + ":" + Long.MAX_VALUE));
+		assertEquals(0, response.getFileCount());
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testMalformedRangesAreIgnored() throws Exception {
+		String ranges[] = { "range=", "range=:10", "range=10", "range=1a:2", "range=1:2:3",
+				"range=-1:2" };
+		for (String range : ranges) {
+			Request request = parse("GET /file.txt " + range);
+			assertFalse(range, request.isRanged());
+			assertEquals(range, FILE_LENGTH, request.getPayload().getFileLength());
+		}
+	}
+
+	/**
+	 * The values which do not fit in a {@code long} are ignored, including
+	 * those whose overflow wraps around to a positive value
+	 * 
+	 * @throws Exception
+	 */
+	public void testOverflowingRangesAreIgnored() throws Exception {
+		String ranges[] = { "range=9223372036854775808:1", "range=99999999999999999999:1",
+				"range=18446744073709551620:1", "range=0:9223372036854775808",
+				"range=0:18446744073709551620" };
+		for (String range : ranges) {
+			assertFalse(range, parse("file.txt " + range).isRanged());
+		}
+		Request request = parse("file.txt range=9223372036854775807:1");
+		assertTrue(request.isRanged());
+		assertEquals(Long.MAX_VALUE, request.getOffset());
+	}
+}
@@ -0,0 +1,232 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.common;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+/**
+ * {@code SessionRegistryTest}
+ * <p>
+ * Checks the registry against a map: sessions registered and removed in any
+ * order, including IDs whose probe sequences collide and wrap around the end
+ * of a table, where removing a session shifts the following entries back.
+ * </p>
+ * 
+ * Created on Nov 23, 2012 at 4:58:02 PM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class SessionRegistryTest extends TestCase {
+
+	private static final long GOLDEN = 0x9e3779b97f4a7c15L;
+	/**
+	 * The initial capacity of the tables of the stripes
+	 */
+	private static final int CAPACITY = 16;
+
+	private final SessionRegistry registry = new SessionRegistry(0);
+
+	/**
+	 * Create a new instance of {@code SessionRegistryTest}
+	 * 
+	 * @param name
+	 */
+	public SessionRegistryTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * Find a value of {@code msb ^ lsb} whose IDs all fall in the same
+	 * stripe, at the given home slot of a table of {@value #CAPACITY} entries
+	 * 
+	 * @param stripe
+	 * @param home
+	 * @return the value
+	 */
+	private static long key(int stripe, int home) {
+		for (long x = 1;; x++) {
+			long h = x * GOLDEN;
+			if (((int) h & (SessionRegistry.STRIPES - 1)) == stripe
+					&& ((int) (h >>> 32) & (CAPACITY - 1)) == home) {
+				return x;
+			}
+		}
+	}
+
+	/**
+	 * @param key
+	 *            the value of {@code msb ^ lsb}
+	 * @param n
+	 *            the number of IDs
+	 * @return IDs colliding on the same stripe and home slot
+	 */
+	private static List<SessionId> colliding(long key, int n) {
+		List<SessionId> ids = new ArrayList<>();
+		for (int i = 1; i <= n; i++) {
+			ids.add(new SessionId(i, i ^ key));
+		}
+		return ids;
+	}
+
+	/**
+	 * Check that the registry holds exactly the sessions of the model
+	 * 
+	 * @param model
+	 * @param ids
+	 *            all the IDs used, registered or not
+	 */
+	private void check(Map<SessionId, Session> model, List<SessionId> ids) {
+		assertEquals(model.size(), this.registry.size());
+		for (SessionId id : ids) {
+			assertSame(id.toString(), model.get(id), this.registry.get(id));
+		}
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testRegisterAndRemove() throws Exception {
+		Random random = new Random(13);
+		List<SessionId> ids = new ArrayList<>();
+		Map<SessionId, Session> model = new HashMap<>();
+		for (int i = 0; i < 5000; i++) {
+			SessionId id = new SessionId(random.nextLong(), random.nextLong());
+			ids.add(id);
+			model.put(id, this.registry.register(id, "test", null, null));
+		}
+		check(model, ids);
+		for (int i = 0; i < ids.size(); i += 2) {
+			this.registry.remove(model.remove(ids.get(i)));
+		}
+		check(model, ids);
+	}
+
+	/**
+	 * Remove each session of a probe sequence wrapping around the end of the
+	 * table
+	 * 
+	 * @throws Exception
+	 */
+	public void testRemoveFromWrappingProbeSequence() throws Exception {
+		List<SessionId> ids = new ArrayList<>();
+		ids.addAll(colliding(key(5, CAPACITY - 2), 2));
+		ids.addAll(colliding(key(5, CAPACITY - 1), 2));
+		ids.addAll(colliding(key(5, 0), 2));
+		ids.addAll(colliding(key(5, 1), 1));
+		// Fewer than half of the capacity, the table is not resized
+		assertTrue(2 * ids.size() <= CAPACITY);
+		for (int removed = 0; removed < ids.size(); removed++) {
+			Map<SessionId, Session> model = new HashMap<>();
+			// Interleave the homes so that the entries are displaced
+			for (int i = ids.size() - 1; i >= 0; i--) {
+				SessionId id = ids.get(i);
+				model.put(id, this.registry.register(id, "test", null, null));
+			}
+			check(model, ids);
+			this.registry.remove(model.remove(ids.get(removed)));
+			check(model, ids);
+			for (Session session : new ArrayList<>(model.values())) {
+				this.registry.remove(session);
+			}
+			assertEquals(0, this.registry.size());
+		}
+	}
+
+	/**
+	 * Random registrations and removals of colliding IDs, checked against a
+	 * map after each operation
+	 * 
+	 * @throws Exception
+	 */
+	public void testRandomOperationsOnCollidingIds() throws Exception {
+		List<SessionId> ids = new ArrayList<>();
+		for (int home = CAPACITY - 3; home < CAPACITY + 3; home++) {
+			ids.addAll(colliding(key(9, home % CAPACITY), 4));
+		}
+		Random random = new Random(42);
+		Map<SessionId, Session> model = new HashMap<>();
+		for (int i = 0; i < 20000; i++) {
+			SessionId id = ids.get(random.nextInt(ids.size()));
+			Session session = model.remove(id);
+			if (session != null) {
+				this.registry.remove(session);
+			} else {
+				model.put(id, this.registry.register(id, "test", null, null));
+			}
+			check(model, ids);
+		}
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testRemoveIsIdempotent() throws Exception {
+		SessionId id = new SessionId(1, 2);
+		Session session = this.registry.register(id, "test", null, null);
+		this.registry.remove(session);
+		this.registry.remove(session);
+		this.registry.remove(null);
+		assertNull(this.registry.get(id));
+		assertEquals(0, this.registry.size());
+
+		// A stale session does not remove the live one with the same ID
+		Session live = this.registry.register(id, "test", null, null);
+		this.registry.remove(session);
+		assertSame(live, this.registry.get(id));
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testIdleSessionsAreReaped() throws Exception {
+		SessionRegistry reaped = new SessionRegistry(TimeUnit.SECONDS.toNanos(1));
+		final boolean closed[] = { false };
+		Closeable channel = new Closeable() {
+			@Override
+			public void close() {
+				closed[0] = true;
+			}
+		};
+		SessionId id = new SessionId(3, 4);
+		reaped.register(id, "test", channel, null);
+		reaped.reap(new Session[1], System.nanoTime());
+		assertFalse(closed[0]);
+		assertEquals(1, reaped.size());
+
+		reaped.reap(new Session[1], System.nanoTime() + TimeUnit.SECONDS.toNanos(2));
+		assertTrue(closed[0]);
+		assertNull(reaped.get(id));
+		assertEquals(0, reaped.size());
+	}
+}
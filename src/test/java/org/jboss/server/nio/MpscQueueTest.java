@@ -0,0 +1,126 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.nio;
+
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+
+/**
+ * {@code MpscQueueTest}
+ * <p>
+ * Checks the order of the queue with a single thread, then several
+ * producers offering concurrently to a consumer: no element is lost or
+ * duplicated and the elements of each producer come out in order.
+ * </p>
+ * 
+ * Created on Dec 4, 2012 at 9:27:44 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class MpscQueueTest extends TestCase {
+
+	private static final int PRODUCERS = 4;
+	private static final int ELEMENTS = 200000;
+
+	/**
+	 * Create a new instance of {@code MpscQueueTest}
+	 * 
+	 * @param name
+	 */
+	public MpscQueueTest(String name) {
+		super(name);
+	}
+
+	/**
+	 * 
+	 */
+	public void testFifo() {
+		MpscQueue<Integer> queue = new MpscQueue<>();
+		assertNull(queue.poll());
+		for (int i = 0; i < 10; i++) {
+			queue.offer(i);
+		}
+		for (int i = 0; i < 5; i++) {
+			assertEquals(Integer.valueOf(i), queue.poll());
+		}
+		queue.offer(10);
+		for (int i = 5; i <= 10; i++) {
+			assertEquals(Integer.valueOf(i), queue.poll());
+		}
+		assertNull(queue.poll());
+		assertNull(queue.poll());
+	}
+
+	/**
+	 * @throws Exception
+	 */
+	public void testConcurrentProducers() throws Exception {
+		final MpscQueue<long[]> queue = new MpscQueue<>();
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread producers[] = new Thread[PRODUCERS];
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int producer = p;
+			producers[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < ELEMENTS; i++) {
+						queue.offer(new long[] { producer, i });
+					}
+				}
+			}, "producer-" + p);
+			producers[p].start();
+		}
+		start.countDown();
+
+		int expected[] = new int[PRODUCERS];
+		long deadline = System.nanoTime() + 30000000000L;
+		for (int received = 0; received < PRODUCERS * ELEMENTS;) {
+			long element[] = queue.poll();
+			if (element == null) {
+				assertTrue("Elements lost", System.nanoTime() < deadline);
+				Thread.yield();
+				continue;
+			}
+			int producer = (int) element[0];
+			assertEquals(expected[producer], element[1]);
+			expected[producer]++;
+			received++;
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		assertNull(queue.poll());
+		for (int p = 0; p < PRODUCERS; p++) {
+			assertEquals(ELEMENTS, expected[p]);
+		}
+	}
+}
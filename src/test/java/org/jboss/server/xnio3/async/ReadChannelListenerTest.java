@@ -0,0 +1,253 @@
+/**
+ * JBoss, Home of Professional Open Source. Copyright 2011, Red Hat, Inc., and
+ * individual
+ * contributors as indicated by the @author tags. See the copyright.txt file in
+ * the distribution
+ * for a full listing of individual contributors.
+ * 
+ * This is free software; you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser
+ * General Public License as published by the Free Software Foundation; either
+ * version 2.1 of the
+ * License, or (at your option) any later version.
+ * 
+ * This software is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this
+ * software; if not, write to the Free Software Foundation, Inc., 51 Franklin
+ * St, Fifth Floor,
+ * Boston, MA 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.server.xnio3.async;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+import org.jboss.server.common.BufferPool;
+import org.jboss.server.common.HashedWheelTimer;
+import org.jboss.server.common.HashedWheelTimer.Timeout;
+import org.jboss.server.common.Session;
+import org.jboss.server.common.SessionId;
+import org.xnio.channels.StreamChannel;
+
+/**
+ * {@code ReadChannelListenerTest}
+ * <p>
+ * Drives the read and write listeners of a connection over a scripted
+ * channel, whose socket accepts a given number of bytes, and checks when the
+ * reads are suspended and resumed.
+ * </p>
+ * 
+ * Created on Nov 23, 2012 at 9:36:12 AM
+ * 
+ * @author <a href="mailto:nbenothm@redhat.com">Nabil Benothman</a>
+ */
+public class ReadChannelListenerTest extends TestCase {
+
+	/**
+	 * The length of the response to <tt>file128k.txt</tt>
+	 */
+	private static final long LARGE_RESPONSE = 128421 + 2;
+	/**
+	 * The length of the response to <tt>file.txt</tt>
+	 */
+	private static final long SMALL_RESPONSE = 32639 + 2;
+
+	/**
+	 * {@code ScriptedChannel}
+	 * <p>
+	 * The channel side of the test: reads return the bytes sent by the
+	 * client, writes accept up to the bytes the socket has room for.
+	 * </p>
+	 */
+	private static class ScriptedChannel implements InvocationHandler {
+
+		private final ByteBuffer input = ByteBuffer.allocate(1024);
+		private long room;
+		private long written;
+		private int suspends;
+		private int resumes;
+		private boolean readable = true;
+		private boolean open = true;
+
+		/**
+		 * @param request
+		 *            the bytes sent by the client
+		 */
+		void send(String request) {
+			this.input.put(request.getBytes(StandardCharsets.US_ASCII));
+		}
+
+		/**
+		 * Consume the bytes of the buffer the socket has room for
+		 */
+		private long write(ByteBuffer buffer) {
+			int n = (int) Math.min(buffer.remaining(), this.room);
+			buffer.position(buffer.position() + n);
+			this.room -= n;
+			this.written += n;
+			return n;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * 
+		 * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+		 * java.lang.reflect.Method, java.lang.Object[])
+		 */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("read") && args.length == 1) {
+				ByteBuffer dst = (ByteBuffer) args[0];
+				this.input.flip();
+				int n = Math.min(dst.remaining(), this.input.remaining());
+				for (int i = 0; i < n; i++) {
+					dst.put(this.input.get());
+				}
+				this.input.compact();
+				return n;
+			}
+			if (name.equals("write") && args.length == 1) {
+				return (int) write((ByteBuffer) args[0]);
+			}
+			if (name.equals("write") && args.length == 3) {
+				ByteBuffer buffers[] = (ByteBuffer[]) args[0];
+				int offset = (Integer) args[1];
+				long n = 0;
+				for (int i = offset; i < offset + (Integer) args[2]; i++) {
+					n += write(buffers[i]);
+				}
+				return n;
+			}
+			if (name.equals("suspendReads")) {
+				this.suspends++;
+				this.readable = false;
+			} else if (name.equals("resumeReads")) {
+				this.resumes++;
+				this.readable = true;
+			} else if (name.equals("isOpen")) {
+				return this.open;
+			} else if (name.equals("close")) {
+				this.open = false;
+			} else if (method.getReturnType() == boolean.class) {
+				return false;
+			}
+			return null;
+		}
+	}
+
+	private ScriptedChannel script;
+	private StreamChannel channel;
+	private ReadChannelListener listener;
+	private Timeout timeout;
+
+	/**
+	 * Create a new instance of {@code ReadChannelListenerTest}
+	 * 
+	 * @param name
+	 */
+	public ReadChannelListenerTest(String name) {
+		super(name);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#setUp()
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		this.script = new ScriptedChannel();
+		this.channel = (StreamChannel) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { StreamChannel.class }, this.script);
+		this.listener = new ReadChannelListener(BufferPool.getReadBufferPool().acquire());
+		this.timeout = HashedWheelTimer.getInstance().newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				// NOPE
+			}
+		});
+		this.listener.setTimeout(this.timeout);
+		this.listener.setSession(new Session(new SessionId(1, 2), "test", this.channel, null));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see junit.framework.TestCase#tearDown()
+	 */
+	@Override
+	protected void tearDown() throws Exception {
+		this.timeout.disarm();
+		this.listener.release();
+	}
+
+	/**
+	 * Let the socket accept more bytes and notify the write listener
+	 * 
+	 * @param room
+	 */
+	private void drain(long room) {
+		this.script.room += room;
+		this.listener.getWriteListener().handleEvent(this.channel);
+	}
+
+	/**
+	 * A client waiting for a large response keeps being read
+	 */
+	public void testLargeResponseAloneDoesNotSuspendReads() {
+		this.script.room = 16 * 1024;
+		this.script.send("GET /file128k.txt\r\n");
+		this.listener.handleEvent(this.channel);
+		assertTrue(this.listener.getWriteListener().getBacklog() > WriteChannelListener.HIGH_WATERMARK);
+		assertEquals(0, this.script.suspends);
+
+		drain(Long.MAX_VALUE / 2);
+		assertEquals(LARGE_RESPONSE, this.script.written);
+		assertEquals(0, this.script.suspends);
+		assertTrue(this.script.readable);
+	}
+
+	/**
+	 * A request queued behind a large backlog suspends the reads, until the
+	 * backlog falls under the low watermark
+	 */
+	public void testQueuedRequestSuspendsAndResumesReads() {
+		this.script.room = 16 * 1024;
+		this.script.send("GET /file128k.txt\r\n");
+		this.listener.handleEvent(this.channel);
+		assertEquals(0, this.script.suspends);
+
+		// The next request is read ahead while the backlog is large
+		this.script.send("GET /file.txt\r\n");
+		this.listener.handleEvent(this.channel);
+		assertEquals(1, this.script.suspends);
+		assertFalse(this.script.readable);
+
+		// Still above the low watermark
+		drain(LARGE_RESPONSE - 16 * 1024 - 2 * WriteChannelListener.LOW_WATERMARK);
+		assertFalse(this.script.readable);
+
+		drain(WriteChannelListener.LOW_WATERMARK + 1);
+		assertTrue(this.listener.getWriteListener().getBacklog() < WriteChannelListener.LOW_WATERMARK);
+		assertEquals(1, this.script.resumes);
+		assertTrue(this.script.readable);
+
+		// The queued request is answered once the batch is written
+		drain(Long.MAX_VALUE / 2);
+		assertEquals(LARGE_RESPONSE + SMALL_RESPONSE, this.script.written);
+		assertEquals(1, this.script.suspends);
+		assertTrue(this.script.readable);
+	}
+}